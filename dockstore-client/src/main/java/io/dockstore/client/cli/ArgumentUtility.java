@@ -28,7 +28,7 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Organizes all methods that have to do with parsing of input and creation of output.
- * This is a static utility class with no state.
+ * This is a static utility class with no state, apart from whether the current thread defers exits.
  *
  * @author dyuen
  */
@@ -43,6 +43,8 @@ public final class ArgumentUtility {
     public static final int MAX_DESCRIPTION = 50;
 
     private static final Logger LOG = LoggerFactory.getLogger(ArgumentUtility.class);
+    // threads on which errorMessage and exceptionMessage throw an ExitException instead of exiting
+    private static final ThreadLocal<Boolean> DEFER_EXITS = ThreadLocal.withInitial(() -> false);
 
     private ArgumentUtility() {
         // hide the constructor for utility classes
@@ -76,6 +78,13 @@ public final class ArgumentUtility {
      * @param exitCode
      */
     public static void exceptionMessage(Exception exception, String message, int exitCode) {
+        if (exception instanceof ExitException) {
+            // keep the message and exit code of the call that failed first
+            ((ExitException)exception).exit();
+        }
+        if (exitCode != 0 && DEFER_EXITS.get()) {
+            throw new ExitException(message, exception, exitCode);
+        }
         if (!"".equals(message)) {
             err(message);
         }
@@ -87,10 +96,26 @@ public final class ArgumentUtility {
     }
 
     public static void errorMessage(String message, int exitCode) {
+        if (DEFER_EXITS.get()) {
+            throw new ExitException(message, null, exitCode);
+        }
         err(message);
         System.exit(exitCode);
     }
 
+    /**
+     * Makes errorMessage and exceptionMessage throw an {@link ExitException} on the current thread instead of exiting,
+     * for work run on a thread of its own whose failure is reported by the thread that started it.
+     * @param defer true to throw, false to exit again
+     */
+    public static void deferExits(boolean defer) {
+        if (defer) {
+            DEFER_EXITS.set(true);
+        } else {
+            DEFER_EXITS.remove();
+        }
+    }
+
     public static void conditionalErrorMessage(boolean isError, String message, int exitCode) {
         if (isError) {
             errorMessage(message, exitCode);
@@ -299,4 +324,34 @@ public final class ArgumentUtility {
     static class Kill extends RuntimeException {
     }
 
+    /**
+     * An exit deferred by {@link #deferExits(boolean)}, with the message and exit code it was called with
+     */
+    public static class ExitException extends RuntimeException {
+        private final int exitCode;
+
+        ExitException(String message, Exception cause, int exitCode) {
+            super(message, cause);
+            this.exitCode = exitCode;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * Reports the failure the way the deferred call would have and exits, or throws again if this thread defers exits too
+         */
+        public void exit() {
+            if (DEFER_EXITS.get()) {
+                throw this;
+            }
+            if (getCause() == null) {
+                errorMessage(getMessage(), exitCode);
+            } else {
+                exceptionMessage((Exception)getCause(), getMessage(), exitCode);
+            }
+        }
+    }
+
 }
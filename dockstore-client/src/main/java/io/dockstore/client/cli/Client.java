@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.text.ParseException;
@@ -50,6 +51,7 @@ import io.dockstore.client.cli.nested.DepCommand;
 import io.dockstore.client.cli.nested.ToolClient;
 import io.dockstore.client.cli.nested.WorkflowClient;
 import io.dockstore.common.GeneratedConstants;
+import io.dockstore.common.Tracer;
 import io.dockstore.common.Utilities;
 import io.dockstore.common.WdlBridgeShutDown;
 import io.dockstore.openapi.client.api.Ga4Ghv20Api;
@@ -620,6 +622,8 @@ public class Client {
         out("  --script             Will not check Github for newer versions of Dockstore, or ask for user input");
         out("                       Default: false");
         out("  --clean-cache        Delete the Dockstore launcher cache to save space");
+        out("  --trace-file <file>  Write a trace of where the time of the command went to a file, in Chrome trace event format");
+        out("                       Open it with chrome://tracing or https://ui.perfetto.dev");
         printHelpFooter();
     }
 
@@ -690,6 +694,10 @@ public class Client {
         } else {
             SCRIPT.set(false);
         }
+        String traceFile = optVal(args, "--trace-file", null);
+        if (traceFile != null) {
+            Tracer.enable(Paths.get(traceFile));
+        }
 
         try {
             setupClientEnvironment(args);
@@ -16,22 +16,38 @@
 package io.dockstore.client.cli;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
+import java.util.WeakHashMap;
 
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
 
 import com.google.gson.Gson;
+import io.dockstore.provision.ProgressPrinter;
 import io.swagger.client.ApiClient;
 import io.swagger.client.model.PublishRequest;
 import org.apache.commons.io.FileUtils;
 
 public final class SwaggerUtility {
 
+    private static final MediaType ZIP_MEDIA_TYPE = MediaType.valueOf("application/zip");
+    private static final Set<Client> PROGRESS_REPORTING_CLIENTS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    // the filter is registered on the shared client, so it only reports responses read while in downloadArbitraryURL
+    private static final ThreadLocal<Boolean> REPORT_PROGRESS = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
     private SwaggerUtility() {
 
     }
@@ -42,28 +58,54 @@ public final class SwaggerUtility {
                 new String[] { "BEARER" }, type).getData();
     }
 
+    /**
+     * Downloads from the webservice straight to a file, printing the progress. Unlike {@link #getArbitraryURL(String, GenericType, ApiClient)}
+     * with a byte[], the response is never held in memory, entry zips with test data can be hundreds of megabytes.
+     *
+     * @param url         path on the webservice
+     * @param destination where to write the response
+     */
+    public static void downloadArbitraryURL(String url, File destination, ApiClient client) throws IOException {
+        if (PROGRESS_REPORTING_CLIENTS.add(client.getHttpClient())) {
+            client.getHttpClient().register(new ZipDownloadProgress());
+        }
+        // the generated client streams File responses to a temporary file
+        final File downloaded;
+        REPORT_PROGRESS.set(Boolean.TRUE);
+        try {
+            downloaded = getArbitraryURL(url, new GenericType<File>() {
+            }, client);
+        } finally {
+            REPORT_PROGRESS.remove();
+        }
+        try {
+            final File parent = destination.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            Files.move(downloaded.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            // only left behind if it could not be moved
+            FileUtils.deleteQuietly(downloaded);
+        }
+    }
+
     public static void unzipFile(File zipFile, File unzipDirectory) throws IOException {
         unzipFile(zipFile, unzipDirectory, false);
     }
 
+    /**
+     * Extracts a zip with {@link ZipExtractor}, which rejects entries that would end up outside of the directory
+     *
+     * @param deleteZip whether to delete the zip once it was extracted, or failed to
+     */
     public static void unzipFile(File zipFile, File unzipDirectory, boolean deleteZip) throws IOException {
-        try (ZipFile zipFileActual = new ZipFile(zipFile)) {
-            zipFileActual.stream().forEach((ZipEntry zipEntry) -> {
-                if (!zipEntry.isDirectory()) {
-                    String fileName = zipEntry.getName();
-                    File newFile = new File(unzipDirectory, fileName);
-                    try {
-                        newFile.getParentFile().mkdirs();
-                        FileUtils.copyInputStreamToFile(zipFileActual.getInputStream(zipEntry), newFile);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    } finally {
-                        if (deleteZip) {
-                            FileUtils.deleteQuietly(zipFile);
-                        }
-                    }
-                }
-            });
+        try {
+            ZipExtractor.extract(zipFile, unzipDirectory, ZipExtractor.DEFAULT_THREADS);
+        } finally {
+            if (deleteZip) {
+                FileUtils.deleteQuietly(zipFile);
+            }
         }
     }
 
@@ -81,4 +123,54 @@ public final class SwaggerUtility {
         String s = gson.toJson(publishRequest);
         return gson.fromJson(s, PublishRequest.class);
     }
+
+    /**
+     * Reports the progress of zip downloads by {@link #downloadArbitraryURL(String, File, ApiClient)} as they are read from the response
+     */
+    private static final class ZipDownloadProgress implements ClientResponseFilter {
+        @Override
+        public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) {
+            if (REPORT_PROGRESS.get() && responseContext.hasEntity() && responseContext.getMediaType() != null
+                && responseContext.getMediaType().isCompatible(ZIP_MEDIA_TYPE)) {
+                responseContext.setEntityStream(new ProgressInputStream(responseContext.getEntityStream(), responseContext.getLength()));
+            }
+        }
+    }
+
+    private static final class ProgressInputStream extends FilterInputStream {
+        private final ProgressPrinter printer = new ProgressPrinter();
+        private final long size;
+        private long bytesRead;
+        private boolean done;
+
+        ProgressInputStream(InputStream inputStream, long size) {
+            super(inputStream);
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int read = super.read();
+            progress(read < 0 ? -1 : 1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            progress(read);
+            return read;
+        }
+
+        private void progress(int read) {
+            if (read > 0) {
+                bytesRead += read;
+                printer.handleProgress(bytesRead, size);
+            } else if (read < 0 && !done) {
+                done = true;
+                // finalize output from the printer
+                System.out.println();
+            }
+        }
+    }
 }
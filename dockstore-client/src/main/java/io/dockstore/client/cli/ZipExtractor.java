@@ -0,0 +1,185 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import io.dockstore.common.Tracer;
+
+/**
+ * Extracts a zip into a directory using several threads, which matters for entries with thousands of small files such
+ * as test data or many imported descriptors.
+ *
+ * Every entry is checked to be within the directory before anything is written, so a zip with an entry such as
+ * ../../.bashrc, or with two entries for the same file, is rejected as a whole. Each directory is then created once,
+ * and the files are inflated in parallel from the one open zip, with a buffer per thread. Links already in the
+ * directory are never written through, so that they cannot lead an entry outside of it either.
+ */
+final class ZipExtractor {
+
+    static final int DEFAULT_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // below this many files the threads cost more than they save
+    private static final int PARALLEL_THRESHOLD = 16;
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private ZipExtractor() {
+
+    }
+
+    /**
+     * @param threads how many files to extract at once
+     * @throws IOException if the zip cannot be read, a file cannot be written, or an entry would end up outside the directory
+     */
+    static void extract(File zipFile, File directory, int threads) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile); Tracer.Span span = Tracer.start("unzip", zipFile.getName())) {
+            final Path root = directory.toPath().toAbsolutePath().normalize();
+            final Set<Path> directories = new TreeSet<>();
+            final List<ZipEntry> entries = new ArrayList<>();
+            final List<Path> targets = new ArrayList<>();
+            final Set<Path> files = new HashSet<>();
+            final Enumeration<? extends ZipEntry> enumeration = zip.entries();
+            while (enumeration.hasMoreElements()) {
+                final ZipEntry entry = enumeration.nextElement();
+                final Path target = root.resolve(entry.getName()).normalize();
+                if (!target.startsWith(root) || target.equals(root) && !entry.isDirectory()) {
+                    throw new IOException("Entry " + entry.getName() + " of " + zipFile + " is outside of " + directory);
+                }
+                if (entry.isDirectory()) {
+                    directories.add(target);
+                } else {
+                    // two threads must never write the same file
+                    if (!files.add(target)) {
+                        throw new IOException("Entry " + entry.getName() + " of " + zipFile + " is a file another entry already is");
+                    }
+                    directories.add(target.getParent());
+                    entries.add(entry);
+                    targets.add(target);
+                }
+            }
+            for (Path path : directories) {
+                if (files.contains(path)) {
+                    throw new IOException(root.relativize(path) + " of " + zipFile + " is both a file and a directory");
+                }
+            }
+            Files.createDirectories(root);
+            final Path realRoot = root.toRealPath();
+            for (Path path : directories) {
+                createDirectories(path, realRoot);
+            }
+            span.arg("files", entries.size());
+
+            if (threads <= 1 || entries.size() < PARALLEL_THRESHOLD) {
+                for (int i = 0; i < entries.size(); i++) {
+                    extract(zip, entries.get(i), targets.get(i));
+                }
+                return;
+            }
+            final ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threads, entries.size()), runnable -> {
+                Thread thread = new Thread(runnable, "dockstore-unzip");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                final List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < entries.size(); i++) {
+                    final ZipEntry entry = entries.get(i);
+                    final Path target = targets.get(i);
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            extract(zip, entry, target);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executorService));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException)e.getCause()).getCause();
+                }
+                throw e;
+            } finally {
+                // the zip is only closed once no thread is reading from it any more
+                executorService.shutdownNow();
+                awaitTermination(executorService);
+            }
+        }
+    }
+
+    /**
+     * Creates a directory unless the part of it that exists already leads outside of the directory extracted to, e.g.
+     * through a link to another folder
+     */
+    private static void createDirectories(Path path, Path realRoot) throws IOException {
+        Path existing = path;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        if (!existing.toRealPath().startsWith(realRoot)) {
+            throw new IOException(existing + " links outside of " + realRoot);
+        }
+        Files.createDirectories(path);
+    }
+
+    private static void extract(ZipFile zip, ZipEntry entry, Path target) throws IOException {
+        final byte[] buffer = BUFFERS.get();
+        // a link where the file goes is not followed, opening it fails instead
+        try (InputStream inputStream = zip.getInputStream(entry); OutputStream outputStream = Files.newOutputStream(target,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executorService) {
+        boolean interrupted = false;
+        while (!executorService.isTerminated()) {
+            try {
+                executorService.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -58,7 +59,9 @@ import com.google.gson.JsonParseException;
 import io.cwl.avro.CWL;
 import io.dockstore.client.cli.CheckerClient;
 import io.dockstore.client.cli.Client;
+import io.dockstore.client.cli.SwaggerUtility;
 import io.dockstore.common.DescriptorLanguage;
+import io.dockstore.common.Tracer;
 import io.dockstore.common.Utilities;
 import io.dockstore.common.WdlBridge;
 import io.dockstore.openapi.client.api.Ga4Ghv20Api;
@@ -392,6 +395,60 @@ public abstract class AbstractEntryClient<T> {
      */
     public abstract File downloadTargetEntry(String toolpath, ToolDescriptor.TypeEnum type, boolean unzip, File directory) throws IOException;
 
+    /**
+     * Looks up a version that can never change, i.e. a frozen version, in the entry bundle cache
+     * without asking the webservice about the entry
+     *
+     * @param entryType the kind of entry, e.g. workflows or containers
+     * @param toolpath  a unique identifier for an entry, with the version
+     * @return the cached version, empty if the cache is off, no version is given or it was not cached as one that never changes
+     */
+    Optional<EntryBundleCache.Bundle> lookupImmutableVersion(String entryType, String toolpath) {
+        final String[] parts = toolpath.split(":");
+        if (parts.length < 2) {
+            return Optional.empty();
+        }
+        return EntryBundleCache.fromConfig(Utilities.parseConfig(getConfigFile()))
+            .flatMap(cache -> cache.lookup(cache.key(entryType, parts[0], parts[1])));
+    }
+
+    /**
+     * Downloads the zip of an entry version, or links it from the entry bundle cache if the version was downloaded before
+     *
+     * @param zipPath        the webservice path of the zip
+     * @param zipFile        where to put the zip
+     * @param unzipDirectory where to unzip the zip, null to leave it zipped
+     * @param recorded       what to remember about the version, to find its primary descriptor when it is looked up by
+     *                       {@link #lookupImmutableVersion(String, String)}
+     * @param keys           what makes up each key of the version in the cache, see {@link EntryBundleCache#key(Object...)}, the
+     *                       first one is looked up
+     */
+    void downloadEntryZip(String zipPath, io.swagger.client.ApiClient apiClient, File zipFile, File unzipDirectory, Properties recorded,
+            Object[]... keys) throws IOException {
+        final Optional<EntryBundleCache> bundleCache = EntryBundleCache.fromConfig(Utilities.parseConfig(getConfigFile()));
+        Optional<EntryBundleCache.Bundle> bundle = bundleCache.flatMap(cache -> cache.lookup(cache.key(keys[0])));
+        if (bundle.isPresent()) {
+            LOG.info("Using the cached bundle of " + zipPath);
+        } else {
+            // https://github.com/dockstore/dockstore/issues/1712 client seems to use jersey logging which is not controlled from logback
+            apiClient.setDebugging(false);
+            try {
+                SwaggerUtility.downloadArbitraryURL(zipPath, zipFile, apiClient);
+            } finally {
+                apiClient.setDebugging(Client.DEBUG.get());
+            }
+            if (bundleCache.isEmpty()) {
+                if (unzipDirectory != null) {
+                    SwaggerUtility.unzipFile(zipFile, unzipDirectory);
+                }
+                return;
+            }
+            final EntryBundleCache cache = bundleCache.get();
+            bundle = Optional.of(cache.store(zipFile.toPath(), recorded, Arrays.stream(keys).map(cache::key).toArray(String[]::new)));
+        }
+        bundle.get().materialize(zipFile, unzipDirectory);
+    }
+
     /**
      * Grab the descriptor for an entry. TODO: descriptorType should probably be an enum, may need to play with generics to make it
      * dependent on the type of entry
@@ -1516,7 +1573,11 @@ public abstract class AbstractEntryClient<T> {
                 System.out.println("There are no files in the docker image directory: " + directoryPath.toAbsolutePath());
             } else {
                 System.out.println("Loading docker images...");
-                list.get().forEach(path -> Utilities.executeCommand("docker load -i \"" + path + "\"", System.out, System.err));
+                list.get().forEach(path -> {
+                    try (Tracer.Span ignored = Tracer.start("subprocess", "docker load").arg("image", path)) {
+                        Utilities.executeCommand("docker load -i \"" + path + "\"", System.out, System.err);
+                    }
+                });
             }
         } else {
             LOG.info("No docker image directory specified in Dockstore config file");
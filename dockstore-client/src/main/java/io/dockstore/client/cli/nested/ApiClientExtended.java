@@ -22,6 +22,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import io.dockstore.client.cli.Client;
+import io.dockstore.common.Tracer;
 import io.openapi.wes.client.ApiClient;
 import io.openapi.wes.client.ApiException;
 import io.openapi.wes.client.Pair;
@@ -194,6 +195,7 @@ public class ApiClientExtended extends ApiClient {
         Entity<?> entity = serialize(body, formParams, contentType);
 
         Response response = null;
+        final Tracer.Span span = Tracer.start("api", method + " " + path).arg("url", target.getUri());
 
         try {
             if ("GET".equals(method)) {
@@ -213,6 +215,7 @@ public class ApiClientExtended extends ApiClient {
             }
 
             statusCode = response.getStatusInfo().getStatusCode();
+            span.arg("status", statusCode);
             responseHeaders = buildResponseHeaders(response);
 
             if (response.getStatus() == Response.Status.NO_CONTENT.getStatusCode()) {
@@ -278,6 +281,7 @@ public class ApiClientExtended extends ApiClient {
 
             return null;
         } finally {
+            span.close();
             try {
                 response.close();
             } catch (Exception e) {
@@ -4,16 +4,23 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import com.google.common.base.Joiner;
 import com.google.common.io.Files;
+import io.dockstore.client.cli.ArgumentUtility;
 import io.dockstore.client.cli.nested.notificationsclients.NotificationsClient;
+import io.dockstore.common.Tracer;
 import io.dockstore.common.Utilities;
 import io.dockstore.openapi.client.api.Ga4Ghv20Api;
 import io.dockstore.openapi.client.model.Checksum;
@@ -21,10 +28,8 @@ import io.dockstore.openapi.client.model.FileWrapper;
 import io.dockstore.openapi.client.model.ToolFile;
 import io.swagger.client.ApiException;
 import io.swagger.client.model.ToolDescriptor;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.INIConfiguration;
 import org.apache.commons.exec.ExecuteException;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +52,14 @@ import static io.dockstore.client.cli.nested.AbstractEntryClient.CHECKSUM_VALIDA
  */
 public abstract class BaseLanguageClient {
     private static final Logger LOG = LoggerFactory.getLogger(BaseLanguageClient.class);
+    private static final String LOAD_DOCKER_IMAGES = "load docker images";
+    private static final String INITIALIZE_LAUNCHER = "initialize launcher";
+    private static final String SELECT_PARAMETER_FILE = "select parameter file";
+    private static final String DOWNLOAD_FILES = "download files";
+    private static final String PROVISION_INPUT_FILES = "provision input files";
+    private static final String VALIDATE_DESCRIPTOR_CHECKSUM = "validate descriptor checksum";
+    private static final String CHECKSUM_FUNCTION = "sha-256";
+    private static final int DESCRIPTOR_CHECKSUM_THREADS = 8;
     protected final AbstractEntryClient abstractEntryClient;
     protected INIConfiguration config;
     protected String notificationsWebHookURL;
@@ -146,20 +159,23 @@ public abstract class BaseLanguageClient {
         // Initialize client with some launch information
         setLaunchInformation(entryVal, localEntry, yamlFile, jsonFile, outputTarget, notificationUUID);
 
-        // Load up Docker images
-        abstractEntryClient.loadDockerImages();
+        // Setup notifications
+        setupNotifications();
 
-        // Select the appropriate parameter file
-        selectedParameterFile = selectParameterFile();
+        // Stages that do not depend on each other run at the same time
+        LaunchStages stages = new LaunchStages();
+
+        // Load up Docker images
+        stages.add(LOAD_DOCKER_IMAGES, abstractEntryClient::loadDockerImages);
 
         // Setup the launcher (Download dependencies)
-        launcher.initialize();
+        stages.add(INITIALIZE_LAUNCHER, launcher::initialize);
 
-        // Setup notifications
-        setupNotifications();
+        // Select the appropriate parameter file
+        stages.add(SELECT_PARAMETER_FILE, () -> selectedParameterFile = selectParameterFile());
 
         // Setup temp directory and download files
-        downloadFiles();
+        stages.add(DOWNLOAD_FILES, this::downloadFiles);
 
         /*
          Don't download the input files (from the input JSON or YAML) if we are making a request
@@ -171,46 +187,48 @@ public abstract class BaseLanguageClient {
          endpoint.
         */
         if (!abstractEntryClient.isWesCommand()) {
-            if (provisionedParameterFile != null || selectedParameterFile != null) {
-                try {
-                    provisionedParameterFile = provisionInputFiles();
-                } catch (ApiException ex) {
-                    if (abstractEntryClient.getEntryType().equalsIgnoreCase("tool")) {
-                        exceptionMessage(ex, "The tool entry does not exist. Did you mean to launch a local tool or a workflow?",
-                                ENTRY_NOT_FOUND);
-                    } else {
-                        exceptionMessage(ex, "The workflow entry does not exist. Did you mean to launch a local workflow or a tool?",
-                                ENTRY_NOT_FOUND);
-                    }
-                } catch (Exception ex) {
-                    exceptionMessage(ex, ex.getMessage(), GENERIC_ERROR);
-                }
-            } else {
-                LOG.debug("No test parameter file provided, skipping provisioning");
-            }
+            // parsing the descriptor may need the dependencies the launcher checks for
+            stages.add(PROVISION_INPUT_FILES, this::provisionInputFilesStage, INITIALIZE_LAUNCHER, SELECT_PARAMETER_FILE, DOWNLOAD_FILES);
         }
 
         // Don't validate descriptors if the entry is local or a flag to ignore validation was part of the command
         if (!localEntry && !abstractEntryClient.getIgnoreChecksums()) {
-            validateDescriptorChecksum(type, entryVal);
+            stages.add(VALIDATE_DESCRIPTOR_CHECKSUM, () -> validateDescriptorChecksum(type, entryVal), DOWNLOAD_FILES);
         }
 
+        try {
+            stages.await();
+        } catch (ArgumentUtility.ExitException ex) {
+            // the first stage to fail reports its own message and exit code
+            ex.exit();
+        } catch (Exception ex) {
+            exceptionMessage(ex, ex.getMessage(), GENERIC_ERROR);
+        }
 
         // Update the launcher with references to the files to be launched
         launcher.setFiles(localPrimaryDescriptorFile, zippedEntryFile, provisionedParameterFile, selectedParameterFile, workingDirectory, entryVal);
         try {
             // Attempt to run launcher
             launcher.printLaunchMessage();
-            executeEntry();
+            // Upload outputs as they are written if the launcher and config allow it
+            launcher.startOutputStreaming();
+            try (Tracer.Span ignored = Tracer.start("launch", "execute entry")) {
+                executeEntry();
+            }
 
             // Provision the output files if run is successful
-            provisionOutputFiles();
+            try (Tracer.Span ignored = Tracer.start("launch", "provision output files")) {
+                provisionOutputFiles();
+            }
         } catch (ApiException ex) {
             exceptionMessage(ex, ex.getMessage(), API_ERROR);
         }  catch (IOException ex) {
             exceptionMessage(ex, ex.getMessage(), IO_ERROR);
         } catch (Exception ex) {
             exceptionMessage(ex, ex.getMessage(), GENERIC_ERROR);
+        } finally {
+            // the launcher normally stops it while provisioning outputs, unless the run failed
+            launcher.stopOutputStreaming();
         }
 
         notificationsClient.sendMessage(NotificationsClient.COMPLETED, true);
@@ -218,8 +236,33 @@ public abstract class BaseLanguageClient {
         return 0;
     }
 
+    /**
+     * Provisions the input files of the parameter file, if there is one
+     */
+    private void provisionInputFilesStage() {
+        if (provisionedParameterFile != null || selectedParameterFile != null) {
+            try {
+                provisionedParameterFile = provisionInputFiles();
+            } catch (ApiException ex) {
+                if (abstractEntryClient.getEntryType().equalsIgnoreCase("tool")) {
+                    exceptionMessage(ex, "The tool entry does not exist. Did you mean to launch a local tool or a workflow?",
+                            ENTRY_NOT_FOUND);
+                } else {
+                    exceptionMessage(ex, "The workflow entry does not exist. Did you mean to launch a local workflow or a tool?",
+                            ENTRY_NOT_FOUND);
+                }
+            } catch (Exception ex) {
+                exceptionMessage(ex, ex.getMessage(), GENERIC_ERROR);
+            }
+        } else {
+            LOG.debug("No test parameter file provided, skipping provisioning");
+        }
+    }
+
     /**
      * Validates the locally downloaded descriptor file has the same SHA-1 checksum as the descriptor stored in the database
+     * The remote checksums are fetched and the local files hashed concurrently, a version verified before is not checked
+     * against the TRS endpoint again as long as its local descriptors are unchanged.
      * @param type CWL or WDL or NFL
      * @param entryVal Tool/workflow path
      * @return void errors out if checksums do not match, provides a warning if a remote checksum is null
@@ -234,55 +277,71 @@ public abstract class BaseLanguageClient {
         // Get the entry version we are validating for
         final String versionID = abstractEntryClient.getVersionID(entryVal);
 
-        final List<ToolFile> allDescriptors = abstractEntryClient.getAllToolDescriptors(type.toString(), ga4ghv20Path, versionID);
+        // All secondary files are located relative to the location of the primary descriptor.
+        final String localTemporaryDirectory = localPrimaryDescriptorFile.getParent();
 
         final Ga4Ghv20Api ga4ghv20api = abstractEntryClient.getClient().getGa4Ghv20Api();
+        final VerifiedDescriptorCache verifiedDescriptorCache = VerifiedDescriptorCache.getDefault(ga4ghv20api.getApiClient().getBasePath());
+        if (verifiedDescriptorCache.isVerified(type.toString(), ga4ghv20Path, versionID, new File(localTemporaryDirectory))) {
+            LOG.info("Descriptors of " + ga4ghv20Path + ":" + versionID + " are unchanged since they were last verified");
+            out(CHECKSUM_VALIDATED_MESSAGE);
+            return;
+        }
 
-        // All secondary files are located relative to the location of the primary descriptor.
-        final String localTemporaryDirectory = localPrimaryDescriptorFile.getParent();
-        final String checksumFunction = "sha-256";
+        final List<ToolFile> allDescriptors = abstractEntryClient.getAllToolDescriptors(type.toString(), ga4ghv20Path, versionID);
 
-        // Validate each tool file associated with the entry (Primary and secondary descriptors)
-        for (ToolFile toolFile : allDescriptors) {
+        // Fetch the remote checksum and hash the local copy of each tool file associated with the entry (Primary and secondary descriptors)
+        final List<CompletableFuture<DescriptorChecksums>> futures = new ArrayList<>();
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, Math.min(allDescriptors.size(), DESCRIPTOR_CHECKSUM_THREADS)),
+            runnable -> {
+                Thread thread = new Thread(runnable, "dockstore-descriptor-checksum");
+                thread.setDaemon(true);
+                return thread;
+            });
+        try {
+            for (ToolFile toolFile : allDescriptors) {
+                futures.add(CompletableFuture.supplyAsync(() -> new DescriptorChecksums(ga4ghv20api, type.toString(), ga4ghv20Path, versionID,
+                    toolFile.getPath(), localTemporaryDirectory), executorService));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } finally {
+            executorService.shutdown();
+        }
 
-            // Get remote descriptor checksum
-            Optional<Checksum> remoteDescriptorChecksum = Optional.empty();
-            try {
-                // The TRS endpoint only discovers published entries
-                final FileWrapper remoteDescriptor = ga4ghv20api.toolsIdVersionsVersionIdTypeDescriptorRelativePathGet(type.toString(), ga4ghv20Path, versionID, toolFile.getPath());
-                remoteDescriptorChecksum = remoteDescriptor.getChecksum()
-                    .stream()
-                    .filter(c -> c.getType().equals(checksumFunction))
-                    .findFirst();
-            } catch (io.dockstore.openapi.client.ApiException ex) {
-                exceptionMessage(ex, "Unable to locate remote descriptor " + ga4ghv20Path, ENTRY_NOT_FOUND);
+        // Report in the order of the descriptors so that the messages are the same from launch to launch
+        final Map<String, String> verified = new LinkedHashMap<>();
+        boolean allVerified = true;
+        for (CompletableFuture<DescriptorChecksums> future : futures) {
+            final DescriptorChecksums checksums = future.join();
+            if (checksums.remoteException != null) {
+                exceptionMessage(checksums.remoteException, "Unable to locate remote descriptor " + ga4ghv20Path, ENTRY_NOT_FOUND);
             }
 
-            if (!remoteDescriptorChecksum.isEmpty()) {
+            if (checksums.remote.isPresent()) {
 
                 // Get local descriptor checksum
                 Checksum localDescriptorChecksum = new Checksum();
-                localDescriptorChecksum.setType(checksumFunction);
-                try {
-                    // if the toolFile.getPath() is absolute, it is converted to a relative path by File the constructor
-                    final File localDescriptor = new File(localTemporaryDirectory, toolFile.getPath());
-                    final String fileContents = FileUtils.readFileToString(localDescriptor, StandardCharsets.UTF_8);
-                    final String fileChecksum = DigestUtils.sha256Hex(fileContents);
-                    localDescriptorChecksum.setChecksum(fileChecksum);
-                } catch (IOException ex) {
-                    exceptionMessage(ex, "Unable to locate local descriptor at " + localTemporaryDirectory + "/" + toolFile.getPath(), IO_ERROR);
+                localDescriptorChecksum.setType(CHECKSUM_FUNCTION);
+                if (checksums.localException != null) {
+                    exceptionMessage(checksums.localException, "Unable to locate local descriptor at " + localTemporaryDirectory + "/" + checksums.path, IO_ERROR);
                 }
+                localDescriptorChecksum.setChecksum(checksums.local);
 
                 // verify checksums match
-                if (!remoteDescriptorChecksum.get().equals(localDescriptorChecksum)) {
-                    errorMessage(CHECKSUM_MISMATCH_MESSAGE + toolFile.getPath(), API_ERROR);
+                if (!checksums.remote.get().equals(localDescriptorChecksum)) {
+                    errorMessage(CHECKSUM_MISMATCH_MESSAGE + checksums.path, API_ERROR);
                 }
+                verified.put(checksums.path, checksums.local);
             } else {
                 // remote descriptor checksum is empty, notify the user but continue with launch
-                err(CHECKSUM_NULL_MESSAGE + toolFile.getPath());
+                err(CHECKSUM_NULL_MESSAGE + checksums.path);
+                allVerified = false;
             }
         }
 
+        if (allVerified) {
+            verifiedDescriptorCache.record(type.toString(), ga4ghv20Path, versionID, verified, new File(localTemporaryDirectory));
+        }
         out(CHECKSUM_VALIDATED_MESSAGE);
     }
 
@@ -442,4 +501,35 @@ public abstract class BaseLanguageClient {
             }
         }
     }
+
+    /**
+     * The remote and local checksums of one descriptor, failures are kept to be reported in order
+     */
+    private static final class DescriptorChecksums {
+        private final String path;
+        private Optional<Checksum> remote = Optional.empty();
+        private io.dockstore.openapi.client.ApiException remoteException;
+        private String local;
+        private IOException localException;
+
+        DescriptorChecksums(Ga4Ghv20Api ga4ghv20api, String type, String ga4ghv20Path, String versionID, String path, String localTemporaryDirectory) {
+            this.path = path;
+            try {
+                // The TRS endpoint only discovers published entries
+                final FileWrapper remoteDescriptor = ga4ghv20api.toolsIdVersionsVersionIdTypeDescriptorRelativePathGet(type, ga4ghv20Path, versionID, path);
+                remote = remoteDescriptor.getChecksum()
+                    .stream()
+                    .filter(c -> c.getType().equals(CHECKSUM_FUNCTION))
+                    .findFirst();
+            } catch (io.dockstore.openapi.client.ApiException ex) {
+                remoteException = ex;
+            }
+            try {
+                // if the path is absolute, it is converted to a relative path by File the constructor
+                local = VerifiedDescriptorCache.sha256(new File(localTemporaryDirectory, path));
+            } catch (IOException ex) {
+                localException = ex;
+            }
+        }
+    }
 }
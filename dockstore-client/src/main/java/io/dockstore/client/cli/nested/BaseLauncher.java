@@ -8,9 +8,12 @@ import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiPredicate;
 
 import io.dockstore.common.DescriptorLanguage;
 import io.dockstore.common.FileProvisioning;
+import io.dockstore.common.OutputStreamer;
+import io.dockstore.common.Tracer;
 import io.dockstore.common.Utilities;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -46,6 +49,9 @@ public abstract class BaseLauncher {
 
     protected String launcherName;
 
+    // uploads outputs while the entry runs, null unless output streaming is turned on and the launcher supports it
+    protected OutputStreamer outputStreamer;
+
     public BaseLauncher(AbstractEntryClient abstractEntryClient, DescriptorLanguage language, boolean script) {
         this.abstractEntryClient = abstractEntryClient;
         this.fileProvisioning = new FileProvisioning(abstractEntryClient.getConfigFile());
@@ -92,6 +98,27 @@ public abstract class BaseLauncher {
 
     }
 
+    /**
+     * Starts uploading outputs while the entry runs, for launchers that know where some outputs go before the entry is done.
+     * Does nothing unless output streaming is turned on in the config file.
+     */
+    public void startOutputStreaming() {
+
+    }
+
+    /**
+     * Stops uploading outputs while the entry runs, waiting for the uploads in flight
+     * @return whether a local file was already uploaded to a destination while the entry ran
+     */
+    public BiPredicate<Path, String> stopOutputStreaming() {
+        if (outputStreamer == null) {
+            return (source, destination) -> false;
+        }
+        final BiPredicate<Path, String> uploaded = outputStreamer.finish();
+        outputStreamer = null;
+        return uploaded;
+    }
+
     /**
      * Create a command to execute entry on the command line
      * @return Command to run in list format
@@ -118,7 +145,9 @@ public abstract class BaseLauncher {
         Map<String, String> additionalEnvVars = new HashMap<>();
         String nextflowHome = System.getProperty("user.home") + "/.nextflow";
         additionalEnvVars.put("NXF_HOME", nextflowHome);
-        return Utilities.executeCommand(runCommand, System.out, System.err, workingDir, additionalEnvVars);
+        try (Tracer.Span ignored = Tracer.start("subprocess", launcherName).arg("command", runCommand)) {
+            return Utilities.executeCommand(runCommand, System.out, System.err, workingDir, additionalEnvVars);
+        }
     }
 
     /**
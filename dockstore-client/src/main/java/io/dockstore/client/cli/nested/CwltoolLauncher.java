@@ -1,8 +1,13 @@
 package io.dockstore.client.cli.nested;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiPredicate;
 import java.util.stream.Collectors;
 
 import io.dockstore.common.DescriptorLanguage;
@@ -60,15 +65,47 @@ public class CwltoolLauncher extends BaseLauncher {
         return command;
     }
 
+    /**
+     * Which output a file under outputs/ belongs to is only known from the output object cwltool prints when it is done.
+     * The exception is when every output is a directory going to the same place without metadata, then the path of a
+     * file under outputs/ is enough to tell where it goes.
+     */
+    @Override
+    public void startOutputStreaming() {
+        if (outputMap == null || outputMap.isEmpty()) {
+            return;
+        }
+        final Set<String> targets = outputMap.values().stream().flatMap(List::stream)
+                .map(info -> info.isDirectory() && info.getMetadata() == null ? info.getUrl() : "").collect(Collectors.toSet());
+        if (targets.size() != 1 || targets.contains("")) {
+            return;
+        }
+        final String target = targets.iterator().next();
+        final String targetFolder = target.endsWith("/") ? target : target + '/';
+        final Path outputs = Paths.get(workingDirectory, "outputs").toAbsolutePath();
+        outputStreamer = fileProvisioning.startOutputStreaming(outputs, file -> {
+            final Path relative = outputs.relativize(file);
+            // a file right under outputs/ is not part of a directory output
+            if (relative.getNameCount() < 2) {
+                return Optional.empty();
+            }
+            FileProvisioning.FileInfo info = new FileProvisioning.FileInfo();
+            info.setLocalPath(file.toString());
+            info.setUrl(targetFolder + FilenameUtils.separatorsToUnix(relative.toString()));
+            return Optional.of(info);
+        }).orElse(null);
+    }
+
     @Override
     public void provisionOutputFiles(String stdout, String stderr, String wdlOutputTarget) {
+        final BiPredicate<Path, String> alreadyUploaded = stopOutputStreaming();
         outputIntegrationOutput(workingDirectory + "/outputs/", stdout, stderr, FilenameUtils.getName(command.get(0)));
         Yaml yaml = new Yaml(new SafeConstructor());
         Map<String, Object> outputObj = yaml.load(stdout);
         if (outputMap.size() > 0) {
             System.out.println("Provisioning your output files to their final destinations");
             List<ImmutablePair<String, FileProvisioning.FileInfo>> outputList = CWLClient.registerOutputFiles(outputMap, outputObj, "");
-            this.fileProvisioning.uploadFiles(outputList);
+            this.fileProvisioning.uploadFiles(outputList, alreadyUploaded);
         }
     }
 
@@ -0,0 +1,223 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli.nested;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+
+import io.dockstore.client.cli.SwaggerUtility;
+import io.dockstore.common.FileProvisionUtil;
+import io.dockstore.common.FileProvisioning;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.configuration2.INIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the zip of each entry version downloaded for a launch, along with its unzipped tree, so that launching the same
+ * version again links the files into the working directory instead of downloading and unzipping them again.
+ *
+ * Bundles are stored by the sha-256 of their zip, so versions with the same contents share one. Versions point at their
+ * bundle through a key made of the server, the entry, the version and the metadata that changes with its contents, such as
+ * its commit. Looking a version up therefore needs the metadata of the entry, except for frozen versions, which can
+ * never change and are also recorded by name alone.
+ *
+ * Files are hard-linked into place where possible, so a launch must not modify the descriptors it was given.
+ */
+final class EntryBundleCache {
+
+    static final String ENTRY_BUNDLE_CACHE = "entry-bundle-cache";
+    static final String PRIMARY_DESCRIPTOR = "primary-descriptor";
+    static final String ZIP_FILENAME = "zip-filename";
+    private static final Logger LOG = LoggerFactory.getLogger(EntryBundleCache.class);
+    private static final String BUNDLE = "bundle";
+    private static final String ZIP = "bundle.zip";
+    private static final String TREE = "tree";
+
+    private final Path keysDirectory;
+    private final Path bundlesDirectory;
+    private final String serverUrl;
+
+    /**
+     * @param serverUrl the webservice the entries are downloaded from, the same version of another server has a key of its own
+     */
+    EntryBundleCache(Path directory, String serverUrl) {
+        this.keysDirectory = directory.resolve("keys");
+        this.bundlesDirectory = directory.resolve("bundles");
+        this.serverUrl = serverUrl;
+    }
+
+    /**
+     * @return the cache in the bundles folder of the cache directory, so that --clean-cache removes it too, if it is turned
+     *     on, by default it is on when the input file cache is
+     */
+    static Optional<EntryBundleCache> fromConfig(INIConfiguration config) {
+        if (!config.getBoolean(ENTRY_BUNDLE_CACHE, FileProvisioning.isCacheOn(config))) {
+            return Optional.empty();
+        }
+        return Optional.of(new EntryBundleCache(Paths.get(FileProvisioning.getCacheDirectory(config), "bundles"),
+            config.getString("server-url", "https://dockstore.org/api")));
+    }
+
+    /**
+     * @param parts what identifies the contents of a version on the server, e.g. the entry, the version and its commit
+     * @return a key for {@link #lookup(String)} and {@link #store(Path, Properties, String...)}
+     */
+    String key(Object... parts) {
+        StringBuilder builder = new StringBuilder(serverUrl).append('\n');
+        for (Object part : parts) {
+            builder.append(part).append('\n');
+        }
+        return DigestUtils.sha256Hex(builder.toString());
+    }
+
+    /**
+     * @return the bundle of the key and what was recorded with it, empty if the key is not cached
+     */
+    Optional<Bundle> lookup(String key) {
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(keysDirectory.resolve(key), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOG.warn("Could not read entry bundle key " + key, e);
+            return Optional.empty();
+        }
+        final Path bundle = bundlesDirectory.resolve(properties.getProperty(BUNDLE, ""));
+        if (properties.getProperty(BUNDLE) == null || !Files.isDirectory(bundle)) {
+            return Optional.empty();
+        }
+        return Optional.of(new Bundle(bundle, properties));
+    }
+
+    /**
+     * Stores a downloaded zip, unzipped, and points the keys at it
+     *
+     * @param properties what to record with the keys, e.g. the primary descriptor
+     */
+    Bundle store(Path zip, Properties properties, String... keys) throws IOException {
+        final String hash;
+        try (InputStream inputStream = Files.newInputStream(zip)) {
+            hash = DigestUtils.sha256Hex(inputStream);
+        }
+        final Path bundle = bundlesDirectory.resolve(hash);
+        if (!Files.isDirectory(bundle)) {
+            // unzipped aside and moved into place so that a concurrent launch never sees half a bundle
+            Files.createDirectories(bundlesDirectory);
+            final Path temporary = bundlesDirectory.resolve(hash + "." + UUID.randomUUID() + ".tmp");
+            try {
+                Files.createDirectories(temporary.resolve(TREE));
+                link(zip, temporary.resolve(ZIP));
+                SwaggerUtility.unzipFile(temporary.resolve(ZIP).toFile(), temporary.resolve(TREE).toFile());
+                Files.move(temporary, bundle, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                LOG.debug("Bundle " + hash + " was stored by another launch");
+            } catch (IOException e) {
+                if (!Files.isDirectory(bundle)) {
+                    throw e;
+                }
+            } finally {
+                FileUtils.deleteQuietly(temporary.toFile());
+            }
+        }
+        final Properties recorded = new Properties();
+        recorded.putAll(properties);
+        recorded.setProperty(BUNDLE, hash);
+        for (String key : keys) {
+            FileProvisionUtil.writeAtomically(keysDirectory.resolve(key), writer -> recorded.store(writer, null));
+        }
+        return new Bundle(bundle, recorded);
+    }
+
+    /**
+     * Hard links a file into place, or copies it if it cannot be linked, replacing what was there
+     */
+    private static void link(Path source, Path target) throws IOException {
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. the working directory is on another file system than the cache
+            Files.copy(source, target);
+        }
+    }
+
+    /**
+     * A cached version of an entry
+     */
+    static final class Bundle {
+        private final Path directory;
+        private final Properties properties;
+
+        private Bundle(Path directory, Properties properties) {
+            this.directory = directory;
+            this.properties = properties;
+        }
+
+        String getProperty(String name) {
+            return properties.getProperty(name);
+        }
+
+        /**
+         * Links the zip to where it would have been downloaded to, and the unzipped tree into a directory if asked to
+         *
+         * @param zipFile   where to put the zip
+         * @param directory where to put the unzipped files, null to leave them out
+         */
+        void materialize(File zipFile, File directory) throws IOException {
+            link(this.directory.resolve(ZIP), zipFile.toPath());
+            if (directory == null) {
+                return;
+            }
+            final Path tree = this.directory.resolve(TREE);
+            final Path target = directory.toPath();
+            Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(target.resolve(tree.relativize(dir).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    link(file, target.resolve(tree.relativize(file).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli.nested;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.dockstore.client.cli.ArgumentUtility;
+import io.dockstore.common.Tracer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The stages of setting up a launch, such as loading Docker images, initializing the launcher, downloading the entry
+ * and provisioning its inputs. Each stage starts as soon as the stages it depends on are done, so that independent
+ * stages, which mostly wait on the network or the disk, run at the same time.
+ *
+ * {@link #await()} returns once every stage is done or throws as soon as one fails, in which case stages that have not
+ * started yet never start. The start and end of each stage are logged so the critical path of a launch can be seen.
+ *
+ * Stages do not exit the client themselves: {@link ArgumentUtility#errorMessage(String, int)} and
+ * {@link ArgumentUtility#exceptionMessage(Exception, String, int)} throw an {@link ArgumentUtility.ExitException} on a
+ * stage thread, which the thread that waits for the stages reports with its exit code.
+ */
+final class LaunchStages {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LaunchStages.class);
+
+    private final Map<String, CompletableFuture<Void>> stages = new LinkedHashMap<>();
+    private final Map<String, long[]> timings = new LinkedHashMap<>();
+    private final CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+    private final ExecutorService executorService;
+    private final long start = System.nanoTime();
+
+    LaunchStages() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executorService = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "dockstore-launch-stage-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param name         what the stage does, for logging and to depend on it
+     * @param stage        the work of the stage
+     * @param dependencies the names of stages that must be done before this one starts, which must have been added already
+     * @return this, to add more stages
+     */
+    synchronized LaunchStages add(String name, Stage stage, String... dependencies) {
+        final List<CompletableFuture<Void>> before = new ArrayList<>();
+        for (String dependency : dependencies) {
+            final CompletableFuture<Void> future = stages.get(dependency);
+            if (future == null) {
+                throw new IllegalArgumentException("Stage " + name + " depends on " + dependency + " which was not added before it");
+            }
+            before.add(future);
+        }
+        final CompletableFuture<Void> future = CompletableFuture.allOf(before.toArray(new CompletableFuture[0]))
+            .thenRunAsync(() -> run(name, stage), executorService);
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                firstFailure.completeExceptionally(throwable);
+            }
+        });
+        stages.put(name, future);
+        return this;
+    }
+
+    /**
+     * Waits for every stage to be done
+     *
+     * @throws Exception the failure of the first stage that failed, the stages that have not started yet are cancelled
+     */
+    void await() throws Exception {
+        final CompletableFuture<Void> all;
+        synchronized (this) {
+            all = CompletableFuture.allOf(stages.values().toArray(new CompletableFuture[0]));
+        }
+        try {
+            CompletableFuture.anyOf(all, firstFailure).get();
+        } catch (ExecutionException e) {
+            stages.values().forEach(future -> future.cancel(false));
+            throw unwrap(e.getCause());
+        } finally {
+            executorService.shutdown();
+            logTimings();
+        }
+    }
+
+    private void run(String name, Stage stage) {
+        final long stageStart = System.nanoTime();
+        LOG.info("Starting launch stage " + name);
+        ArgumentUtility.deferExits(true);
+        try (Tracer.Span ignored = Tracer.start("launch", name)) {
+            stage.run();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            ArgumentUtility.deferExits(false);
+            final long stageEnd = System.nanoTime();
+            synchronized (this) {
+                timings.put(name, new long[] {stageStart - start, stageEnd - start});
+            }
+        }
+    }
+
+    private synchronized void logTimings() {
+        StringBuilder builder = new StringBuilder("Launch stages, started and finished in ms since the launch started:");
+        String last = null;
+        long lastEnd = -1;
+        for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+            final long startMillis = TimeUnit.NANOSECONDS.toMillis(entry.getValue()[0]);
+            final long endMillis = TimeUnit.NANOSECONDS.toMillis(entry.getValue()[1]);
+            builder.append(System.lineSeparator()).append("  ").append(entry.getKey()).append(": ").append(startMillis).append(" - ")
+                .append(endMillis).append(" (").append(endMillis - startMillis).append(" ms)");
+            if (entry.getValue()[1] > lastEnd) {
+                lastEnd = entry.getValue()[1];
+                last = entry.getKey();
+            }
+        }
+        if (last != null) {
+            builder.append(System.lineSeparator()).append("  the last stage to finish was ").append(last);
+        }
+        LOG.info(builder.toString());
+    }
+
+    private static Exception unwrap(Throwable throwable) {
+        Throwable cause = throwable;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception)cause : new ExecutionException(cause);
+    }
+
+    /**
+     * The work of one stage
+     */
+    @FunctionalInterface
+    interface Stage {
+        void run() throws Exception;
+    }
+}
@@ -25,12 +25,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.ws.rs.core.GenericType;
-
 import com.google.common.base.Joiner;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
@@ -51,7 +50,6 @@ import io.swagger.client.model.StarRequest;
 import io.swagger.client.model.Tag;
 import io.swagger.client.model.ToolDescriptor;
 import io.swagger.client.model.User;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.EmailValidator;
 import org.slf4j.Logger;
@@ -83,6 +81,7 @@ import static io.swagger.client.model.DockstoreTool.ModeEnum.HOSTED;
 public class ToolClient extends AbstractEntryClient<DockstoreTool> {
     public static final String UPDATE_TOOL = "update_tool";
     private static final Logger LOG = LoggerFactory.getLogger(ToolClient.class);
+    private static final String BUNDLE_ENTRY_TYPE = "containers";
     private final Client client;
     private ContainersApi containersApi;
     private ContainertagsApi containerTagsApi;
@@ -679,6 +678,17 @@ public class ToolClient extends AbstractEntryClient<DockstoreTool> {
         String[] parts = toolpath.split(":");
         String path = parts[0];
 
+        try {
+            // a version that never changes is taken from the entry bundle cache without asking the webservice about the tool
+            Optional<EntryBundleCache.Bundle> immutableVersion = lookupImmutableVersion(BUNDLE_ENTRY_TYPE, toolpath);
+            if (immutableVersion.isPresent()) {
+                immutableVersion.get().materialize(new File(immutableVersion.get().getProperty(EntryBundleCache.ZIP_FILENAME)), unzip ? directory : null);
+                return new File(directory, immutableVersion.get().getProperty(primaryDescriptorProperty(type)));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("could not write zip file to disk, out of space?");
+        }
+
         DockstoreTool container = getDockstoreTool(path);
 
         final String fixTag = getVersionID(toolpath);
@@ -686,18 +696,20 @@ public class ToolClient extends AbstractEntryClient<DockstoreTool> {
         Optional<Tag> first = container.getWorkflowVersions().stream().filter(foo -> foo.getName().equalsIgnoreCase(fixTag)).findFirst();
         if (first.isPresent()) {
             Long versionId = first.get().getId();
-            // https://github.com/dockstore/dockstore/issues/1712 client seems to use jersey logging which is not controlled from logback
-            containersApi.getApiClient().setDebugging(false);
-            byte[] arbitraryURL = SwaggerUtility
-                .getArbitraryURL("/containers/" + container.getId() + "/zip/" + versionId, new GenericType<byte[]>() {
-                }, containersApi.getApiClient());
-            containersApi.getApiClient().setDebugging(Client.DEBUG.get());
             try {
                 File zipFile = new File(zipFilename(container));
-                FileUtils.writeByteArrayToFile(zipFile, arbitraryURL, false);
-                if (unzip) {
-                    SwaggerUtility.unzipFile(zipFile, directory);
+                // the commit and build time change whenever the contents of the version do
+                List<Object[]> keys = new ArrayList<>();
+                keys.add(new Object[] { BUNDLE_ENTRY_TYPE, container.getId(), versionId, first.get().getCommitID(), first.get().getLastBuilt() });
+                if (parts.length > 1 && Boolean.TRUE.equals(first.get().isFrozen())) {
+                    keys.add(new Object[] { BUNDLE_ENTRY_TYPE, path, parts[1] });
                 }
+                Properties recorded = new Properties();
+                recorded.setProperty(EntryBundleCache.ZIP_FILENAME, zipFile.getName());
+                recorded.setProperty(primaryDescriptorProperty(ToolDescriptor.TypeEnum.CWL), Objects.toString(first.get().getCwlPath(), ""));
+                recorded.setProperty(primaryDescriptorProperty(ToolDescriptor.TypeEnum.WDL), Objects.toString(first.get().getWdlPath(), ""));
+                downloadEntryZip("/containers/" + container.getId() + "/zip/" + versionId, containersApi.getApiClient(), zipFile,
+                    unzip ? directory : null, recorded, keys.toArray(new Object[0][]));
                 return new File(directory, type == ToolDescriptor.TypeEnum.CWL ? first.get().getCwlPath() : first.get().getWdlPath());
             } catch (IOException e) {
                 throw new RuntimeException("could not write zip file to disk, out of space?");
@@ -707,6 +719,10 @@ public class ToolClient extends AbstractEntryClient<DockstoreTool> {
         }
     }
 
+    private static String primaryDescriptorProperty(ToolDescriptor.TypeEnum type) {
+        return EntryBundleCache.PRIMARY_DESCRIPTOR + "." + (type == ToolDescriptor.TypeEnum.CWL ? "cwl" : "wdl");
+    }
+
     /**
      * Returns the version ID for the provided entry path
      * @param entryPath Tool path
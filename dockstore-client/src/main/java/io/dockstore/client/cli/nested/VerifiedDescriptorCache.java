@@ -0,0 +1,178 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli.nested;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.dockstore.common.FileProvisionUtil;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the sha-256 checksums of the descriptors of each entry version that were verified against the TRS endpoint,
+ * so that relaunching a version whose downloaded descriptors are unchanged does not ask the endpoint again.
+ *
+ * Each version of each server has a file named after it with a line per file downloaded for the version, in the format
+ * of sha256sum, where files that are not descriptors have - for a checksum. A version is only recorded once all of its
+ * descriptors were verified, so a version with a descriptor the endpoint has no checksum for is always checked again.
+ * Any file added to or missing from the download since means the version is checked again as well, as it may be a
+ * descriptor that was never verified.
+ */
+final class VerifiedDescriptorCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VerifiedDescriptorCache.class);
+    private static final String SEPARATOR = "  ";
+    private static final String NOT_A_DESCRIPTOR = "-";
+
+    private final Path directory;
+    private final String serverUrl;
+
+    /**
+     * @param serverUrl the webservice the TRS endpoint belongs to, versions of other servers are verified separately
+     */
+    VerifiedDescriptorCache(Path directory, String serverUrl) {
+        this.directory = directory;
+        this.serverUrl = serverUrl;
+    }
+
+    /**
+     * @return the cache in ~/.dockstore/verified-descriptors
+     */
+    static VerifiedDescriptorCache getDefault(String serverUrl) {
+        return new VerifiedDescriptorCache(Paths.get(System.getProperty("user.home"), ".dockstore", "verified-descriptors"), serverUrl);
+    }
+
+    /**
+     * Hashes a file as it is read rather than reading it into memory first
+     */
+    static String sha256(File file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+            return DigestUtils.sha256Hex(inputStream);
+        }
+    }
+
+    /**
+     * @param localDirectory where the descriptors of the version were downloaded to
+     * @return true if the version was verified before, the same files were downloaded for it and each of its descriptors
+     *     still has the checksum it was verified with
+     */
+    boolean isVerified(String type, String trsId, String version, File localDirectory) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(getFile(type, trsId, version), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            LOG.warn("Could not read verified descriptor checksums of " + trsId + ":" + version, e);
+            return false;
+        }
+        if (lines.isEmpty()) {
+            return false;
+        }
+        final Map<Path, String> recorded = new HashMap<>();
+        for (String line : lines) {
+            final int separator = line.indexOf(SEPARATOR);
+            if (separator < 0) {
+                return false;
+            }
+            recorded.put(resolve(localDirectory, line.substring(separator + SEPARATOR.length())), line.substring(0, separator));
+        }
+        try {
+            if (!recorded.keySet().equals(listFiles(localDirectory))) {
+                LOG.info("Other files were downloaded for " + trsId + ":" + version + " than when it was verified");
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        for (Map.Entry<Path, String> file : recorded.entrySet()) {
+            if (NOT_A_DESCRIPTOR.equals(file.getValue())) {
+                continue;
+            }
+            try {
+                if (!file.getValue().equals(sha256(file.getKey().toFile()))) {
+                    LOG.info(file.getKey() + " changed since " + trsId + ":" + version + " was verified");
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param checksums      the verified sha-256 checksum of each descriptor of the version by its path
+     * @param localDirectory where the descriptors of the version were downloaded to
+     */
+    void record(String type, String trsId, String version, Map<String, String> checksums, File localDirectory) {
+        try {
+            final Set<Path> others = listFiles(localDirectory);
+            for (String descriptor : checksums.keySet()) {
+                others.remove(resolve(localDirectory, descriptor));
+            }
+            final Path root = localDirectory.toPath().toAbsolutePath().normalize();
+            FileProvisionUtil.writeAtomically(getFile(type, trsId, version), writer -> {
+                for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+                    writer.write(checksum.getValue() + SEPARATOR + checksum.getKey());
+                    writer.newLine();
+                }
+                for (Path other : others) {
+                    writer.write(NOT_A_DESCRIPTOR + SEPARATOR + FilenameUtils.separatorsToUnix(root.relativize(other).toString()));
+                    writer.newLine();
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not record verified descriptor checksums of " + trsId + ":" + version, e);
+        }
+    }
+
+    /**
+     * @return a file downloaded for a version, if the path is absolute, it is converted to a relative path by the File constructor
+     */
+    private static Path resolve(File localDirectory, String path) {
+        return new File(localDirectory, path).toPath().toAbsolutePath().normalize();
+    }
+
+    private static Set<Path> listFiles(File localDirectory) throws IOException {
+        try (Stream<Path> files = Files.walk(localDirectory.toPath())) {
+            // sorted so that the files are recorded in the same order from launch to launch
+            return files.filter(Files::isRegularFile).map(file -> file.toAbsolutePath().normalize())
+                .collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private Path getFile(String type, String trsId, String version) {
+        return directory.resolve(DigestUtils.sha256Hex(serverUrl + '\n' + type + '\n' + trsId + '\n' + version));
+    }
+}
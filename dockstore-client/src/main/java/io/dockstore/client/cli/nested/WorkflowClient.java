@@ -25,11 +25,10 @@ import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import javax.ws.rs.core.GenericType;
-
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
@@ -52,7 +51,6 @@ import io.swagger.client.model.ToolDescriptor;
 import io.swagger.client.model.User;
 import io.swagger.client.model.Workflow;
 import io.swagger.client.model.WorkflowVersion;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.EnumUtils;
@@ -97,6 +95,7 @@ public class WorkflowClient extends AbstractEntryClient<Workflow> {
     public static final String GITHUB_APP_COMMAND_ERROR = "Command not supported for GitHub App entries";
     protected static final Logger LOG = LoggerFactory.getLogger(WorkflowClient.class);
     private static final String UPDATE_WORKFLOW = "update_workflow";
+    private static final String BUNDLE_ENTRY_TYPE = "workflows";
     protected final WorkflowsApi workflowsApi;
     protected final UsersApi usersApi;
     protected final Client client;
@@ -339,6 +338,13 @@ public class WorkflowClient extends AbstractEntryClient<Workflow> {
     public File downloadTargetEntry(String toolpath, ToolDescriptor.TypeEnum type, boolean unzip, File directory) throws IOException {
         String[] parts = toolpath.split(":");
         String path = parts[0];
+        // a version that never changes is taken from the entry bundle cache without asking the webservice about the workflow
+        Optional<EntryBundleCache.Bundle> immutableVersion = lookupImmutableVersion(BUNDLE_ENTRY_TYPE, toolpath);
+        if (immutableVersion.isPresent()) {
+            File zipFile = new File(directory, immutableVersion.get().getProperty(EntryBundleCache.ZIP_FILENAME));
+            immutableVersion.get().materialize(zipFile, unzip ? directory : null);
+            return unzip ? new File(directory, immutableVersion.get().getProperty(EntryBundleCache.PRIMARY_DESCRIPTOR)) : zipFile;
+        }
         // match behaviour from getDescriptorFromServer, use master if no version is provided
         Workflow workflow = findAndGetDockstoreWorkflowByPath(path, "versions", true, true);
         String tag = getVersionID(toolpath);
@@ -352,18 +358,22 @@ public class WorkflowClient extends AbstractEntryClient<Workflow> {
                     + " workflow version that is recognized as valid by Dockstore.", CLIENT_ERROR);
             }
             Long versionId = first.get().getId();
-            // https://github.com/dockstore/dockstore/issues/1712 client seems to use jersey logging which is not controlled from logback
-            workflowsApi.getApiClient().setDebugging(false);
-            byte[] arbitraryURL = SwaggerUtility
-                .getArbitraryURL("/workflows/" + workflow.getId() + "/zip/" + versionId, new GenericType<byte[]>() {
-                }, workflowsApi.getApiClient());
-            workflowsApi.getApiClient().setDebugging(Client.DEBUG.get());
             File zipFile = new File(directory, zipFilename(workflow));
-            FileUtils.writeByteArrayToFile(zipFile, arbitraryURL, false);
+
+            // the commit and modification time change whenever the contents of the version do
+            List<Object[]> keys = new ArrayList<>();
+            keys.add(new Object[] { BUNDLE_ENTRY_TYPE, workflow.getId(), versionId, first.get().getCommitID(), first.get().getLastModified() });
+            if (parts.length > 1 && Boolean.TRUE.equals(first.get().isFrozen())) {
+                keys.add(new Object[] { BUNDLE_ENTRY_TYPE, path, parts[1] });
+            }
+            Properties recorded = new Properties();
+            recorded.setProperty(EntryBundleCache.ZIP_FILENAME, zipFile.getName());
+            recorded.setProperty(EntryBundleCache.PRIMARY_DESCRIPTOR, first.get().getWorkflowPath());
+            downloadEntryZip("/workflows/" + workflow.getId() + "/zip/" + versionId, workflowsApi.getApiClient(), zipFile, unzip ? directory : null,
+                recorded, keys.toArray(new Object[0][]));
 
             // If we unzip the file, we can provide a path to the primary descriptor, otherwise just provide a path to the zip file
             if (unzip) {
-                SwaggerUtility.unzipFile(zipFile, directory);
                 return new File(directory, first.get().getWorkflowPath());
             }
             return zipFile;
@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records how far a download got in a [destination].resume file next to the destination, so that a retry can pick up
+ * where the failed attempt stopped. The length and validator (ETag or modification time) of the source are recorded too
+ * and a download is only resumed if the source still reports the same ones, so that two versions of a file never get
+ * stitched together.
+ */
+final class DownloadResumeState {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadResumeState.class);
+    private static final String RESUME_SUFFIX = ".resume";
+    private static final String URL = "url";
+    private static final String SIZE = "size";
+    private static final String VALIDATOR = "validator";
+    private static final String SEGMENTS = "segments";
+    private static final String POSITION = "position.";
+
+    private final Path destination;
+    private final String url;
+    private final long size;
+    private final String validator;
+    private final AtomicLongArray positions;
+
+    /**
+     * @param destination where the file is downloaded to
+     * @param url         where the file is downloaded from
+     * @param size        the length of the source
+     * @param validator   identifies the version of the source
+     * @param positions   for each segment of the download, the offset of the next byte to fetch
+     */
+    DownloadResumeState(Path destination, String url, long size, String validator, long[] positions) {
+        this.destination = destination;
+        this.url = url;
+        this.size = size;
+        this.validator = validator;
+        this.positions = new AtomicLongArray(positions);
+    }
+
+    /**
+     * @return the recorded state of an earlier attempt at the same download, empty if there was none or the source changed since
+     */
+    static Optional<DownloadResumeState> load(Path destination, String url, long size, String validator, int segments) {
+        final Path stateFile = getStatePath(destination);
+        if (!Files.exists(stateFile) || !Files.exists(destination)) {
+            return Optional.empty();
+        }
+        final Properties state = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            state.load(reader);
+            if (!url.equals(state.getProperty(URL)) || size != Long.parseLong(state.getProperty(SIZE, "-1")) || !validator.equals(state.getProperty(VALIDATOR))
+                || segments != Integer.parseInt(state.getProperty(SEGMENTS, "-1"))) {
+                System.out.println("Source of " + destination + " changed since the last attempt, downloading it from the start");
+                return Optional.empty();
+            }
+            final long[] positions = new long[segments];
+            for (int i = 0; i < segments; i++) {
+                positions[i] = Long.parseLong(state.getProperty(POSITION + i));
+            }
+            return Optional.of(new DownloadResumeState(destination, url, size, validator, positions));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read " + stateFile + ", downloading " + url + " from the start", e);
+            return Optional.empty();
+        }
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    String getValidator() {
+        return validator;
+    }
+
+    int getSegments() {
+        return positions.length();
+    }
+
+    long getPosition(int segment) {
+        return positions.get(segment);
+    }
+
+    void setPosition(int segment, long position) {
+        positions.set(segment, position);
+    }
+
+    /**
+     * Records the current positions, caller must make sure the bytes before them are on disk.
+     */
+    synchronized void save() {
+        final Properties state = new Properties();
+        state.setProperty(URL, url);
+        state.setProperty(SIZE, Long.toString(size));
+        state.setProperty(VALIDATOR, validator);
+        state.setProperty(SEGMENTS, Integer.toString(positions.length()));
+        for (int i = 0; i < positions.length(); i++) {
+            state.setProperty(POSITION + i, Long.toString(positions.get(i)));
+        }
+        try {
+            FileProvisionUtil.writeAtomically(getStatePath(destination), writer -> state.store(writer, null));
+        } catch (IOException e) {
+            LOG.warn("Could not record progress of " + url + ", a retry will start from the beginning", e);
+        }
+    }
+
+    /**
+     * Called once the download is complete, or given up on
+     */
+    void delete() {
+        delete(destination);
+    }
+
+    static void delete(Path destination) {
+        try {
+            Files.deleteIfExists(getStatePath(destination));
+        } catch (IOException e) {
+            LOG.warn("Could not delete " + getStatePath(destination), e);
+        }
+    }
+
+    private static Path getStatePath(Path destination) {
+        return destination.resolveSibling(destination.getFileName() + RESUME_SUFFIX);
+    }
+}
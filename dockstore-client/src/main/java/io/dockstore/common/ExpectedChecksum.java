@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A checksum an input is expected to have, as given in a parameter file. CWL writes these as algorithm$value,
+ * e.g. sha1$2ef7bde608ce5404e97d5f042f95f89f1c232871, algorithm:value and names like sha-256 are accepted too.
+ */
+final class ExpectedChecksum {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExpectedChecksum.class);
+
+    private final String algorithm;
+    private final String value;
+
+    ExpectedChecksum(String algorithm, String value) {
+        this.algorithm = algorithm;
+        this.value = value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param checksum a checksum from a parameter file
+     * @return the checksum, empty if it is malformed or uses an algorithm that is not supported, in which case it is not verified
+     */
+    static Optional<ExpectedChecksum> parse(String checksum) {
+        if (checksum == null) {
+            return Optional.empty();
+        }
+        final int separator = checksum.indexOf('$') >= 0 ? checksum.indexOf('$') : checksum.indexOf(':');
+        if (separator <= 0 || separator == checksum.length() - 1) {
+            LOG.warn("Ignoring malformed checksum " + checksum + ", expected algorithm$value");
+            return Optional.empty();
+        }
+        final String algorithm = checksum.substring(0, separator).replace("-", "").toLowerCase(Locale.ROOT);
+        if (!StreamingDigest.isSupported(algorithm)) {
+            LOG.warn("Ignoring checksum " + checksum + ", only md5, sha1, sha256 and crc32c are verified");
+            return Optional.empty();
+        }
+        return Optional.of(new ExpectedChecksum(algorithm, checksum.substring(separator + 1).trim()));
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param checksums checksums of a file by algorithm, which must include this one's algorithm
+     */
+    boolean matches(Map<String, String> checksums) {
+        return value.equals(checksums.get(algorithm));
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + "$" + value;
+    }
+}
@@ -15,6 +15,7 @@
  */
 package io.dockstore.common;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -30,9 +31,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.LongConsumer;
 
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
@@ -42,10 +45,12 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.net.io.CopyStreamEvent;
 import org.apache.commons.net.io.CopyStreamListener;
 import org.apache.commons.net.io.Util;
+import org.apache.commons.vfs2.Capability;
 import org.apache.commons.vfs2.FileContent;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.RandomAccessContent;
 import org.apache.commons.vfs2.UserAuthenticationData;
 import org.apache.commons.vfs2.VFS;
 import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
@@ -54,9 +59,13 @@ import org.apache.commons.vfs2.provider.ftp.FtpFileSystemConfigBuilder;
 import org.apache.commons.vfs2.provider.http4.Http4FileProvider;
 import org.apache.commons.vfs2.provider.http4.Http4FileSystemConfigBuilder;
 import org.apache.commons.vfs2.provider.http4s.Http4sFileProvider;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.CookieSpecs;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ro.fortsoft.pf4j.PluginManager;
@@ -69,34 +78,30 @@ public final class FileProvisionUtil {
 
     static final String PLUGINS_JSON_FILENAME = "plugins.json";
     private static final Logger LOG = LoggerFactory.getLogger(FileProvisionUtil.class);
+    private static final FileSystemOptions FILE_SYSTEM_OPTIONS = new FileSystemOptions();
+
+    static {
+        // force passive mode for FTP (see emails from Keiran)
+        FtpFileSystemConfigBuilder.getInstance().setPassiveMode(FILE_SYSTEM_OPTIONS, true);
+    }
 
     private FileProvisionUtil() {
         // disable utility constructor
     }
 
     static boolean downloadFromVFS2(String path, Path targetFilePath, int threads) {
+        return downloadFromVFS2(path, targetFilePath, threads, null);
+    }
 
-        /** An extension of the Http4sFileProvider class to allow for setting the cookie specification to something
-         * other than DEFAULT. This cannot be set through the fileSystemOptions argument.
-         * Github responds with a cookie header containing a date in 4-digit year format.
-         * Cookie spec DEFAULT only allows 2-digit years; STANDARD allows 4-digits.
-         * Addresses #2261 warning messages, see https://github.com/dockstore/dockstore/issues/2261
-         */
-        class CustomHttp4sFileProvider extends Http4sFileProvider {
-            public HttpClientContext createHttpClientContext(final Http4FileSystemConfigBuilder builder,
-                                                             final GenericFileName rootName, final FileSystemOptions fileSystemOptions,
-                                                             final UserAuthenticationData authData) throws FileSystemException {
-
-                HttpClientContext def = super.createHttpClientContext(builder, rootName, fileSystemOptions, authData);
-                if (rootName.getHostName().equals("github.com")) {
-                    def.setRequestConfig(RequestConfig.copy(def.getRequestConfig()).setCookieSpec(CookieSpecs.STANDARD).build());
-                }
-                return def;
-            }
-        }
+    /**
+     * @param digest fed the downloaded bytes as they are written, null to skip computing checksums
+     */
+    static boolean downloadFromVFS2(String path, Path targetFilePath, int threads, StreamingDigest digest) {
 
         // VFS call, see https://github.com/abashev/vfs-s3/tree/branch-2.3.x and
         // https://commons.apache.org/proper/commons-vfs/filesystems.html
+        // what the source looked like when this attempt started, recorded if it fails so that a retry can resume
+        DownloadResumeState resumeState = null;
         try {
             DefaultFileSystemManager fsManager = (DefaultFileSystemManager)VFS.getManager();
             // https://issues.apache.org/jira/browse/VFS-360 replace http and http prefix with http and http4 to properly use httpclient4
@@ -106,10 +111,10 @@ public final class FileProvisionUtil {
                 // TODO: http not provided by default via commons-httpclient 4
                 // https://github.com/apache/commons-vfs/blob/commons-vfs-2.3/commons-vfs2/src/test/java/org/apache/commons/vfs2/provider/http4s/test/Http4sGetContentInfoTest.java#L42
                 if (!fsManager.hasProvider("http4")) {
-                    fsManager.addProvider("http4", new Http4FileProvider());
+                    fsManager.addProvider("http4", new PooledHttp4FileProvider());
                 }
                 if (!fsManager.hasProvider("http4s")) {
-                    fsManager.addProvider("http4s", new CustomHttp4sFileProvider());
+                    fsManager.addProvider("http4s", new PooledHttp4sFileProvider());
                 }
                 if (path.startsWith("http:")) {
                     newPath = newPath.replaceFirst("http:", "http4:");
@@ -118,28 +123,108 @@ public final class FileProvisionUtil {
                 }
             }
 
-            // force passive mode for FTP (see emails from Keiran)
-            FileSystemOptions opts = new FileSystemOptions();
-            FtpFileSystemConfigBuilder.getInstance().setPassiveMode(opts, true);
-
             // trigger a copy from the URL to a local file path that's a UUID to avoid collision
-            try (FileObject src = fsManager.resolveFile(newPath, opts);
+            try (FileObject src = fsManager.resolveFile(newPath, FILE_SYSTEM_OPTIONS);
                 FileObject dest = fsManager.resolveFile(targetFilePath.toFile().getAbsolutePath())) {
-                copyFromInputStreamToOutputStream(src, dest, threads);
+                // vfs2 cannot check the ETag, large http files are resumed with validated range requests by the segmented downloader instead
+                resumeState = path.startsWith("http") ? null : getResumeState(src, path, targetFilePath);
+                final long offset = resumeState == null ? 0 : getResumeOffset(resumeState, path, targetFilePath);
+                if (digest != null && offset > 0) {
+                    // the bytes from the failed attempt never made it into this digest
+                    digest.update(targetFilePath, offset);
+                }
+                copyFromInputStreamToOutputStream(src, dest, threads, offset, digest);
             }
+            DownloadResumeState.delete(targetFilePath);
             return true;
         } catch (IOException e) {
             LOG.error(e.getMessage());
+            if (resumeState != null) {
+                recordProgress(resumeState, targetFilePath);
+            }
             return false;
         }
     }
 
+    /**
+     * @return the size and modification time of the source, to resume the download with if this attempt fails, null if
+     *     the provider does not support random access
+     */
+    private static DownloadResumeState getResumeState(FileObject src, String path, Path targetFilePath) {
+        try {
+            if (!src.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_READ)) {
+                return null;
+            }
+            final FileContent srcContent = src.getContent();
+            return new DownloadResumeState(targetFilePath, path, srcContent.getSize(), Long.toString(srcContent.getLastModifiedTime()), new long[] {0});
+        } catch (IOException e) {
+            LOG.debug("Cannot resume downloads of " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Picks up a download that failed part way through, as long as the source still has the size and modification time
+     * recorded when the failed attempt started.
+     *
+     * @return the number of bytes of the source already in the target file, 0 to download it from the start
+     */
+    private static long getResumeOffset(DownloadResumeState resumeState, String path, Path targetFilePath) {
+        try {
+            final long existing = Files.exists(targetFilePath) ? Files.size(targetFilePath) : 0;
+            if (existing > 0 && existing < resumeState.getSize()
+                && DownloadResumeState.load(targetFilePath, path, resumeState.getSize(), resumeState.getValidator(), 1).isPresent()) {
+                System.out.println("Resuming download of " + path + " with " + existing + " of " + resumeState.getSize() + " bytes already downloaded");
+                return existing;
+            }
+        } catch (IOException e) {
+            LOG.debug("Cannot resume downloads of " + path, e);
+        }
+        return 0;
+    }
+
+    /**
+     * Records how much of the source a failed attempt wrote, so that the next attempt can carry on from there
+     */
+    private static void recordProgress(DownloadResumeState resumeState, Path targetFilePath) {
+        try {
+            if (Files.exists(targetFilePath)) {
+                resumeState.setPosition(0, Files.size(targetFilePath));
+                resumeState.save();
+            }
+        } catch (IOException e) {
+            LOG.debug("Cannot record how much of " + targetFilePath + " was downloaded", e);
+        }
+    }
+
     /**
      * Copy from file object to file object while displaying progress, will not close streams
      *
      * @throws IOException throws an exception if unable to provision input files
      */
     static void copyFromInputStreamToOutputStream(FileObject src, FileObject dest, int threads) throws IOException {
+        copyFromInputStreamToOutputStream(src, dest, threads, 0);
+    }
+
+    /**
+     * Copy from file object to file object while displaying progress, will not close streams
+     *
+     * @param offset where to start reading the source, the destination is appended to if this is not 0
+     * @throws IOException throws an exception if unable to provision input files
+     */
+    static void copyFromInputStreamToOutputStream(FileObject src, FileObject dest, int threads, long offset) throws IOException {
+        copyFromInputStreamToOutputStream(src, dest, threads, offset, null);
+    }
+
+    /**
+     * Copy from file object to file object while displaying progress and computing checksums of what is copied, will not close streams
+     *
+     * @param offset where to start reading the source, the destination is appended to if this is not 0
+     * @param digest fed the copied bytes, null to skip computing checksums
+     * @throws IOException throws an exception if unable to provision input files
+     */
+    static void copyFromInputStreamToOutputStream(FileObject src, FileObject dest, int threads, long offset, StreamingDigest digest)
+        throws IOException {
         CopyStreamListener listener = new CopyStreamListener() {
             ProgressPrinter printer = new ProgressPrinter(threads, threads > 1 ? src.toString() : "");
 
@@ -151,7 +236,7 @@ public final class FileProvisionUtil {
             @Override
             public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
                 synchronized (System.out) {
-                    printer.handleProgress(totalBytesTransferred, streamSize);
+                    printer.handleProgress(offset + totalBytesTransferred, streamSize);
                 }
             }
         };
@@ -160,8 +245,9 @@ public final class FileProvisionUtil {
 
         try (FileContent srcContent = src.getContent();
             FileContent destContent = dest.getContent();
-            InputStream inputStream = srcContent.getInputStream();
-                OutputStream outputStream = destContent.getOutputStream()) {
+            InputStream inputStream = offset > 0 ? getInputStream(srcContent, offset) : srcContent.getInputStream();
+                OutputStream destStream = destContent.getOutputStream(offset > 0);
+                OutputStream outputStream = digest == null ? destStream : digest.wrap(destStream)) {
             // a larger buffer improves copy performance
             // we can also split this (local file copy) out into a plugin later
             final int largeBuffer = 100;
@@ -175,6 +261,41 @@ public final class FileProvisionUtil {
         }
     }
 
+    /**
+     * Copy from file object to file object without printing progress, for files copied as part of a batch that reports
+     * progress as a whole, will not close streams
+     *
+     * @param progress told how many bytes were copied each time a buffer is written
+     * @throws IOException throws an exception if unable to provision the file
+     */
+    static void copyFromInputStreamToOutputStream(FileObject src, FileObject dest, LongConsumer progress) throws IOException {
+        CopyStreamListener listener = new CopyStreamListener() {
+            @Override
+            public void bytesTransferred(CopyStreamEvent event) {
+                /* do nothing */
+            }
+
+            @Override
+            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+                progress.accept(bytesTransferred);
+            }
+        };
+        try (FileContent srcContent = src.getContent();
+            FileContent destContent = dest.getContent();
+            InputStream inputStream = srcContent.getInputStream();
+            OutputStream outputStream = destContent.getOutputStream()) {
+            final int largeBuffer = 100;
+            Util.copyStream(inputStream, outputStream, Util.DEFAULT_COPY_BUFFER_SIZE * largeBuffer, getSize(src).orElse(CopyStreamEvent.UNKNOWN_STREAM_SIZE),
+                listener);
+        }
+    }
+
+    private static InputStream getInputStream(FileContent srcContent, long offset) throws IOException {
+        RandomAccessContent randomAccessContent = srcContent.getRandomAccessContent(RandomAccessMode.READ);
+        randomAccessContent.seek(offset);
+        return randomAccessContent.getInputStream();
+    }
+
     private static Optional<Long> getSize(FileObject src)  {
         try {
             FileContent srcContent = src.getContent();
@@ -184,6 +305,26 @@ public final class FileProvisionUtil {
         }
     }
 
+    /**
+     * Writes a file aside and moves it into place, so that a concurrent launch never reads half of it
+     *
+     * @param file     the file to write, its directory is created if it does not exist
+     * @param contents writes the contents of the file
+     */
+    public static void writeAtomically(Path file, ContentWriter contents) throws IOException {
+        final Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                contents.write(writer);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(temporary.toFile());
+        }
+    }
+
     public static PluginManager getPluginManager(INIConfiguration config) {
         String filePluginLocation = getFilePluginLocation(config);
         // create plugin directory if it does not exist
@@ -320,4 +461,70 @@ public final class FileProvisionUtil {
         }
         return false;
     }
+
+    /**
+     * Lets vfs2 borrow http connections from the shared {@link HttpConnectionPool} instead of opening a pool of its own
+     * for every host, so that connections are kept alive across downloads and shared with the segmented downloader.
+     */
+    private static class PooledHttp4FileProvider extends Http4FileProvider {
+        @Override
+        protected HttpClientConnectionManager createConnectionManager(final Http4FileSystemConfigBuilder builder,
+                                                                      final FileSystemOptions fileSystemOptions) {
+            return HttpConnectionPool.getConnectionManager();
+        }
+
+        @Override
+        protected HttpClient createHttpClient(final Http4FileSystemConfigBuilder builder, final GenericFileName rootName,
+                                              final FileSystemOptions fileSystemOptions) throws FileSystemException {
+            return createPooledHttpClient(createHttpClientBuilder(builder, rootName, fileSystemOptions));
+        }
+    }
+
+    /**
+     * The https counterpart of {@link PooledHttp4FileProvider}, which also allows for setting the cookie specification
+     * to something other than DEFAULT. This cannot be set through the fileSystemOptions argument.
+     * Github responds with a cookie header containing a date in 4-digit year format.
+     * Cookie spec DEFAULT only allows 2-digit years; STANDARD allows 4-digits.
+     * Addresses #2261 warning messages, see https://github.com/dockstore/dockstore/issues/2261
+     */
+    private static class PooledHttp4sFileProvider extends Http4sFileProvider {
+        @Override
+        protected HttpClientConnectionManager createConnectionManager(final Http4FileSystemConfigBuilder builder,
+                                                                      final FileSystemOptions fileSystemOptions) {
+            return HttpConnectionPool.getConnectionManager();
+        }
+
+        @Override
+        protected HttpClient createHttpClient(final Http4FileSystemConfigBuilder builder, final GenericFileName rootName,
+                                              final FileSystemOptions fileSystemOptions) throws FileSystemException {
+            return createPooledHttpClient(createHttpClientBuilder(builder, rootName, fileSystemOptions));
+        }
+
+        @Override
+        public HttpClientContext createHttpClientContext(final Http4FileSystemConfigBuilder builder,
+                                                         final GenericFileName rootName, final FileSystemOptions fileSystemOptions,
+                                                         final UserAuthenticationData authData) throws FileSystemException {
+
+            HttpClientContext def = super.createHttpClientContext(builder, rootName, fileSystemOptions, authData);
+            if (rootName.getHostName().equals("github.com")) {
+                def.setRequestConfig(RequestConfig.copy(def.getRequestConfig()).setCookieSpec(CookieSpecs.STANDARD).build());
+            }
+            return def;
+        }
+    }
+
+    /**
+     * vfs2 closes the client of a file system when it closes the file system, which must not shut the shared pool down
+     */
+    private static HttpClient createPooledHttpClient(HttpClientBuilder builder) {
+        return builder.setConnectionManagerShared(true).setKeepAliveStrategy(HttpConnectionPool.getKeepAliveStrategy()).build();
+    }
+
+    /**
+     * Writes the contents of a file for {@link #writeAtomically(Path, ContentWriter)}
+     */
+    @FunctionalInterface
+    public interface ContentWriter {
+        void write(BufferedWriter writer) throws IOException;
+    }
 }
@@ -19,21 +19,35 @@ package io.dockstore.common;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -43,9 +57,9 @@ import com.google.common.collect.Multimap;
 import com.google.common.net.UrlEscapers;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.dockstore.client.cli.Client;
+import io.dockstore.provision.ProgressPrinter;
 import io.dockstore.provision.PreProvisionInterface;
 import io.dockstore.provision.ProvisionInterface;
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.configuration2.INIConfiguration;
 import org.apache.commons.configuration2.SubnodeConfiguration;
 import org.apache.commons.io.FileUtils;
@@ -53,9 +67,8 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.commons.vfs2.AllFileSelector;
-import org.apache.commons.vfs2.FileName;
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemManager;
 import org.apache.commons.vfs2.VFS;
 import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
@@ -75,9 +88,29 @@ public class FileProvisioning {
 
     private static final int DEFAULT_RETRIES = 3;
     private static final String FILE_PROVISION_RETRIES = "file-provision-retries";
+
+    private static final String CACHE_MAX_BYTES = "cache-max-bytes";
+    private static final String CACHE_EVICTION_POLICY = "cache-eviction-policy";
+    private static final String CACHE_REVALIDATE_AFTER = "cache-revalidate-after";
+    private static final String CACHE_IMMUTABLE_URLS = "cache-immutable-urls";
+    private static final String FILE_STAGING_STRATEGIES = "file-staging-strategies";
+    private static final String FILE_PROVISION_THREADS_PER_HOST = "file-provision-threads-per-host";
+    private static final String FILE_PROVISION_THREADS_PER_SCHEME = "file-provision-threads-per-scheme";
+    private static final String FILE_PROVISION_RETRY_BUDGET = "file-provision-retry-budget";
+    private static final String FILE_PROVISION_BREAKER_THRESHOLD = "file-provision-breaker-threshold";
+    private static final String FILE_PROVISION_BREAKER_COOLDOWN = "file-provision-breaker-cooldown";
+    private static final String HTTP_MAX_CONNECTIONS_PER_HOST = "http-max-connections-per-host";
+    private static final String HTTP_MAX_CONNECTIONS = "http-max-connections";
+    private static final String OUTPUT_STREAMING = "output-streaming";
+    private static final String OUTPUT_STREAMING_QUIET_PERIOD = "output-streaming-quiet-period";
     private static final Logger LOG = LoggerFactory.getLogger(FileProvisioning.class);
     private final int threads;
     private final boolean cache;
+    private final LocalFileStager localFileStager;
+    private final InputFileCache inputFileCache;
+    private final FileProvisionUtilPluginWrapper vfs2Provisioner;
+    private final ProvisioningScheduler scheduler;
+    private final RetryPolicy retryPolicy;
 
     private List<ProvisionInterface> plugins;
     private List<PreProvisionInterface> preProvisionPlugins;
@@ -91,6 +124,32 @@ public class FileProvisioning {
         this.config = Utilities.parseConfig(configFile);
         this.threads = config.getInt(FileProvisioning.FILE_PROVISION_THREADS, FileProvisioning.DEFAULT_THREADS);
         this.cache = isCacheOn(config);
+        try {
+            this.localFileStager = LocalFileStager.parse(config.getString(FILE_STAGING_STRATEGIES, LocalFileStager.DEFAULT_STRATEGIES));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid " + FILE_STAGING_STRATEGIES, e);
+        }
+        this.inputFileCache = cache ? createInputFileCache(config, localFileStager.withoutSymlinks()) : null;
+        try {
+            this.scheduler = new ProvisioningScheduler(threads, config.getInt(FILE_PROVISION_THREADS_PER_HOST, 0),
+                ProvisioningScheduler.parseLimits(config.getString(FILE_PROVISION_THREADS_PER_SCHEME, "")));
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Invalid " + FILE_PROVISION_THREADS_PER_SCHEME, e);
+        }
+        this.retryPolicy = new RetryPolicy(config.getInt(FILE_PROVISION_RETRY_BUDGET, RetryPolicy.DEFAULT_RETRY_BUDGET),
+            config.getInt(FILE_PROVISION_BREAKER_THRESHOLD, RetryPolicy.DEFAULT_BREAKER_THRESHOLD),
+            TimeUnit.SECONDS.toMillis(config.getLong(FILE_PROVISION_BREAKER_COOLDOWN, TimeUnit.MILLISECONDS.toSeconds(RetryPolicy.DEFAULT_BREAKER_COOLDOWN_MILLIS))));
+        // set up before the segmented downloader, which grows the pool if it needs more connections per host
+        HttpConnectionPool.configure(config.getInt(HTTP_MAX_CONNECTIONS_PER_HOST, HttpConnectionPool.DEFAULT_MAX_PER_ROUTE),
+            config.getInt(HTTP_MAX_CONNECTIONS, HttpConnectionPool.DEFAULT_MAX_TOTAL));
+        this.vfs2Provisioner = new FileProvisionUtilPluginWrapper(threads);
+        Map<String, String> vfs2Config = new HashMap<>();
+        for (String key : new String[] {FileProvisionUtilPluginWrapper.SEGMENTED_DOWNLOAD_SEGMENTS, FileProvisionUtilPluginWrapper.SEGMENTED_DOWNLOAD_THRESHOLD}) {
+            if (config.containsKey(key)) {
+                vfs2Config.put(key, config.getString(key));
+            }
+        }
+        this.vfs2Provisioner.setConfiguration(vfs2Config);
         try {
             PluginManager pluginManager = FileProvisionUtil.getPluginManager(config);
 
@@ -128,20 +187,33 @@ public class FileProvisioning {
         }
     }
 
-    /*
-     * Returns the next wait interval, in milliseconds, using an exponential
-     * backoff algorithm.
-    */
-    private static long getWaitTimeExp(int retryCount) {
-        final long retryMultiplier = 100L;
-        return (long)Math.pow(2, retryCount) * retryMultiplier;
-    }
-
     public static String getCacheDirectory(INIConfiguration config) {
         return config.getString("cache-dir", System.getProperty("user.home") + File.separator + ".dockstore" + File.separator + "cache");
     }
 
-    private static boolean isCacheOn(INIConfiguration config) {
+    private static InputFileCache createInputFileCache(INIConfiguration config, LocalFileStager cacheStager) {
+        final String policy = config.getString(CACHE_EVICTION_POLICY, InputFileCache.EvictionPolicy.LRU.name());
+        final InputFileCache.EvictionPolicy evictionPolicy;
+        try {
+            evictionPolicy = InputFileCache.EvictionPolicy.valueOf(policy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Unknown " + CACHE_EVICTION_POLICY + " " + policy + ", expected lru or lfu", e);
+        }
+        final String immutableUrls = config.getString(CACHE_IMMUTABLE_URLS, "");
+        final Pattern immutableUrlPattern;
+        try {
+            immutableUrlPattern = immutableUrls.isEmpty() ? null : Pattern.compile(immutableUrls);
+        } catch (PatternSyntaxException e) {
+            throw new RuntimeException("Invalid " + CACHE_IMMUTABLE_URLS + " pattern " + immutableUrls, e);
+        }
+        return new InputFileCache(getCacheDirectory(config), config.getLong(CACHE_MAX_BYTES, 0L), evictionPolicy,
+            TimeUnit.SECONDS.toMillis(config.getLong(CACHE_REVALIDATE_AFTER, 0L)), immutableUrlPattern, cacheStager);
+    }
+
+    /**
+     * @return true if use-cache turns the input file cache on, which is also the default for the other caches in its directory
+     */
+    public static boolean isCacheOn(INIConfiguration config) {
         final String useCache = config.getString("use-cache", "false");
         return "true".equalsIgnoreCase(useCache) || "use".equalsIgnoreCase(useCache) || "T".equalsIgnoreCase(useCache);
     }
@@ -181,63 +253,131 @@ public class FileProvisioning {
      */
     public static void retryWrapper(ProvisionInterface provisionInterface, String targetPath, Path destinationPath, int maxRetries,
             boolean download, int threads) {
-        retryWrapper(provisionInterface, targetPath, destinationPath, maxRetries, download, null, threads);
+        // a transfer on its own is only limited by its own retries, with no run-wide budget and no circuit breaker
+        retryWrapper(provisionInterface, targetPath, destinationPath, maxRetries, download, null, threads, new RetryPolicy(0, 0, 0));
     }
 
+    /**
+     * @param retryPolicy how long to wait between attempts, shared with the other transfers of the run for its retry budget and circuit breakers
+     */
     private static void retryWrapper(ProvisionInterface provisionInterface, String targetPath, Path destinationPath, int maxRetries,
-            boolean download, String metadata, int threads) {
+            boolean download, String metadata, int threads, RetryPolicy retryPolicy) {
         if (provisionInterface == null) {
             provisionInterface = new FileProvisionUtilPluginWrapper(threads);
         }
-        boolean success;
+        final String host = RetryPolicy.getHost(targetPath);
+        boolean success = false;
         int retries = 0;
-        do {
-            if (retries > 0) {
-                long waitTime = getWaitTimeExp(retries);
-                System.err.print("Waiting for " + waitTime + " milliseconds due to failure\n");
-                // Wait for the result.
+        int attempts = 0;
+        long waitTime = 0;
+        try {
+            do {
+                if (retries > 0) {
+                    if (!retryPolicy.tryAcquireRetry()) {
+                        LOG.error("Retry budget for this run is used up, not retrying " + targetPath);
+                        break;
+                    }
+                    waitTime = retryPolicy.nextDelay(waitTime);
+                    System.err.print("Waiting for " + waitTime + " milliseconds due to failure\n");
+                    // Wait for the result.
+                    try {
+                        Thread.sleep(waitTime);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException("Could not wait for retry");
+                    }
+                }
+                if (!retryPolicy.allowRequest(host)) {
+                    throw new RuntimeException("Could not provision: " + targetPath + " to " + destinationPath + ", too many failures against " + host
+                        + " (" + retryPolicy.getMetrics() + ")");
+                }
+                attempts++;
                 try {
-                    Thread.sleep(waitTime);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException("Could not wait for retry");
+                    if (download) {
+                        success = provisionInterface.downloadFrom(targetPath, destinationPath);
+                    } else {
+                        // note that this is reversed
+                        success = provisionInterface.uploadTo(targetPath, destinationPath, Optional.ofNullable(metadata));
+                    }
+                } catch (RuntimeException e) {
+                    retryPolicy.recordFailure(host);
+                    throw e;
                 }
-            }
-            if (download) {
-                success = provisionInterface.downloadFrom(targetPath, destinationPath);
-            } else {
-                // note that this is reversed
-                success = provisionInterface.uploadTo(targetPath, destinationPath, Optional.ofNullable(metadata));
-            }
 
-            if (!success) {
-                LOG.error("Could not provision " + targetPath + " to " + destinationPath + " , for retry " + retries);
+                if (success) {
+                    retryPolicy.recordSuccess(host);
+                } else {
+                    retryPolicy.recordFailure(host);
+                    LOG.error("Could not provision " + targetPath + " to " + destinationPath + " , for retry " + retries);
+                }
+            } while (!success && retries++ < maxRetries);
+        } finally {
+            if (!success && download) {
+                // no later attempt will resume this download
+                DownloadResumeState.delete(destinationPath);
             }
-        } while (!success && retries++ < maxRetries);
+        }
+        Tracer.current().arg("retries", Math.max(attempts - 1, 0));
         if (!success) {
             throw new RuntimeException("Could not provision: " + targetPath + " to " + destinationPath);
         }
     }
 
     public void provisionInputFiles(String parameterFilePath, List<Pair<String, Path>> inputFiles) {
-        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        provisionInputFiles(parameterFilePath, inputFiles, Collections.emptyMap());
+    }
 
-        List<Future> futures = new ArrayList<>();
-        for (Pair<String, Path> inputFile : inputFiles) {
-            Future<Object> submit = executorService.submit(() -> {
-                provisionInputFile(parameterFilePath, inputFile.getLeft(), inputFile.getRight());
-                return true;
-            });
-            futures.add(submit);
+    /**
+     * @param parameterFilePath path of the parameter file
+     * @param inputFiles        pairs of where to provision each input from and where to provision it to
+     * @param expectedChecksums checksums from the parameter file by where the input is provisioned from, written as algorithm$value
+     */
+    public void provisionInputFiles(String parameterFilePath, List<Pair<String, Path>> inputFiles, Map<String, String> expectedChecksums) {
+        // local files are probed where they actually are so that they are ordered by size along with everything else
+        final Function<Pair<String, Path>, String> location = inputFile -> isLocalFile(inputFile.getLeft())
+            ? resolveLocalFile(parameterFilePath, inputFile.getLeft()).toString() : inputFile.getLeft();
+        // the HEAD requests sent to size http inputs also tell the cache and the segmented downloader what they need
+        final Map<String, HttpValidators> heads = new ConcurrentHashMap<>();
+        try {
+            scheduler.run(inputFiles, location, inputFile -> ProvisioningScheduler.probeSize(location.apply(inputFile), heads),
+                inputFile -> provisionInputFile(parameterFilePath, inputFile.getLeft(), inputFile.getRight(),
+                    ExpectedChecksum.parse(expectedChecksums.get(inputFile.getLeft())), Optional.ofNullable(heads.get(inputFile.getLeft()))));
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Input file downloading interrupted");
+            System.err.println("Provisioning " + retryPolicy.getMetrics());
+            throw new RuntimeException(e.getCause());
         }
-        for (Future future : futures) {
-            try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                System.err.println("Input file downloading interrupted");
-                throw new RuntimeException(e.getCause());
-            }
+        LOG.info("Provisioning " + retryPolicy.getMetrics());
+        if (cache) {
+            inputFileCache.saveIndex();
+        }
+    }
+
+    private static boolean isLocalFile(String targetPath) {
+        try {
+            return createURIFromUnencodedPath(targetPath).getScheme() == null;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param parameterFilePath path of the parameter file, empty for WDL
+     * @param targetPath        a local path from the parameter file
+     * @return the path, relative paths are resolved against the directory of the parameter file or the working directory for WDL
+     */
+    private static Path resolveLocalFile(String parameterFilePath, String targetPath) {
+        String workingDir = System.getProperty("user.dir");
+        // TODO: this is basically, if not WDL then try to find out the parent directory
+        if (!"".equals(parameterFilePath)) {
+            workingDir = Paths.get(parameterFilePath).toAbsolutePath().getParent().toString();
+        }
+        if (targetPath.startsWith("/")) {
+            // absolute path
+            return Paths.get(targetPath);
+        } else {
+            // relative path
+            return Paths.get(workingDir, targetPath);
         }
-        executorService.shutdownNow();
     }
 
     protected static URI createURIFromUnencodedPath(String filepath) {
@@ -250,53 +390,109 @@ public class FileProvisioning {
     /**
      * This is an entry point from both WDL and CWL.
      * This method downloads both local and remote files into the working directory.
+     * Checksums are computed while the file is written where possible and checked against the expected checksum if there is one.
      *
      * @param parameterFilePath path of the parameter file
      * @param targetPath        path for target file
      * @param localPath         the absolute path where we will download files to
+     * @param expectedChecksum  the checksum the file should have
+     * @param head              what a HEAD request for an http(s) target already reported, if one was sent
      */
-    private void provisionInputFile(String parameterFilePath, String targetPath, Path localPath) {
-
-        Path potentialCachedFile = null;
-        // check if a file exists in the cache and if it does, link/copy it into place
-        synchronized (LOG) {
-            if (cache) {
-                // check cache for cached files
-                final String cacheDirectory = getCacheDirectory(config);
-                // create cache directory
-                final Path cachePath = Paths.get(cacheDirectory);
-                if (Files.notExists(cachePath)) {
-                    if (!cachePath.toFile().mkdirs()) {
-                        throw new RuntimeException("Could not create dockstore cache: " + cacheDirectory);
-                    }
-                }
+    private void provisionInputFile(String parameterFilePath, String targetPath, Path localPath, Optional<ExpectedChecksum> expectedChecksum,
+            Optional<HttpValidators> head) {
+        try (Tracer.Span span = Tracer.start("provision", targetPath)) {
+            span.arg("destination", localPath);
+            provisionInputFile(parameterFilePath, targetPath, localPath, expectedChecksum, head, span);
+            if (Tracer.isEnabled() && Files.isRegularFile(localPath)) {
+                span.arg("bytes", localPath.toFile().length());
+            }
+        }
+    }
 
-                final String sha256 = DigestUtils.sha256Hex(targetPath);
-                final String sha256Prefix = sha256.substring(0, 2);
-                final String sha256Suffix = sha256.substring(2);
-                potentialCachedFile = Paths.get(cacheDirectory, sha256Prefix, sha256Suffix);
-                if (Files.exists(potentialCachedFile)) {
-                    System.out.println("Found file " + targetPath + " in cache, hard-linking");
-                    try {
-                        final Path parentPath = localPath.getParent();
-                        if (Files.notExists(parentPath)) {
-                            Files.createDirectory(parentPath);
-                        }
-                        Files.createLink(localPath, potentialCachedFile);
-                    } catch (IOException e) {
-                        LOG.error("Cannot create hard link to cached file, you may want to move your cache \n" + e.getMessage());
-                        try {
-                            Files.copy(potentialCachedFile, localPath);
-                        } catch (IOException e1) {
-                            LOG.error("Could not copy " + targetPath + " to " + localPath, e);
-                            throw new RuntimeException("Could not copy " + targetPath + " to " + localPath, e1);
-                        }
-                        System.out.println("Found file " + targetPath + " in cache, copied");
-                    }
-                }
+    private void provisionInputFile(String parameterFilePath, String targetPath, Path localPath, Optional<ExpectedChecksum> expectedChecksum,
+            Optional<HttpValidators> head, Tracer.Span span) {
+        final Set<String> algorithms = new HashSet<>();
+        expectedChecksum.ifPresent(checksum -> algorithms.add(checksum.getAlgorithm()));
+        if (!cache) {
+            span.arg("cache", "off");
+            Map<String, String> checksums = provisionInputFileToLocalPath(parameterFilePath, targetPath, localPath, algorithms, algorithms, head);
+            expectedChecksum.ifPresent(checksum -> verifyChecksum(targetPath, localPath, checksum, checksums));
+            return;
+        }
+        // the cache records the sha256 of each entry, computing it while a download is streamed saves reading the file again
+        final Set<String> streamedAlgorithms = new HashSet<>(algorithms);
+        streamedAlgorithms.add(StreamingDigest.SHA256);
+        // only threads and processes provisioning the same input wait on each other, the second one will find the first one's copy in the cache
+        final String cacheKey = InputFileCache.getKey(targetPath);
+        final Path cachedFile = inputFileCache.getEntryPath(cacheKey);
+        try (InputFileCache.EntryLock ignored = inputFileCache.lockEntry(cacheKey, targetPath)) {
+            // check if a current file exists in the cache and if it does, link/copy it into place
+            final boolean cached = inputFileCache.retrieve(targetPath, cachedFile, localPath);
+            span.arg("cache", cached ? "hit" : "miss");
+            // on a miss, one HEAD request gives both the validators to cache the input with and what the segmented downloader needs
+            final Optional<HttpValidators> missHead = cached ? Optional.empty() : head.or(() -> head(targetPath));
+            final Optional<HttpValidators> validators = missHead.flatMap(response -> inputFileCache.getValidators(targetPath, response));
+            Map<String, String> checksums = provisionInputFileToLocalPath(parameterFilePath, targetPath, localPath, algorithms, streamedAlgorithms,
+                missHead);
+            if (cached && checksums.isEmpty()) {
+                checksums = inputFileCache.getChecksums(cachedFile);
             }
+            if (expectedChecksum.isPresent()) {
+                verifyChecksum(targetPath, localPath, expectedChecksum.get(), checksums);
+            }
+            // cache the file if we got it successfully
+            inputFileCache.store(targetPath, cachedFile, localPath, validators, checksums);
         }
+    }
 
+    /**
+     * @return what a HEAD request for an http(s) target reports, empty for other targets or if the request failed
+     */
+    private static Optional<HttpValidators> head(String targetPath) {
+        if (!HttpValidators.isHttp(targetPath)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(HttpValidators.head(targetPath));
+        } catch (IOException e) {
+            LOG.warn("Could not send HEAD for " + targetPath, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Fails the run if an input does not have the checksum given in the parameter file, the input is deleted so that it is not used by accident
+     *
+     * @param checksums checksums computed while provisioning the input, it is read again if they do not include the expected algorithm
+     */
+    private static void verifyChecksum(String targetPath, Path localPath, ExpectedChecksum expectedChecksum, Map<String, String> checksums) {
+        if (localPath.toFile().isDirectory()) {
+            return;
+        }
+        try {
+            final Map<String, String> actual = checksums.containsKey(expectedChecksum.getAlgorithm()) ? checksums
+                : StreamingDigest.of(localPath, Set.of(expectedChecksum.getAlgorithm()));
+            if (!expectedChecksum.matches(actual)) {
+                Files.deleteIfExists(localPath);
+                throw new RuntimeException("Checksum of " + targetPath + " is " + expectedChecksum.getAlgorithm() + "$" + actual.get(expectedChecksum.getAlgorithm())
+                    + ", expected " + expectedChecksum);
+            }
+            System.out.println("Verified " + expectedChecksum.getAlgorithm() + " checksum of " + targetPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not verify checksum of " + targetPath, e);
+        }
+    }
+
+    /**
+     * @param algorithms         checksums to compute of the provisioned file
+     * @param streamedAlgorithms checksums to compute of the provisioned file if it is downloaded here, where it does not take another read
+     * @param head               what a HEAD request for the target already reported, if one was sent
+     * @return the checksums, empty if the file was already there and not provisioned again
+     */
+    private Map<String, String> provisionInputFileToLocalPath(String parameterFilePath, String targetPath, Path localPath, Set<String> algorithms,
+            Set<String> streamedAlgorithms, Optional<HttpValidators> head) {
+        final String originalTargetPath = targetPath;
+        Map<String, String> checksums = Collections.emptyMap();
         URI objectIdentifier = createURIFromUnencodedPath(targetPath);    // throws IllegalArgumentException if it isn't a valid URI
         if (objectIdentifier.getScheme() != null) {
             String scheme = objectIdentifier.getScheme().toLowerCase();
@@ -314,7 +510,10 @@ public class FileProvisioning {
                 if (provision.schemesHandled().contains(scheme.toUpperCase()) || provision.schemesHandled()
                         .contains(scheme.toLowerCase())) {
                     System.out.println("Calling on plugin " + provision.getClass().getName() + " to provision " + targetPath);
+                    Tracer.current().arg("strategy", provision.getClass().getName());
                     handleDownloadProvisionWithRetries(targetPath, localPath, provision);
+                    // plugins write the file themselves, so it has to be read back, only for what is needed right away
+                    checksums = computeChecksums(targetPath, localPath, algorithms);
                 }
             }
         }
@@ -323,33 +522,40 @@ public class FileProvisioning {
             // check if we can use a plugin
             boolean localFileType = objectIdentifier.getScheme() == null;
             if (!localFileType) {
-                handleDownloadProvisionWithRetries(targetPath, localPath, null);
+                Tracer.current().arg("strategy", "vfs2");
+                // a pre-provisioning plugin may have pointed at another location than the one the HEAD request was for
+                final HttpValidators targetHead = targetPath.equals(originalTargetPath) ? head.orElse(null) : null;
+                if (streamedAlgorithms.isEmpty()) {
+                    handleDownloadProvisionWithRetries(targetPath, localPath, vfs2Provisioner.forDownload(null, targetHead));
+                } else {
+                    StreamingDigest digest = new StreamingDigest(streamedAlgorithms);
+                    handleDownloadProvisionWithRetries(targetPath, localPath, vfs2Provisioner.forDownload(digest, targetHead));
+                    checksums = digest.getValues();
+                }
             } else {
                 // hard link into target location
                 Path actualTargetPath = null;
                 try {
-                    String workingDir = System.getProperty("user.dir");
-                    // TODO: this is basically, if not WDL then try to find out the parent directory
-                    if (!"".equals(parameterFilePath)) {
-                        workingDir = Paths.get(parameterFilePath).toAbsolutePath().getParent().toString();
-                    }
-                    if (targetPath.startsWith("/")) {
-                        // absolute path
-                        actualTargetPath = Paths.get(targetPath);
-                    } else {
-                        // relative path
-                        actualTargetPath = Paths.get(workingDir, targetPath);
-                    }
+                    actualTargetPath = resolveLocalFile(parameterFilePath, targetPath);
                     // create needed directories
                     File parentFile = localPath.toFile().getParentFile();
                     if (!parentFile.exists() && !parentFile.mkdirs()) {
                         throw new IOException("Could not create " + localPath);
                     }
 
-                    // create link
-                    Files.createLink(localPath, actualTargetPath);
+                    if (actualTargetPath.toFile().isDirectory()) {
+                        // directories cannot be linked, this is reported and handled below
+                        throw new IOException(actualTargetPath + " is a directory");
+                    }
+                    // link, clone or copy into place
+                    LocalFileStager.Strategy strategy = localFileStager.stage(actualTargetPath, localPath);
+                    System.out.println("Staged " + targetPath + " to " + localPath + " by " + strategy.getDescription());
+                    Tracer.current().arg("strategy", strategy.name().toLowerCase(Locale.ROOT));
+                    // links and kernel copies never pass through user space, so the file is read once here
+                    checksums = computeChecksums(targetPath, localPath, algorithms);
                 } catch (IOException e) {
-                    LOG.info("Could not link " + targetPath + " to " + localPath + " , copying instead", e);
+                    LOG.info("Could not stage " + targetPath + " to " + localPath + " , copying instead", e);
+                    Tracer.current().arg("strategy", "copy");
                     try {
                         if (actualTargetPath.toFile().isDirectory()) {
                             FileUtils.copyDirectory(actualTargetPath.toFile(), localPath.toFile(), file -> {
@@ -369,29 +575,17 @@ public class FileProvisioning {
                 }
             }
         }
+        return checksums;
+    }
 
-        synchronized (LOG) {
-            // cache the file if we got it successfully
-            if (cache) {
-                // do not cache directories
-                if (localPath.toFile().isDirectory()) {
-                    return;
-                }
-                // populate cache
-                if (Files.notExists(potentialCachedFile)) {
-                    System.out.println("Caching file " + localPath + " in cache, hard-linking");
-                    try {
-                        // create parent directory
-                        final Path parentPath = potentialCachedFile.getParent();
-                        if (Files.notExists(parentPath)) {
-                            Files.createDirectory(parentPath);
-                        }
-                        Files.createLink(potentialCachedFile, localPath);
-                    } catch (IOException e) {
-                        LOG.error("Cannot create hard link for local file, skipping", e);
-                    }
-                }
-            }
+    private static Map<String, String> computeChecksums(String targetPath, Path localPath, Set<String> algorithms) {
+        if (algorithms.isEmpty() || !Files.isRegularFile(localPath)) {
+            return Collections.emptyMap();
+        }
+        try {
+            return StreamingDigest.of(localPath, algorithms);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not compute checksums of " + targetPath, e);
         }
     }
 
@@ -426,12 +620,12 @@ public class FileProvisioning {
 
     private void handleDownloadProvisionWithRetries(String targetPath, Path localPath, ProvisionInterface provision) {
         int maxRetries = config.getInt(FILE_PROVISION_RETRIES, DEFAULT_RETRIES);
-        retryWrapper(provision, targetPath, localPath, maxRetries, true, threads);
+        retryWrapper(provision == null ? vfs2Provisioner : provision, targetPath, localPath, maxRetries, true, null, threads, retryPolicy);
     }
 
     private void handleUploadProvisionWithRetries(String targetPath, Path localPath, ProvisionInterface provision, String metadata) {
         int maxRetries = config.getInt(FILE_PROVISION_RETRIES, DEFAULT_RETRIES);
-        retryWrapper(provision, targetPath, localPath, maxRetries, false, metadata, threads);
+        retryWrapper(provision, targetPath, localPath, maxRetries, false, metadata, threads, retryPolicy);
     }
 
     /**
@@ -446,10 +640,6 @@ public class FileProvisioning {
         File sourceFile = new File(srcPath);
 
         if (provisionInterface != null) {
-            if (sourceFile.isDirectory()) {
-                // file provisioning plugins do not really support directories
-                return;
-            }
             System.out.println(
                     "Calling on plugin " + provisionInterface.getClass().getName() + " to provision from " + srcPath + " to " + destPath);
             handleUploadProvisionWithRetries(destPath, Paths.get(srcPath), provisionInterface, metadata);
@@ -457,56 +647,17 @@ public class FileProvisioning {
             System.out.println();
         } else {
             try {
-                FileSystemManager fsManager = VFS.getManager();
-                ((DefaultFileSystemManager)fsManager).setBaseFile(Paths.get("").toFile());
-
-                File destinationFile = new File(destPath);
-                // if it is a URL, we need to treat it differently
-                String resolvedDestinationPath;
-                try {
-                    URI uri = URI.create(destPath);
-                    String[] schemes = fsManager.getSchemes();
-                    String scheme = uri.getScheme();
-                    // if there is a scheme involved, check to see if vfs can handle it
-                    if (scheme != null) {
-                        boolean matchingScheme = Stream.of(schemes).anyMatch(s -> s.equals(scheme));
-                        if (!matchingScheme) {
-                            System.out.println("No matching provision method for " + destPath + " , skipping");
-                            return;
-                        }
-                        resolvedDestinationPath = destPath;
-                    } else {
-                        // there is no scheme, this is just a local file
-                        resolvedDestinationPath = destinationFile.getAbsolutePath();
-                    }
-                } catch (IllegalArgumentException e) {
-                    // do nothing
-                    LOG.debug(destPath + " not a uri");
-                    resolvedDestinationPath = destinationFile.getAbsolutePath();
+                FileSystemManager fsManager = getOutputFileSystemManager();
+                Optional<String> resolvedDestinationPath = resolveOutputDestination(fsManager, destPath);
+                if (resolvedDestinationPath.isEmpty()) {
+                    return;
                 }
-                try (FileObject dest = fsManager.resolveFile(resolvedDestinationPath);
+                try (FileObject dest = fsManager.resolveFile(resolvedDestinationPath.get());
                         FileObject src = fsManager.resolveFile(sourceFile.getAbsolutePath())) {
                     System.out.println("Provisioning from " + srcPath + " to " + destPath);
-                    if (src.isFolder()) {
-                        FileObject[] files = src.findFiles(new AllFileSelector());
-                        for (FileObject file : files) {
-                            FileName name = file.getName();
-                            String relativePath = name.getURI().replace(src.getName().getURI(), "");
-                            FileObject nestedFile = fsManager.resolveFile(destinationFile + relativePath);
-                            if (file.isFolder()) {
-                                System.out.println("Creating folder from " + file + " to " + nestedFile);
-                                nestedFile.createFolder();
-                                continue;
-                            }
-                            nestedFile.createFile();
-                            System.out.println("Provisioning from nested file " + file + " to " + nestedFile);
-                            FileProvisionUtil.copyFromInputStreamToOutputStream(file, nestedFile, threads);
-                        }
-                    } else {
-                        // trigger a copy from the URL to a local file path that's a UUID to avoid collision
-                        // check for a local file path
-                        FileProvisionUtil.copyFromInputStreamToOutputStream(src, dest, threads);
-                    }
+                    // trigger a copy from the URL to a local file path that's a UUID to avoid collision
+                    // check for a local file path
+                    FileProvisionUtil.copyFromInputStreamToOutputStream(src, dest, threads);
                 } catch (IOException e) {
                     throw new RuntimeException("Could not provision output files", e);
                 }
@@ -516,63 +667,346 @@ public class FileProvisioning {
         }
     }
 
+    /**
+     * Copies one file of a directory output, reporting its progress to that of the directory rather than printing its own
+     */
+    private void provisionNestedOutputFile(Upload upload) {
+        if (upload.group.pInterface != null) {
+            handleUploadProvisionWithRetries(upload.dest, upload.src, upload.group.pInterface, upload.metadata);
+        } else {
+            try {
+                FileSystemManager fsManager = getOutputFileSystemManager();
+                try (FileObject dest = fsManager.resolveFile(upload.dest);
+                        FileObject src = fsManager.resolveFile(upload.src.toAbsolutePath().toString())) {
+                    FileProvisionUtil.copyFromInputStreamToOutputStream(src, dest, upload.progress::bytesCopied);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not provision output file " + upload.src + " to " + upload.dest, e);
+            }
+        }
+        upload.progress.fileCopied();
+    }
+
+    private static FileSystemManager getOutputFileSystemManager() throws FileSystemException {
+        FileSystemManager fsManager = VFS.getManager();
+        ((DefaultFileSystemManager)fsManager).setBaseFile(Paths.get("").toFile());
+        return fsManager;
+    }
+
+    /**
+     * @return where vfs2 should write an output, empty if none of its providers handles the scheme of the destination
+     */
+    private static Optional<String> resolveOutputDestination(FileSystemManager fsManager, String destPath) {
+        File destinationFile = new File(destPath);
+        // if it is a URL, we need to treat it differently
+        try {
+            URI uri = URI.create(destPath);
+            String[] schemes = fsManager.getSchemes();
+            String scheme = uri.getScheme();
+            // if there is a scheme involved, check to see if vfs can handle it
+            if (scheme != null) {
+                boolean matchingScheme = Stream.of(schemes).anyMatch(s -> s.equals(scheme));
+                if (!matchingScheme) {
+                    System.out.println("No matching provision method for " + destPath + " , skipping");
+                    return Optional.empty();
+                }
+                return Optional.of(destPath);
+            } else {
+                // there is no scheme, this is just a local file
+                return Optional.of(destinationFile.getAbsolutePath());
+            }
+        } catch (IllegalArgumentException e) {
+            // do nothing
+            LOG.debug(destPath + " not a uri");
+            return Optional.of(destinationFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Creates the folders of directory outputs up front, only the deepest ones since creating a folder creates its
+     * parents, so that their files can then be copied in parallel without each checking for its parent folder
+     */
+    private static void createOutputFolders(List<String> folders) {
+        if (folders.isEmpty()) {
+            return;
+        }
+        try {
+            FileSystemManager fsManager = getOutputFileSystemManager();
+            for (String folder : folders) {
+                try (FileObject folderObject = fsManager.resolveFile(folder)) {
+                    folderObject.createFolder();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create output folders", e);
+        }
+    }
+
+    /**
+     * Starts uploading outputs as they are written, if output streaming is turned on in the config file
+     *
+     * @param directory    where the entry writes its outputs
+     * @param destinations where a file under the directory goes, empty if that is not known before the entry is done
+     * @return what is uploading the outputs, empty if output streaming is off or the directory cannot be watched
+     */
+    public Optional<OutputStreamer> startOutputStreaming(Path directory, Function<Path, Optional<FileInfo>> destinations) {
+        if (!config.getBoolean(OUTPUT_STREAMING, false)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new OutputStreamer(directory, destinations, this::uploadFiles, TimeUnit.SECONDS
+                .toMillis(config.getLong(OUTPUT_STREAMING_QUIET_PERIOD, TimeUnit.MILLISECONDS.toSeconds(OutputStreamer.DEFAULT_QUIET_PERIOD_MILLIS)))));
+        } catch (IOException e) {
+            LOG.warn("Could not watch " + directory + ", outputs will be uploaded once the entry is done", e);
+            return Optional.empty();
+        }
+    }
+
     /**
      * This is an entry point for both WDL and CWL, where registered files are provisioned out.
+     * The files of every plugin are uploaded together on the shared scheduler, so that outputs going to different
+     * plugins do not wait for each other. Each plugin still has its file set prepared before the first of its files is
+     * uploaded and finalized once the last of them is done.
+     * Directory outputs are walked once and their files uploaded in parallel like any other file, plugins receive
+     * them as part of their file set.
      * @param outputSet pairs that describe files that we want to provision out
      */
     public void uploadFiles(List<ImmutablePair<String, FileInfo>> outputSet) {
+        uploadFiles(outputSet, (source, destination) -> false);
+    }
+
+    /**
+     * Provisions out the files that were not already uploaded while the entry ran, see {@link #startOutputStreaming(Path, Function)}
+     * @param outputSet       pairs that describe files that we want to provision out
+     * @param alreadyUploaded whether a local file was already uploaded to a destination
+     */
+    public void uploadFiles(List<ImmutablePair<String, FileInfo>> outputSet, BiPredicate<Path, String> alreadyUploaded) {
         Multimap<ProvisionInterface, Pair<String, FileInfo>> map = identifyPlugins(outputSet);
         Map<ProvisionInterface, Collection<Pair<String, FileInfo>>> provisionInterfaceCollectionMap = map.asMap();
-        for (Map.Entry<ProvisionInterface, Collection<Pair<String, FileInfo>>> entry : provisionInterfaceCollectionMap.entrySet()) {
-            ProvisionInterface pInterface = entry.getKey();
-            Pair<String, FileInfo>[] pairs = entry.getValue().toArray(new Pair[entry.getValue().size()]);
-            List<Optional<String>> metadataList = Stream.of(pairs).map(pair -> Optional.ofNullable(pair.getValue().getMetadata()))
-                    .collect(Collectors.toList());
-            List<Path> srcList = Stream.of(pairs).map(pair -> Paths.get(pair.getKey())).collect(Collectors.toList());
-            List<String> destList = Stream.of(pairs).map(pair -> {
-                String targetLocation = pair.getValue().getUrl();
-                if (pair.getValue().isDirectory()) {
-                    if (!targetLocation.endsWith("/")) {
-                        targetLocation = targetLocation + '/';
+        List<Upload> uploads = new ArrayList<>();
+        try {
+            for (Map.Entry<ProvisionInterface, Collection<Pair<String, FileInfo>>> entry : provisionInterfaceCollectionMap.entrySet()) {
+                UploadGroup group = new UploadGroup(entry.getKey());
+                for (Pair<String, FileInfo> pair : entry.getValue()) {
+                    addUploads(group, pair, alreadyUploaded);
+                }
+                // directory outputs without any files are still created at their destination
+                createOutputFolders(group.folders);
+                if (group.uploads.isEmpty()) {
+                    continue;
+                }
+                group.prepare();
+                uploads.addAll(group.uploads);
+            }
+            scheduler.run(uploads, upload -> upload.dest, upload -> upload.size, upload -> {
+                try (Tracer.Span span = Tracer.start("upload", upload.dest)) {
+                    span.arg("source", upload.src).arg("bytes", upload.size)
+                        .arg("strategy", upload.group.pInterface == null ? "vfs2" : upload.group.pInterface.getClass().getName());
+                    if (upload.progress == null) {
+                        provisionOutputFile(upload.src.toString(), upload.dest, upload.metadata, upload.group.pInterface);
+                    } else {
+                        provisionNestedOutputFile(upload);
                     }
-                    return targetLocation + FilenameUtils.getName(pair.getKey());
-                } else {
-                    return targetLocation;
                 }
-            }).collect(Collectors.toList());
+                upload.group.uploaded();
+            });
+        } catch (Exception e) {
+            LOG.error("plugin threw an exception", e);
+            throw new RuntimeException("plugin threw an exception", e);
+        }
+    }
 
-            try {
-                if (pInterface != null) {
-                    pInterface.prepareFileSet(destList, srcList, metadataList);
+    /**
+     * Adds the upload of an output to its group, or of each file under it for a directory
+     */
+    private void addUploads(UploadGroup group, Pair<String, FileInfo> pair, BiPredicate<Path, String> alreadyUploaded) throws IOException {
+        String targetLocation = pair.getValue().getUrl();
+        if (pair.getValue().isDirectory()) {
+            if (!targetLocation.endsWith("/")) {
+                targetLocation = targetLocation + '/';
+            }
+            targetLocation = targetLocation + FilenameUtils.getName(pair.getKey());
+        }
+        final String metadata = pair.getValue().getMetadata();
+        final Path source = Paths.get(pair.getKey());
+        if (!Files.isDirectory(source)) {
+            if (alreadyUploaded.test(source, targetLocation)) {
+                return;
+            }
+            group.add(new Upload(group, source, targetLocation, metadata, Files.isRegularFile(source) ? Files.size(source) : -1, null));
+            return;
+        }
+
+        String root = targetLocation;
+        if (group.pInterface == null) {
+            Optional<String> resolvedRoot = resolveOutputDestination(getOutputFileSystemManager(), targetLocation);
+            if (resolvedRoot.isEmpty()) {
+                return;
+            }
+            root = resolvedRoot.get();
+        }
+        final String rootFolder = root.endsWith("/") ? root : root + '/';
+        final List<Path> files = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+        final Set<Path> folders = new HashSet<>();
+        final Set<Path> parents = new HashSet<>();
+        // a single walk collects the files with their sizes and the folders, following symlinks as cwltool outputs often are ones
+        Files.walkFileTree(source, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                final Path relative = source.relativize(dir);
+                folders.add(relative);
+                if (!relative.toString().isEmpty()) {
+                    parents.add(relative.getParent() == null ? Paths.get("") : relative.getParent());
                 }
+                return FileVisitResult.CONTINUE;
+            }
 
-                ExecutorService executorService = Executors.newFixedThreadPool(threads);
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    files.add(file);
+                    sizes.add(attrs.size());
+                } else if (attrs.isSymbolicLink()) {
+                    LOG.warn("Skipping broken symlink " + file + " in " + source);
+                }
+                return FileVisitResult.CONTINUE;
+            }
 
-                List<Future> futures = new ArrayList<>();
-                for (int i = 0; i < pairs.length; i++) {
-                    Pair<String, FileInfo> pair = pairs[i];
-                    String dest = destList.get(i);
-                    Future<Object> submit = executorService.submit(() -> {
-                        provisionOutputFile(pair.getLeft(), dest, pair.getRight().getMetadata(), pInterface);
-                        return true;
-                    });
-                    futures.add(submit);
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof FileSystemLoopException) {
+                    LOG.warn("Skipping " + file + " in " + source + ", it links back to a folder above it");
+                    return FileVisitResult.CONTINUE;
                 }
-                for (Future future : futures) {
-                    future.get();
+                throw exc;
+            }
+        });
+        if (group.pInterface == null) {
+            for (Path folder : folders) {
+                if (!parents.contains(folder)) {
+                    group.folders.add(rootFolder + FilenameUtils.separatorsToUnix(folder.toString()));
                 }
+            }
+        }
+        final String targetFolder = targetLocation.endsWith("/") ? targetLocation : targetLocation + '/';
+        final List<Integer> remaining = new ArrayList<>();
+        long remainingBytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            if (!alreadyUploaded.test(files.get(i), targetFolder + FilenameUtils.separatorsToUnix(source.relativize(files.get(i)).toString()))) {
+                remaining.add(i);
+                remainingBytes += sizes.get(i);
+            }
+        }
+        final DirectoryProgress progress = new DirectoryProgress(pair.getKey(), targetLocation, remaining.size(), remainingBytes, threads);
+        System.out.println("Provisioning " + remaining.size() + " files from " + pair.getKey() + " to " + targetLocation);
+        for (int i : remaining) {
+            final String relative = FilenameUtils.separatorsToUnix(source.relativize(files.get(i)).toString());
+            group.add(new Upload(group, files.get(i), rootFolder + relative, metadata, sizes.get(i), progress));
+        }
+    }
+
+    /**
+     * The output files handled by one plugin, or by vfs2 when the plugin is null
+     */
+    private static final class UploadGroup {
+        private final ProvisionInterface pInterface;
+        private final List<Upload> uploads = new ArrayList<>();
+        // folders to create before uploading to vfs2
+        private final List<String> folders = new ArrayList<>();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private List<Optional<String>> metadataList;
+        private List<Path> srcList;
+        private List<String> destList;
+
+        UploadGroup(ProvisionInterface pInterface) {
+            this.pInterface = pInterface;
+        }
+
+        void add(Upload upload) {
+            uploads.add(upload);
+            remaining.incrementAndGet();
+        }
+
+        void prepare() {
+            metadataList = uploads.stream().map(upload -> Optional.ofNullable(upload.metadata)).collect(Collectors.toList());
+            srcList = uploads.stream().map(upload -> upload.src).collect(Collectors.toList());
+            destList = uploads.stream().map(upload -> upload.dest).collect(Collectors.toList());
+            if (pInterface != null) {
+                pInterface.prepareFileSet(destList, srcList, metadataList);
+            }
+        }
+
+        /**
+         * Called as each file of the group is uploaded, finalizes the group after the last one
+         */
+        void uploaded() {
+            if (remaining.decrementAndGet() == 0 && pInterface != null) {
+                pInterface.finalizeFileSet(destList, srcList, metadataList);
+            }
+        }
+    }
 
-                executorService.shutdownNow();
+    /**
+     * One output file to upload
+     */
+    private static final class Upload {
+        private final UploadGroup group;
+        private final Path src;
+        private final String dest;
+        private final String metadata;
+        private final long size;
+        // the directory output this file is part of, null for a file output
+        private final DirectoryProgress progress;
+
+        Upload(UploadGroup group, Path src, String dest, String metadata, long size, DirectoryProgress progress) {
+            this.group = group;
+            this.src = src;
+            this.dest = dest;
+            this.metadata = metadata;
+            this.size = size;
+            this.progress = progress;
+        }
+    }
 
-                if (pInterface != null) {
-                    pInterface.finalizeFileSet(destList, srcList, metadataList);
+    /**
+     * One progress line for all the files of a directory output, which are copied in parallel
+     */
+    private static final class DirectoryProgress {
+        private final String source;
+        private final String destination;
+        private final int fileCount;
+        private final long totalBytes;
+        private final ProgressPrinter printer;
+        private final AtomicLong bytesCopied = new AtomicLong();
+        private final AtomicInteger filesCopied = new AtomicInteger();
+
+        DirectoryProgress(String source, String destination, int fileCount, long totalBytes, int threads) {
+            this.source = source;
+            this.destination = destination;
+            this.fileCount = fileCount;
+            this.totalBytes = totalBytes;
+            this.printer = new ProgressPrinter(threads, threads > 1 ? source : "");
+        }
+
+        void bytesCopied(long bytes) {
+            final long copied = bytesCopied.addAndGet(bytes);
+            if (totalBytes > 0) {
+                synchronized (System.out) {
+                    printer.handleProgress(Math.min(copied, totalBytes), totalBytes);
                 }
-            } catch (Exception e) {
-                LOG.error("plugin threw an exception", e);
-                throw new RuntimeException("plugin threw an exception", e);
             }
         }
 
+        void fileCopied() {
+            if (filesCopied.incrementAndGet() == fileCount) {
+                synchronized (System.out) {
+                    // finalize output from the printer
+                    System.out.println();
+                    System.out.println("Provisioned " + fileCount + " files from " + source + " to " + destination);
+                }
+            }
+        }
     }
 
     @SuppressFBWarnings(value = "NP_NONNULL_PARAM_VIOLATION", justification = "looks like false positive due to https://github.com/spotbugs/spotbugs/issues/523 equivalent for findbugs")
@@ -644,14 +1078,39 @@ public class FileProvisioning {
     }
 
     /**
-     * Create a facade to treat normal vfs2 downloading as a plugin
+     * Create a facade to treat normal vfs2 downloading as a plugin.
+     * Large http and https files are downloaded in segments when the server supports byte ranges.
+     * A wrapper created by {@link #forDownload(StreamingDigest, HttpValidators)} also computes checksums of what it downloads.
      */
     public static class FileProvisionUtilPluginWrapper implements ProvisionInterface {
 
+        static final String SEGMENTED_DOWNLOAD_SEGMENTS = "segmented-download-segments";
+        static final String SEGMENTED_DOWNLOAD_THRESHOLD = "segmented-download-threshold";
+
         private final int threads;
+        private final StreamingDigest digest;
+        private final HttpValidators head;
+        private SegmentedHttpDownloader segmentedDownloader;
 
         FileProvisionUtilPluginWrapper(int threads) {
+            this(threads, new SegmentedHttpDownloader(SegmentedHttpDownloader.DEFAULT_SEGMENTS, SegmentedHttpDownloader.DEFAULT_THRESHOLD, threads),
+                null, null);
+        }
+
+        private FileProvisionUtilPluginWrapper(int threads, SegmentedHttpDownloader segmentedDownloader, StreamingDigest digest, HttpValidators head) {
             this.threads = threads;
+            this.segmentedDownloader = segmentedDownloader;
+            this.digest = digest;
+            this.head = head;
+        }
+
+        /**
+         * @param fileDigest fed the bytes of the next download, which should be the only one made through the returned wrapper, null for none
+         * @param fileHead   what a HEAD request for the file already reported, null to send one if it is needed
+         * @return a wrapper with the same configuration for one file
+         */
+        FileProvisionUtilPluginWrapper forDownload(StreamingDigest fileDigest, HttpValidators fileHead) {
+            return new FileProvisionUtilPluginWrapper(threads, segmentedDownloader, fileDigest, fileHead);
         }
 
         @Override
@@ -661,7 +1120,26 @@ public class FileProvisioning {
 
         @Override
         public boolean downloadFrom(String sourcePath, Path destination) {
-            return FileProvisionUtil.downloadFromVFS2(sourcePath, destination, threads);
+            if (digest != null) {
+                // a retry starts over, what an earlier attempt left behind is read back if the download resumes
+                digest.reset();
+            }
+            if (HttpValidators.isHttp(sourcePath)) {
+                try {
+                    if (segmentedDownloader.download(sourcePath, destination, threads, head)) {
+                        Tracer.current().arg("strategy", "segmented");
+                        if (digest != null) {
+                            // segments arrive out of order, so the file is read back once it is complete
+                            digest.update(destination, Files.size(destination));
+                        }
+                        return true;
+                    }
+                } catch (IOException e) {
+                    LOG.error("Could not download " + sourcePath + " in segments: " + e.getMessage());
+                    return false;
+                }
+            }
+            return FileProvisionUtil.downloadFromVFS2(sourcePath, destination, threads, digest);
         }
 
         @Override
@@ -671,7 +1149,15 @@ public class FileProvisioning {
 
         @Override
         public void setConfiguration(Map<String, String> wrapperConfig) {
-            // do nothing
+            try {
+                int segments = Integer.parseInt(wrapperConfig.getOrDefault(SEGMENTED_DOWNLOAD_SEGMENTS,
+                    String.valueOf(SegmentedHttpDownloader.DEFAULT_SEGMENTS)));
+                long threshold = Long.parseLong(wrapperConfig.getOrDefault(SEGMENTED_DOWNLOAD_THRESHOLD,
+                    String.valueOf(SegmentedHttpDownloader.DEFAULT_THRESHOLD)));
+                this.segmentedDownloader = new SegmentedHttpDownloader(segments, threshold, threads);
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Invalid " + SEGMENTED_DOWNLOAD_SEGMENTS + " or " + SEGMENTED_DOWNLOAD_THRESHOLD, e);
+            }
         }
     }
 }
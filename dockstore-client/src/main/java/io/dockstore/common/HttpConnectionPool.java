@@ -0,0 +1,137 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * The pool of HTTP connections shared by every http and https transfer of the process: vfs2 downloads, segmented range
+ * downloads and the HEAD requests used to probe sizes and revalidate cached inputs. Connections are kept alive between
+ * requests so that provisioning many files from the same server only pays for the TCP and TLS handshakes once.
+ *
+ * Clients built on the pool do not own it, closing one leaves the pooled connections open for the next.
+ */
+final class HttpConnectionPool {
+
+    static final int DEFAULT_MAX_PER_ROUTE = 32;
+    static final int DEFAULT_MAX_TOTAL = 128;
+    // how long to keep a connection alive when the server does not say
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+    private static final long MAX_IDLE_MILLIS = 60000;
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = (response, context) -> {
+        final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return keepAlive > 0 ? keepAlive : DEFAULT_KEEP_ALIVE_MILLIS;
+    };
+
+    private static PoolingHttpClientConnectionManager connectionManager;
+
+    private HttpConnectionPool() {
+        // hide the default constructor for a utility class
+    }
+
+    /**
+     * @return the shared pool, created on first use
+     */
+    static synchronized HttpClientConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            // honour javax.net.ssl.* system properties like the clients built with useSystemProperties() did
+            final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSystemSocketFactory()).build();
+            connectionManager = new PoolingHttpClientConnectionManager(registry);
+            connectionManager.setDefaultMaxPerRoute(DEFAULT_MAX_PER_ROUTE);
+            connectionManager.setMaxTotal(DEFAULT_MAX_TOTAL);
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+            new IdleConnectionEvictor(connectionManager, MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS).start();
+        }
+        return connectionManager;
+    }
+
+    /**
+     * Sets the size of the pool from the configuration
+     *
+     * @param maxPerRoute how many connections may be open to the same host at the same time
+     * @param maxTotal    how many connections may be open at the same time
+     */
+    static synchronized void configure(int maxPerRoute, int maxTotal) {
+        getConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(Math.max(maxPerRoute, 1));
+        connectionManager.setMaxTotal(Math.max(maxTotal, connectionManager.getDefaultMaxPerRoute()));
+    }
+
+    /**
+     * Grows the pool if needed so that a caller can have this many requests to the same host in flight at once
+     */
+    static synchronized void ensureCapacity(int connectionsPerRoute) {
+        getConnectionManager();
+        if (connectionManager.getDefaultMaxPerRoute() < connectionsPerRoute) {
+            connectionManager.setDefaultMaxPerRoute(connectionsPerRoute);
+        }
+        if (connectionManager.getMaxTotal() < connectionsPerRoute) {
+            connectionManager.setMaxTotal(connectionsPerRoute);
+        }
+    }
+
+    static synchronized int getMaxPerRoute() {
+        getConnectionManager();
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    static synchronized int getMaxTotal() {
+        getConnectionManager();
+        return connectionManager.getMaxTotal();
+    }
+
+    /**
+     * @return a builder for a client that borrows its connections from the shared pool
+     */
+    static HttpClientBuilder newClientBuilder() {
+        return HttpClients.custom().useSystemProperties().setConnectionManager(getConnectionManager()).setConnectionManagerShared(true)
+            .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+    }
+
+    /**
+     * @return request settings for clients that talk to arbitrary servers, with lenient cookies and the given timeouts
+     */
+    static RequestConfig defaultRequestConfig(int timeoutMillis) {
+        return RequestConfig.custom().setCookieSpec(CookieSpecs.STANDARD).setConnectTimeout(timeoutMillis).setSocketTimeout(timeoutMillis)
+            .build();
+    }
+
+    /**
+     * Lets the vfs2 http4 and http4s providers share the pool too
+     */
+    static ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return KEEP_ALIVE_STRATEGY;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * The ETag, Last-Modified and Content-Length an HTTP server reported for an input, used to tell whether a cached copy
+ * of the input is still current without downloading it again.
+ *
+ * The response to one HEAD request, from {@link #head(String)}, also says how large the input is and whether the server
+ * takes range requests, so that it can be passed along to everything that needs to know rather than asked again.
+ */
+final class HttpValidators {
+
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+    private static final String CONTENT_LENGTH = "content-length";
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final CloseableHttpClient HTTP_CLIENT = HttpConnectionPool.newClientBuilder()
+        .setDefaultRequestConfig(HttpConnectionPool.defaultRequestConfig(TIMEOUT_MILLIS)).build();
+
+    private final String etag;
+    private final String lastModified;
+    private final long contentLength;
+    private final boolean acceptsRanges;
+
+    private HttpValidators(String etag, String lastModified, long contentLength, boolean acceptsRanges) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.contentLength = contentLength;
+        this.acceptsRanges = acceptsRanges;
+    }
+
+    /**
+     * @param targetPath where an input is provisioned from
+     * @return true if the input is fetched over http or https
+     */
+    static boolean isHttp(String targetPath) {
+        return targetPath.startsWith("http:") || targetPath.startsWith("https:");
+    }
+
+    /**
+     * Sends a HEAD request for a URL.
+     *
+     * @param targetPath an http or https URL
+     * @return what the server reported, whether or not it includes validators
+     * @throws IOException if the server could not be reached or did not report success
+     */
+    static HttpValidators head(String targetPath) throws IOException {
+        try (CloseableHttpResponse response = HTTP_CLIENT.execute(new HttpHead(targetPath))) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                throw new IOException("HEAD " + targetPath + " returned " + response.getStatusLine());
+            }
+            return new HttpValidators(getHeader(response, HttpHeaders.ETAG), getHeader(response, HttpHeaders.LAST_MODIFIED),
+                Optional.ofNullable(getHeader(response, HttpHeaders.CONTENT_LENGTH)).map(Long::parseLong).orElse(-1L),
+                "bytes".equalsIgnoreCase(getHeader(response, HttpHeaders.ACCEPT_RANGES)));
+        } catch (NumberFormatException e) {
+            throw new IOException("HEAD " + targetPath + " returned an invalid Content-Length", e);
+        }
+    }
+
+    /**
+     * @return true if there is an ETag or a Last-Modified to tell whether the input changed
+     */
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the length of the input, -1 if the server did not report it
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return true if the server advertised Accept-Ranges: bytes, always false for validators read from a cache entry
+     */
+    boolean acceptsRanges() {
+        return acceptsRanges;
+    }
+
+    /**
+     * Sends a conditional HEAD for a URL, a 304 or unchanged validators mean the object did not change.
+     *
+     * @param targetPath an http or https URL
+     * @return true if the object at the URL is the one these validators were recorded for
+     * @throws IOException if the server could not be reached or did not report success
+     */
+    boolean isCurrent(String targetPath) throws IOException {
+        HttpHead head = new HttpHead(targetPath);
+        if (etag != null) {
+            head.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            head.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+        }
+        try (CloseableHttpResponse response = HTTP_CLIENT.execute(head)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                return true;
+            }
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new IOException("HEAD " + targetPath + " returned " + response.getStatusLine());
+            }
+            // not every server answers conditional requests, compare the validators ourselves
+            final String currentEtag = getHeader(response, HttpHeaders.ETAG);
+            final String currentLastModified = getHeader(response, HttpHeaders.LAST_MODIFIED);
+            final String currentContentLength = getHeader(response, HttpHeaders.CONTENT_LENGTH);
+            if (contentLength >= 0 && currentContentLength != null && !currentContentLength.equals(Long.toString(contentLength))) {
+                return false;
+            }
+            if (etag != null && currentEtag != null) {
+                return etag.equals(currentEtag);
+            }
+            return lastModified != null && lastModified.equals(currentLastModified);
+        }
+    }
+
+    private static String getHeader(CloseableHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * @param metadata the sidecar of a cache entry
+     * @return the validators recorded in the sidecar, empty if there are none
+     */
+    static Optional<HttpValidators> read(Properties metadata) {
+        final String etag = metadata.getProperty(ETAG);
+        final String lastModified = metadata.getProperty(LAST_MODIFIED);
+        if (etag == null && lastModified == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new HttpValidators(etag, lastModified, Long.parseLong(metadata.getProperty(CONTENT_LENGTH, "-1")), false));
+    }
+
+    /**
+     * @param metadata the sidecar of a cache entry to record these validators in
+     */
+    void write(Properties metadata) {
+        if (etag != null) {
+            metadata.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            metadata.setProperty(LAST_MODIFIED, lastModified);
+        }
+        metadata.setProperty(CONTENT_LENGTH, Long.toString(contentLength));
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.Striped;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The cache of provisioned input files, laid out as cache-dir/[2-char prefix]/[sha256 suffix] where the sha256 is computed
+ * from the original target path.
+ *
+ * Access to an entry is guarded by a lock striped on its cache key, so unrelated inputs are linked, copied and
+ * downloaded in parallel while threads provisioning the same input wait for each other instead of fetching it twice.
+ * The same goes for other processes sharing the cache directory, which coordinate through an OS-level lock on a
+ * [sha256 suffix].lock file next to the entry.
+ *
+ * Files are moved into and out of the cache with a {@link LocalFileStager}, which hard-links them where possible.
+ * Entries are published by staging them under a temporary name, syncing them to disk and renaming them into place, together with a [sha256 suffix].meta sidecar recording their size, sha256 checksum and any other checksums computed while they were provisioned. Lookups validate an entry
+ * against its sidecar before using it, so a truncated or modified entry is discarded rather than served, which makes
+ * it safe to share a cache directory on a network file system.
+ *
+ * Entries for http and https URLs also record the {@link HttpValidators} the server reported when they were downloaded.
+ * Once an entry is older than the revalidation interval, a hit sends a conditional HEAD request and the input is
+ * downloaded again if it changed. URLs matching the immutable URL pattern are never revalidated.
+ *
+ * If a maximum size is configured, entries are evicted in the background according to an {@link EvictionPolicy}
+ * using the access statistics kept in an {@link InputFileCacheIndex}. Entries that are still hard-linked from a run
+ * directory, were used by this process or are locked by another process are never evicted. An evicted entry's lock
+ * file is deleted with it, a process that was waiting on it then locks the entry again through a new lock file.
+ */
+class InputFileCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InputFileCache.class);
+    private static final int LOCK_STRIPES = 1024;
+    // shared across FileProvisioning instances since they can all point at the same cache directory
+    private static final Striped<Lock> ENTRY_LOCKS = Striped.lazyWeakLock(LOCK_STRIPES);
+    // evict a limited number of entries per pass so that the index is saved regularly and the evictor yields to the run
+    private static final int EVICTION_BATCH = 100;
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String METADATA_SUFFIX = ".meta";
+    private static final String SIZE = "size";
+    private static final String MODIFIED = "modified";
+    private static final String SHA256 = StreamingDigest.SHA256;
+    private static final String VALIDATED = "validated";
+    private static final long PID = ProcessHandle.current().pid();
+
+    private final Path cacheDirectory;
+    private final long maxBytes;
+    private final EvictionPolicy evictionPolicy;
+    private final long revalidateAfterMillis;
+    private final Pattern immutableUrls;
+    private final LocalFileStager stager;
+    private final InputFileCacheIndex index;
+    // entries used by this process, these may be copies rather than links so the link count does not protect them
+    private final Set<String> pinned = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dockstore-cache-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param cacheDirectory where the cache lives
+     * @param maxBytes       the size the cache is allowed to grow to, 0 or less for no limit
+     * @param evictionPolicy how to pick entries to evict when the cache is too large
+     * @param revalidateAfterMillis how long a cached http or https input is trusted before checking it with the server again
+     * @param immutableUrls   URLs whose content never changes and are never revalidated, null if there are none
+     * @param stager          how to put files into and out of the cache, must not create symbolic links
+     */
+    InputFileCache(String cacheDirectory, long maxBytes, EvictionPolicy evictionPolicy, long revalidateAfterMillis, Pattern immutableUrls,
+        LocalFileStager stager) {
+        this.cacheDirectory = Paths.get(cacheDirectory);
+        this.maxBytes = maxBytes;
+        this.evictionPolicy = evictionPolicy;
+        this.revalidateAfterMillis = revalidateAfterMillis;
+        this.immutableUrls = immutableUrls;
+        this.stager = stager;
+        this.index = new InputFileCacheIndex(this.cacheDirectory);
+        scheduleEviction();
+    }
+
+    /**
+     * @param targetPath where an input file is provisioned from
+     * @return the key used to store the input in the cache
+     */
+    static String getKey(String targetPath) {
+        return DigestUtils.sha256Hex(targetPath);
+    }
+
+    Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @param key a key from {@link #getKey(String)}
+     * @return where the entry for the key lives in the cache, whether or not it exists yet
+     */
+    Path getEntryPath(String key) {
+        return cacheDirectory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    /**
+     * @param key a key from {@link #getKey(String)}
+     * @return the lock that must be held while looking up or populating the entry for the key
+     */
+    Lock getLock(String key) {
+        return ENTRY_LOCKS.get(key);
+    }
+
+    /**
+     * Locks the entry for a key against other threads and other dockstore processes. The file lock is released by the
+     * operating system if the process holding it dies, the next owner then notices the lock file was not cleared and
+     * cleans up after the crashed process.
+     *
+     * @param key        a key from {@link #getKey(String)}
+     * @param targetPath the original location of the input, for display purposes
+     * @return the held lock, close it once the entry has been looked up or populated
+     */
+    EntryLock lockEntry(String key, String targetPath) {
+        final Lock lock = getLock(key);
+        lock.lock();
+        try {
+            return new EntryLock(lock, lockFile(getEntryPath(key), targetPath));
+        } catch (RuntimeException | Error e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    private FileChannel lockFile(Path cachedFile, String targetPath) {
+        final Path lockFile = getLockPath(cachedFile);
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(lockFile.getParent());
+            while (true) {
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                final Object opened = getFileKey(lockFile);
+                if (channel.tryLock() == null) {
+                    System.out.println("Waiting for another process to provision " + targetPath);
+                    channel.lock();
+                }
+                // the entry was evicted while waiting, together with the lock file, lock the one that replaces it instead
+                if (Files.exists(lockFile) && Objects.equals(opened, getFileKey(lockFile))) {
+                    break;
+                }
+                channel.close();
+            }
+            // a lock file that still names an owner was never released, its owner crashed while populating the entry
+            if (channel.size() > 0) {
+                ByteBuffer owner = ByteBuffer.allocate((int)Math.min(channel.size(), Long.BYTES * 4));
+                channel.read(owner, 0);
+                LOG.warn("Recovering cache entry for " + targetPath + " from crashed process " + new String(owner.array(), 0, owner.position(),
+                    StandardCharsets.UTF_8));
+                deleteTemporaryFiles(cachedFile);
+            }
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(Long.toString(PID).getBytes(StandardCharsets.UTF_8)), 0);
+            return channel;
+        } catch (IOException e) {
+            // some network file systems do not support locking, fall back to coordinating within this process only
+            LOG.warn("Could not lock " + lockFile + ", other processes may provision " + targetPath + " at the same time", e);
+            closeQuietly(channel);
+            return null;
+        }
+    }
+
+    /**
+     * @return what identifies the file on its file system, null if the file system does not say
+     */
+    private static Object getFileKey(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tries to take the lock file of an entry without waiting.
+     *
+     * @return false if another process holds the lock file, true if this process now holds it or the file system cannot lock files
+     */
+    private static boolean tryLockFile(FileChannel channel, Path lockFile) {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        } catch (IOException e) {
+            // as in lockEntry, only this process is coordinated with
+            LOG.debug("Could not lock " + lockFile, e);
+            return true;
+        }
+    }
+
+    private void deleteTemporaryFiles(Path cachedFile) throws IOException {
+        try (DirectoryStream<Path> temporaryFiles = Files.newDirectoryStream(cachedFile.getParent(), cachedFile.getFileName() + ".*" + TEMP_SUFFIX)) {
+            for (Path temporaryFile : temporaryFiles) {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Could not close lock file", e);
+            }
+        }
+    }
+
+    /**
+     * Hard-links (or clones or copies if that is not possible) a cached entry into place. Caller must hold the lock for the entry.
+     *
+     * @param targetPath the original location of the input, for display purposes
+     * @param cachedFile the cache entry
+     * @param localPath  where the input is needed
+     * @return true if the entry was found in the cache
+     */
+    boolean retrieve(String targetPath, Path cachedFile, Path localPath) {
+        if (!Files.exists(cachedFile)) {
+            return false;
+        }
+        if (!isValid(targetPath, cachedFile)) {
+            discard(cachedFile);
+            return false;
+        }
+        final String key = keyOf(cachedFile);
+        pinned.add(key);
+        index.recordHit(key, cachedFile.toFile().length());
+        try {
+            Files.createDirectories(localPath.getParent());
+            final LocalFileStager.Strategy strategy = stager.stage(cachedFile, localPath);
+            if (strategy != LocalFileStager.Strategy.HARD_LINK) {
+                LOG.warn("Cannot create hard link to cached file, you may want to move your cache");
+            }
+            System.out.println("Found file " + targetPath + " in cache, " + strategy.getDescription());
+        } catch (IOException e) {
+            LOG.error("Could not copy " + targetPath + " to " + localPath, e);
+            throw new RuntimeException("Could not copy " + targetPath + " to " + localPath, e);
+        }
+        return true;
+    }
+
+    /**
+     * @param targetPath the original location of the input, for display purposes
+     * @param cachedFile an existing cache entry
+     * @return true if the entry matches its sidecar, the checksum is only recomputed if the entry was modified since it was cached
+     */
+    private boolean isValid(String targetPath, Path cachedFile) {
+        final Path metadataFile = getMetadataPath(cachedFile);
+        try {
+            if (!Files.exists(metadataFile)) {
+                LOG.warn("Cached file for " + targetPath + " has no metadata, discarding it");
+                return false;
+            }
+            final Properties metadata = new Properties();
+            try (InputStream inputStream = Files.newInputStream(metadataFile)) {
+                metadata.load(inputStream);
+            }
+            final long size = Files.size(cachedFile);
+            if (size != Long.parseLong(metadata.getProperty(SIZE, "-1"))) {
+                LOG.warn("Cached file for " + targetPath + " is " + size + " bytes, expected " + metadata.getProperty(SIZE) + ", discarding it");
+                return false;
+            }
+            if (Files.getLastModifiedTime(cachedFile).toMillis() != Long.parseLong(metadata.getProperty(MODIFIED, "-1"))) {
+                final String sha256 = sha256(cachedFile);
+                if (!sha256.equals(metadata.getProperty(SHA256))) {
+                    LOG.warn("Cached file for " + targetPath + " has sha256 " + sha256 + ", expected " + metadata.getProperty(SHA256) + ", discarding it");
+                    return false;
+                }
+                // touched but not changed, no need to hash it again next time
+                writeMetadata(cachedFile, cachedFile, metadata);
+            }
+            return isCurrent(targetPath, cachedFile, metadata);
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not validate cached file for " + targetPath + ", discarding it", e);
+            return false;
+        }
+    }
+
+    /**
+     * @param targetPath the original location of the input
+     * @param cachedFile an existing cache entry
+     * @param metadata   the sidecar of the entry
+     * @return false if the server reports that the input changed since it was cached
+     */
+    private boolean isCurrent(String targetPath, Path cachedFile, Properties metadata) throws IOException {
+        if (!HttpValidators.isHttp(targetPath) || (immutableUrls != null && immutableUrls.matcher(targetPath).matches())) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - Long.parseLong(metadata.getProperty(VALIDATED, "0")) < revalidateAfterMillis) {
+            return true;
+        }
+        final Optional<HttpValidators> validators = HttpValidators.read(metadata);
+        if (validators.isEmpty()) {
+            LOG.warn("Cached file for " + targetPath + " has no ETag or Last-Modified to revalidate it with, discarding it");
+            return false;
+        }
+        try {
+            if (!validators.get().isCurrent(targetPath)) {
+                System.out.println("Cached file for " + targetPath + " is out of date");
+                return false;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not revalidate cached file for " + targetPath + ", using it as is", e);
+            return true;
+        }
+        metadata.setProperty(VALIDATED, Long.toString(now));
+        writeMetadata(cachedFile, cachedFile, metadata);
+        return true;
+    }
+
+    /**
+     * Picks the validators to store an input with from the HEAD request sent for it before it was downloaded, so that the
+     * server can later be asked whether it changed since. Sending the HEAD first errs on the side of downloading the input again.
+     *
+     * @param targetPath the original location of the input
+     * @param head       what the HEAD request reported
+     * @return the validators to store the input with, empty if the input never changes or the server reports none
+     */
+    Optional<HttpValidators> getValidators(String targetPath, HttpValidators head) {
+        if (immutableUrls != null && immutableUrls.matcher(targetPath).matches()) {
+            return Optional.empty();
+        }
+        return Optional.of(head).filter(HttpValidators::hasValidators);
+    }
+
+    /**
+     * @param cachedFile a cache entry that was validated by {@link #retrieve(String, Path, Path)}
+     * @return the checksums recorded in the sidecar of the entry by algorithm, so that a hit does not need to be read to be verified
+     */
+    Map<String, String> getChecksums(Path cachedFile) {
+        final Properties metadata = new Properties();
+        try (InputStream inputStream = Files.newInputStream(getMetadataPath(cachedFile))) {
+            metadata.load(inputStream);
+        } catch (IOException e) {
+            LOG.warn("Could not read checksums of " + cachedFile, e);
+            return Collections.emptyMap();
+        }
+        Map<String, String> checksums = new HashMap<>();
+        for (String algorithm : metadata.stringPropertyNames()) {
+            if (StreamingDigest.isSupported(algorithm)) {
+                checksums.put(algorithm, metadata.getProperty(algorithm));
+            }
+        }
+        return checksums;
+    }
+
+    private void discard(Path cachedFile) {
+        try {
+            Files.deleteIfExists(cachedFile);
+            Files.deleteIfExists(getMetadataPath(cachedFile));
+        } catch (IOException e) {
+            LOG.warn("Could not delete invalid cache entry " + cachedFile, e);
+        }
+        index.remove(keyOf(cachedFile));
+    }
+
+    /**
+     * Populates the cache with a provisioned file, directories are not cached. The file is hard-linked (or cloned or copied if the
+     * cache is on another file system) to a staging file which is synced and renamed into place after its sidecar.
+     * Caller must hold the lock for the entry.
+     *
+     * @param targetPath the original location of the input
+     * @param cachedFile the cache entry
+     * @param localPath  a freshly provisioned input
+     * @param validators the validators from {@link #getValidators(String, HttpValidators)}
+     * @param checksums  checksums of the input computed while it was provisioned, by algorithm; the sha256 is computed here if it is missing
+     */
+    void store(String targetPath, Path cachedFile, Path localPath, Optional<HttpValidators> validators, Map<String, String> checksums) {
+        if (localPath.toFile().isDirectory() || Files.exists(cachedFile)) {
+            return;
+        }
+        final Path temporaryFile = getTemporaryPath(cachedFile);
+        try {
+            Files.createDirectories(cachedFile.getParent());
+            Files.deleteIfExists(temporaryFile);
+            // a symlinked input is cached by its content rather than as a link
+            final LocalFileStager.Strategy strategy = stager.stage(localPath.toRealPath(), temporaryFile);
+            System.out.println("Caching file " + localPath + " in cache, " + strategy.getDescription());
+            sync(temporaryFile);
+            final long size = Files.size(temporaryFile);
+            final Properties metadata = new Properties();
+            metadata.setProperty(SIZE, Long.toString(size));
+            checksums.forEach(metadata::setProperty);
+            if (!checksums.containsKey(SHA256)) {
+                metadata.setProperty(SHA256, sha256(temporaryFile));
+            }
+            metadata.setProperty(VALIDATED, Long.toString(System.currentTimeMillis()));
+            validators.ifPresent(httpValidators -> httpValidators.write(metadata));
+            writeMetadata(temporaryFile, cachedFile, metadata);
+            Files.move(temporaryFile, cachedFile, StandardCopyOption.ATOMIC_MOVE);
+            sync(cachedFile.getParent());
+            final String key = keyOf(cachedFile);
+            pinned.add(key);
+            index.recordEntry(key, size, targetPath);
+            scheduleEviction();
+        } catch (IOException e) {
+            LOG.error("Cannot cache local file, skipping", e);
+            try {
+                Files.deleteIfExists(temporaryFile);
+            } catch (IOException e1) {
+                LOG.warn("Could not delete " + temporaryFile, e1);
+            }
+        }
+    }
+
+    private static Path getMetadataPath(Path cachedFile) {
+        return cachedFile.resolveSibling(cachedFile.getFileName() + METADATA_SUFFIX);
+    }
+
+    private static Path getLockPath(Path cachedFile) {
+        return cachedFile.resolveSibling(cachedFile.getFileName() + LOCK_SUFFIX);
+    }
+
+    private static Path getTemporaryPath(Path file) {
+        return file.resolveSibling(file.getFileName() + "." + PID + TEMP_SUFFIX);
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            return DigestUtils.sha256Hex(inputStream);
+        }
+    }
+
+    /**
+     * Atomically writes the sidecar for an entry.
+     *
+     * @param file       the file to take the modification time from, either the entry or its staging file
+     * @param cachedFile the entry the sidecar belongs to
+     * @param metadata   what to record about the entry
+     */
+    private static void writeMetadata(Path file, Path cachedFile, Properties metadata) throws IOException {
+        final Path metadataFile = getMetadataPath(cachedFile);
+        final Path temporaryFile = getTemporaryPath(metadataFile);
+        metadata.setProperty(MODIFIED, Long.toString(Files.getLastModifiedTime(file).toMillis()));
+        try (OutputStream outputStream = Files.newOutputStream(temporaryFile)) {
+            metadata.store(outputStream, null);
+        }
+        sync(temporaryFile);
+        Files.move(temporaryFile, metadataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flushes a file, or the entries of a directory, to disk.
+     */
+    private static void sync(Path path) {
+        final boolean directory = Files.isDirectory(path);
+        try (FileChannel channel = FileChannel.open(path, directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can sync a directory, a file that cannot be synced is caught by its checksum later on
+            LOG.debug("Could not sync " + path, e);
+        }
+    }
+
+    /**
+     * Persists the cache index, called once a batch of inputs has been provisioned.
+     */
+    void saveIndex() {
+        index.save();
+    }
+
+    private String keyOf(Path cachedFile) {
+        return cachedFile.getParent().getFileName().toString() + cachedFile.getFileName().toString();
+    }
+
+    private boolean isOverCapacity() {
+        return maxBytes > 0 && index.getTotalBytes() > maxBytes;
+    }
+
+    private void scheduleEviction() {
+        if (isOverCapacity() && evictionScheduled.compareAndSet(false, true)) {
+            evictor.submit(this::evict);
+        }
+    }
+
+    /**
+     * Evicts one batch of entries and reschedules itself while the cache is still over capacity.
+     */
+    private void evict() {
+        int evicted = 0;
+        try {
+            long excess = index.getTotalBytes() - maxBytes;
+            for (String key : index.getEvictionOrder(evictionPolicy)) {
+                if (excess <= 0 || evicted >= EVICTION_BATCH) {
+                    break;
+                }
+                if (pinned.contains(key)) {
+                    continue;
+                }
+                final Lock lock = getLock(key);
+                // an entry being looked up or populated right now is in use, skip it
+                if (!lock.tryLock()) {
+                    continue;
+                }
+                FileChannel channel = null;
+                try {
+                    final Path cachedFile = getEntryPath(key);
+                    final InputFileCacheIndex.Entry entry = index.get(key);
+                    if (entry == null || isLinkedElsewhere(cachedFile)) {
+                        continue;
+                    }
+                    // so is an entry that another process sharing the cache is validating or linking
+                    final Path lockFile = getLockPath(cachedFile);
+                    channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    if (!tryLockFile(channel, lockFile)) {
+                        continue;
+                    }
+                    Files.deleteIfExists(cachedFile);
+                    Files.deleteIfExists(getMetadataPath(cachedFile));
+                    Files.deleteIfExists(lockFile);
+                    index.remove(key);
+                    excess -= entry.getSize();
+                    evicted++;
+                    LOG.info("Evicted " + entry.getUrl() + " from the cache");
+                } catch (IOException e) {
+                    LOG.warn("Could not evict cache entry " + key, e);
+                } finally {
+                    closeQuietly(channel);
+                    lock.unlock();
+                }
+            }
+            index.save();
+        } finally {
+            evictionScheduled.set(false);
+        }
+        if (evicted > 0) {
+            scheduleEviction();
+        }
+    }
+
+    /**
+     * @param cachedFile a cache entry
+     * @return true if a run directory still hard-links to the entry, deleting it would not free any space
+     */
+    private boolean isLinkedElsewhere(Path cachedFile) throws IOException {
+        try {
+            return ((Number)Files.getAttribute(cachedFile, "unix:nlink")).intValue() > 1;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // link counts are not available on this file system, err on the side of keeping the entry
+            return true;
+        }
+    }
+
+    /**
+     * A lock on a cache entry held by this thread, and by this process if the file system supports locking
+     */
+    static final class EntryLock implements AutoCloseable {
+        private final Lock lock;
+        private final FileChannel lockFile;
+
+        private EntryLock(Lock lock, FileChannel lockFile) {
+            this.lock = lock;
+            this.lockFile = lockFile;
+        }
+
+        /**
+         * Clears the owner from the lock file so the next owner knows the entry was left in a consistent state,
+         * closing the channel releases the file lock.
+         */
+        @Override
+        public void close() {
+            try {
+                if (lockFile != null) {
+                    lockFile.truncate(0);
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not release cache lock file", e);
+            } finally {
+                closeQuietly(lockFile);
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * How entries are picked for eviction once the cache is over its size limit
+     */
+    enum EvictionPolicy {
+        /**
+         * least recently used entries first
+         */
+        LRU,
+        /**
+         * least frequently used entries first, ties broken by least recent use
+         */
+        LFU
+    }
+}
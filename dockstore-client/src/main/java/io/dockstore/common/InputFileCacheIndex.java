@@ -0,0 +1,250 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compact on-disk index of the input file cache, one tab-separated line per entry recording
+ * the cache key, size in bytes, last access time, hit count and the URL the entry was provisioned from.
+ * The index is rebuilt from the cache directory if it is missing or unreadable.
+ *
+ * Several processes can share a cache directory, so saving the index merges in what the others recorded since it was
+ * loaded while holding a lock on an index.lock file.
+ */
+class InputFileCacheIndex {
+
+    static final String INDEX_FILE_NAME = "index";
+    private static final String INDEX_LOCK_FILE_NAME = "index.lock";
+    private static final Logger LOG = LoggerFactory.getLogger(InputFileCacheIndex.class);
+    private static final Pattern SHARD_NAME = Pattern.compile("[0-9a-f]{2}");
+    private static final Pattern ENTRY_NAME = Pattern.compile("[0-9a-f]{62}");
+    private static final int FIELDS = 5;
+
+    private final Path cacheDirectory;
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // entries evicted by this process since the last save, so that merging does not bring them back
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    InputFileCacheIndex(Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        this.indexFile = cacheDirectory.resolve(INDEX_FILE_NAME);
+        if (Files.exists(indexFile)) {
+            try {
+                load();
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Could not read cache index " + indexFile + ", rebuilding it", e);
+                entries.clear();
+            }
+        }
+        rebuild();
+    }
+
+    private void load() throws IOException {
+        entries.putAll(read());
+    }
+
+    private Map<String, Entry> read() throws IOException {
+        Map<String, Entry> onDisk = new HashMap<>();
+        for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] fields = line.split("\t", FIELDS);
+            if (fields.length != FIELDS) {
+                throw new IOException("Malformed cache index line: " + line);
+            }
+            onDisk.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+        }
+        return onDisk;
+    }
+
+    /**
+     * Folds in entries other processes saved since this index was loaded, keeping the most recent access and highest hit count,
+     * and drops entries another process evicted.
+     */
+    private void merge() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try {
+            read().forEach((key, other) -> {
+                if (!removed.contains(key)) {
+                    entries.merge(key, other, (mine, theirs) -> new Entry(mine.size, Math.max(mine.lastAccess, theirs.lastAccess),
+                        Math.max(mine.hits, theirs.hits), mine.url.isEmpty() ? theirs.url : mine.url));
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not merge cache index " + indexFile + ", overwriting it", e);
+        }
+        entries.keySet().removeIf(key -> !Files.exists(cacheDirectory.resolve(key.substring(0, 2)).resolve(key.substring(2))));
+    }
+
+    /**
+     * Recovers an index from the entries present in the cache directory, the origin URL and hit counts are lost.
+     */
+    private void rebuild() {
+        if (!Files.isDirectory(cacheDirectory)) {
+            return;
+        }
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path shard : shards) {
+                String prefix = shard.getFileName().toString();
+                if (!Files.isDirectory(shard) || !SHARD_NAME.matcher(prefix).matches()) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        String suffix = file.getFileName().toString();
+                        if (Files.isRegularFile(file) && ENTRY_NAME.matcher(suffix).matches()) {
+                            entries.put(prefix + suffix, new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(), 0, ""));
+                        }
+                    }
+                }
+            }
+            dirty.set(true);
+        } catch (IOException e) {
+            LOG.warn("Could not rebuild cache index from " + cacheDirectory, e);
+        }
+    }
+
+    void recordEntry(String key, long size, String url) {
+        entries.put(key, new Entry(size, System.currentTimeMillis(), 0, url));
+        dirty.set(true);
+    }
+
+    void recordHit(String key, long size) {
+        entries.compute(key, (k, entry) -> entry == null ? new Entry(size, System.currentTimeMillis(), 1, "")
+            : new Entry(entry.size, System.currentTimeMillis(), entry.hits + 1, entry.url));
+        dirty.set(true);
+    }
+
+    void remove(String key) {
+        entries.remove(key);
+        removed.add(key);
+        dirty.set(true);
+    }
+
+    Entry get(String key) {
+        return entries.get(key);
+    }
+
+    long getTotalBytes() {
+        return entries.values().stream().mapToLong(entry -> entry.size).sum();
+    }
+
+    /**
+     * @param policy how to rank entries
+     * @return cache keys, the first one being the best candidate for eviction
+     */
+    List<String> getEvictionOrder(InputFileCache.EvictionPolicy policy) {
+        Comparator<Map.Entry<String, Entry>> byLastAccess = Comparator.comparingLong(e -> e.getValue().lastAccess);
+        Comparator<Map.Entry<String, Entry>> order = policy == InputFileCache.EvictionPolicy.LFU
+            ? Comparator.<Map.Entry<String, Entry>>comparingLong(e -> e.getValue().hits).thenComparing(byLastAccess) : byLastAccess;
+        return entries.entrySet().stream().sorted(order).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Writes the index out if it changed, via a temporary file so readers never see a partial index.
+     */
+    synchronized void save() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            Files.createDirectories(cacheDirectory);
+            try (FileChannel lock = FileChannel.open(cacheDirectory.resolve(INDEX_LOCK_FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+                lock.lock();
+                merge();
+                removed.clear();
+                write();
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+            LOG.warn("Could not save cache index " + indexFile, e);
+        }
+    }
+
+    private void write() throws IOException {
+        Path temp = Files.createTempFile(cacheDirectory, INDEX_FILE_NAME, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.write(mapEntry.getKey() + '\t' + entry.size + '\t' + entry.lastAccess + '\t' + entry.hits + '\t' + entry.url);
+                writer.newLine();
+            }
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Describes a single cached file
+     */
+    static final class Entry {
+        private final long size;
+        private final long lastAccess;
+        private final long hits;
+        private final String url;
+
+        Entry(long size, long lastAccess, long hits, String url) {
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.hits = hits;
+            this.url = url == null ? "" : url.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getLastAccess() {
+            return lastAccess;
+        }
+
+        long getHits() {
+            return hits;
+        }
+
+        String getUrl() {
+            return url;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts a local file in place for a run by trying a chain of {@link Strategy strategies} in order, from the cheapest
+ * (a hard link) down to a kernel-side copy. Symbolic links are only used if explicitly configured since the target
+ * of the link may not be visible inside a container.
+ *
+ * A strategy that turns out not to be supported between two file systems, such as a reflink on ext4, is remembered
+ * and skipped for later files going between the same file systems.
+ */
+final class LocalFileStager {
+
+    static final String DEFAULT_STRATEGIES = "hardlink,reflink,transfer";
+    private static final Logger LOG = LoggerFactory.getLogger(LocalFileStager.class);
+    private static final int REFLINK_TIMEOUT_SECONDS = 60;
+    // how cp reports that the file systems cannot clone, or that it cannot clone at all
+    private static final Pattern REFLINK_UNSUPPORTED = Pattern.compile("not supported|cross-device|inappropriate ioctl|unrecognized option|illegal option",
+        Pattern.CASE_INSENSITIVE);
+
+    private final List<Strategy> strategies;
+    // the source and target file systems each strategy is known not to work between
+    private final Map<Strategy, Set<List<FileStore>>> unsupported = new ConcurrentHashMap<>();
+
+    LocalFileStager(List<Strategy> strategies) {
+        if (strategies.isEmpty()) {
+            throw new IllegalArgumentException("At least one staging strategy is needed");
+        }
+        this.strategies = strategies;
+    }
+
+    /**
+     * @param strategies a comma-separated list of strategy names, e.g. hardlink,reflink,transfer
+     * @return a stager trying those strategies in order
+     */
+    static LocalFileStager parse(String strategies) {
+        List<Strategy> chain = new ArrayList<>();
+        for (String name : strategies.split(",")) {
+            if (!name.isBlank()) {
+                chain.add(Strategy.fromName(name.trim()));
+            }
+        }
+        return new LocalFileStager(chain);
+    }
+
+    /**
+     * @return a stager with the same chain minus symbolic links, for places that need a file of their own such as the cache
+     */
+    LocalFileStager withoutSymlinks() {
+        List<Strategy> chain = strategies.stream().filter(strategy -> strategy != Strategy.SYMLINK).collect(Collectors.toList());
+        return chain.isEmpty() ? new LocalFileStager(List.of(Strategy.TRANSFER)) : new LocalFileStager(chain);
+    }
+
+    /**
+     * Stages a regular file, the parent directory of the target must exist.
+     *
+     * @param source an existing file
+     * @param target where the file is needed, must not exist yet
+     * @return the strategy that worked
+     * @throws IOException if none of the strategies worked, carrying the failures of the others as suppressed exceptions
+     */
+    Strategy stage(Path source, Path target) throws IOException {
+        final IOException failure = new IOException("Could not stage " + source + " to " + target);
+        for (Strategy strategy : strategies) {
+            if (isUnsupported(strategy, source, target)) {
+                continue;
+            }
+            try {
+                strategy.stage(source, target);
+                return strategy;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException e) {
+                LOG.debug("Could not stage " + source + " to " + target + " by " + strategy.getDescription(), e);
+                failure.addSuppressed(e);
+                getFileStores(source, target).ifPresent(fileStores -> {
+                    if (unsupported.computeIfAbsent(strategy, key -> ConcurrentHashMap.newKeySet()).add(fileStores)) {
+                        LOG.info("Not " + strategy.getDescription() + " from " + fileStores.get(0) + " to " + fileStores.get(1) + " any more: " + e.getMessage());
+                    }
+                });
+                Files.deleteIfExists(target);
+            } catch (IOException e) {
+                LOG.debug("Could not stage " + source + " to " + target + " by " + strategy.getDescription(), e);
+                failure.addSuppressed(e);
+                // clean up after a strategy that failed part way through
+                Files.deleteIfExists(target);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return true if the strategy already turned out not to work between the file systems of the source and the target
+     */
+    boolean isUnsupported(Strategy strategy, Path source, Path target) {
+        final Set<List<FileStore>> fileStores = unsupported.get(strategy);
+        return fileStores != null && getFileStores(source, target).map(fileStores::contains).orElse(false);
+    }
+
+    /**
+     * @return the file systems of the source and of the directory of the target, empty if they cannot be told
+     */
+    private static Optional<List<FileStore>> getFileStores(Path source, Path target) {
+        try {
+            return Optional.of(List.of(Files.getFileStore(source), Files.getFileStore(target.toAbsolutePath().getParent())));
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not find the file systems of " + source + " and " + target, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Ways of putting a local file in place
+     */
+    enum Strategy {
+        /**
+         * a hard link, free but only works within a file system
+         */
+        HARD_LINK("hardlink", "hard-linking") {
+            @Override
+            void stage(Path source, Path target) throws IOException {
+                Files.createLink(target, source);
+            }
+        },
+        /**
+         * a copy-on-write clone, free on file systems such as XFS and Btrfs.
+         * Java has no access to the FICLONE ioctl so this calls cp --reflink=always, available with GNU coreutils.
+         */
+        REFLINK("reflink", "reflinking") {
+            @Override
+            void stage(Path source, Path target) throws IOException {
+                if (!SystemUtils.IS_OS_LINUX) {
+                    throw new UnsupportedOperationException("reflinks are only supported on Linux");
+                }
+                final Process process;
+                try {
+                    process = new ProcessBuilder("cp", "--reflink=always", source.toAbsolutePath().toString(), target.toAbsolutePath().toString())
+                        .redirectErrorStream(true).start();
+                } catch (IOException e) {
+                    throw new UnsupportedOperationException("cp could not be run", e);
+                }
+                try {
+                    if (!process.waitFor(REFLINK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                        throw new IOException("cp --reflink timed out");
+                    }
+                    if (process.exitValue() != 0) {
+                        final String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+                        if (REFLINK_UNSUPPORTED.matcher(output).find()) {
+                            throw new UnsupportedOperationException("cp --reflink failed: " + output);
+                        }
+                        throw new IOException("cp --reflink failed: " + output);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reflinking " + source, e);
+                }
+            }
+        },
+        /**
+         * a copy done by the kernel through FileChannel.transferTo, without going through a user-space buffer
+         */
+        TRANSFER("transfer", "copying") {
+            @Override
+            void stage(Path source, Path target) throws IOException {
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    final long size = in.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        },
+        /**
+         * a symbolic link, free but the source must stay put and be visible wherever the file is used
+         */
+        SYMLINK("symlink", "symlinking") {
+            @Override
+            void stage(Path source, Path target) throws IOException {
+                Files.createSymbolicLink(target, source.toAbsolutePath());
+            }
+        };
+
+        private final String name;
+        private final String description;
+
+        Strategy(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        abstract void stage(Path source, Path target) throws IOException;
+
+        String getDescription() {
+            return description;
+        }
+
+        static Strategy fromName(String name) {
+            for (Strategy strategy : values()) {
+                if (strategy.name.equalsIgnoreCase(name)) {
+                    return strategy;
+                }
+            }
+            throw new IllegalArgumentException("Unknown staging strategy " + name + ", expected hardlink, reflink, transfer or symlink");
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads the outputs of an entry while it is still running. A directory the launcher writes its outputs to is watched
+ * and each file is uploaded once it is stable, i.e. its size and modification time have not changed for a quiet period.
+ * Java cannot tell whether another process still has a file open, so the quiet period stands in for the file being closed.
+ *
+ * Only files whose destination is already known are uploaded early, the launcher decides which through a function of
+ * the local path. Once the entry is done, {@link #finish()} waits for the uploads in flight and tells which outputs
+ * were uploaded as they are now, so that only the remaining ones are uploaded afterwards.
+ */
+public final class OutputStreamer implements Closeable {
+
+    static final long DEFAULT_QUIET_PERIOD_MILLIS = 10000;
+    private static final Logger LOG = LoggerFactory.getLogger(OutputStreamer.class);
+
+    private final Path root;
+    private final Function<Path, Optional<FileProvisioning.FileInfo>> destinations;
+    private final Consumer<List<ImmutablePair<String, FileProvisioning.FileInfo>>> uploader;
+    private final long quietPeriodMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    // files seen changing that are not stable yet, only used by the watching thread
+    private final Map<Path, Observation> candidates = new HashMap<>();
+    private final ConcurrentMap<Path, Uploaded> uploaded = new ConcurrentHashMap<>();
+    private final ExecutorService uploadService = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dockstore-output-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread watcher;
+
+    /**
+     * @param root              the directory to watch, created if needed
+     * @param destinations      where a file under the directory goes, empty if that is not known before the entry is done
+     * @param uploader          uploads files, e.g. {@link FileProvisioning#uploadFiles(List)}
+     * @param quietPeriodMillis how long a file must be left alone before it is uploaded
+     */
+    OutputStreamer(Path root, Function<Path, Optional<FileProvisioning.FileInfo>> destinations,
+        Consumer<List<ImmutablePair<String, FileProvisioning.FileInfo>>> uploader, long quietPeriodMillis) throws IOException {
+        this.root = root.toAbsolutePath();
+        this.destinations = destinations;
+        this.uploader = uploader;
+        this.quietPeriodMillis = quietPeriodMillis;
+        Files.createDirectories(this.root);
+        this.watchService = this.root.getFileSystem().newWatchService();
+        registerAll(this.root);
+        this.watcher = new Thread(this::watch, "dockstore-output-watcher");
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+        System.out.println("Uploading outputs written to " + this.root + " while the entry runs");
+    }
+
+    /**
+     * Stops watching and waits for the uploads in flight
+     *
+     * @return whether a local file was already uploaded to a destination and has not changed since
+     */
+    public BiPredicate<Path, String> finish() {
+        close();
+        try {
+            uploadService.shutdown();
+            uploadService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!uploaded.isEmpty()) {
+            System.out.println(uploaded.size() + " output files were uploaded while the entry ran");
+        }
+        return this::isUploaded;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.debug("Could not close watch service", e);
+        }
+        try {
+            watcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean isUploaded(Path source, String destination) {
+        final Uploaded upload = uploaded.get(source.toAbsolutePath());
+        if (upload == null || !upload.destination.equals(destination)) {
+            return false;
+        }
+        try {
+            return Files.size(source) == upload.size && Files.getLastModifiedTime(source).toMillis() == upload.lastModified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void watch() {
+        final long pollMillis = Math.max(quietPeriodMillis / 4, 1);
+        try {
+            while (true) {
+                final WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handle(key);
+                }
+                uploadStableFiles();
+            }
+        } catch (ClosedWatchServiceException e) {
+            LOG.debug("Stopped watching " + root);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(WatchKey key) {
+        final Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost, look at everything again
+                registerAll(root);
+            } else if (directory != null) {
+                final Path child = directory.resolve((Path)event.context());
+                if (Files.isDirectory(child)) {
+                    registerAll(child);
+                } else {
+                    observe(child);
+                }
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Watches a directory and everything under it, and looks at the files already there which were written before it was watched
+     */
+    private void registerAll(Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    watchedDirectories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    observe(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not watch " + directory + ", its files will be uploaded once the entry is done", e);
+        }
+    }
+
+    private void observe(Path file) {
+        try {
+            final Observation observation = new Observation(file);
+            final Observation previous = candidates.get(file);
+            if (previous == null || !previous.sameAs(observation)) {
+                candidates.put(file, observation);
+            }
+        } catch (IOException e) {
+            // deleted or moved away since
+            candidates.remove(file);
+        }
+    }
+
+    private void uploadStableFiles() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Path, Observation>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, Observation> entry = iterator.next();
+            if (now - entry.getValue().seenAt < quietPeriodMillis) {
+                continue;
+            }
+            final Path file = entry.getKey();
+            try {
+                final Observation current = new Observation(file);
+                if (!current.sameAs(entry.getValue())) {
+                    // changed without an event reaching us yet
+                    entry.setValue(current);
+                    continue;
+                }
+            } catch (IOException e) {
+                iterator.remove();
+                continue;
+            }
+            iterator.remove();
+            final Observation stable = entry.getValue();
+            final Optional<FileProvisioning.FileInfo> destination = destinations.apply(file);
+            if (destination.isPresent() && !isUploaded(file, destination.get().getUrl())) {
+                uploadService.execute(() -> upload(file, destination.get(), stable));
+            }
+        }
+    }
+
+    private void upload(Path file, FileProvisioning.FileInfo destination, Observation stable) {
+        try {
+            uploader.accept(List.of(ImmutablePair.of(file.toString(), destination)));
+            uploaded.put(file, new Uploaded(destination.getUrl(), stable.size, stable.lastModified));
+        } catch (RuntimeException e) {
+            LOG.warn("Could not upload " + file + " while the entry ran, it will be uploaded once the entry is done", e);
+        }
+    }
+
+    /**
+     * The size and modification time of a file when it was last seen changing
+     */
+    private static final class Observation {
+        private final long size;
+        private final long lastModified;
+        private final long seenAt = System.currentTimeMillis();
+
+        Observation(Path file) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean sameAs(Observation other) {
+            return size == other.size && lastModified == other.lastModified;
+        }
+    }
+
+    /**
+     * A file uploaded while the entry ran, and what it looked like then
+     */
+    private static final class Uploaded {
+        private final String destination;
+        private final long size;
+        private final long lastModified;
+
+        Uploaded(String destination, long size, long lastModified) {
+            this.destination = destination;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs transfers on a pool shared by every call, largest first so that one big file started last does not stretch the
+ * whole run. Sizes are probed up front in parallel on a small pool of their own: local files are looked up and http(s)
+ * URLs are asked with a HEAD request, whose response is kept for the transfer. Transfers whose size cannot be probed,
+ * such as those handled by plugins, are started first since they are typically large remote objects. With a single
+ * transfer, or a single thread to run them on, the order makes no difference and nothing is probed.
+ *
+ * Besides the overall number of threads, the number of transfers running against one host and against one scheme can
+ * be capped so that a throttled server is not hit by every thread at once. A transfer that would go over a cap waits
+ * while smaller transfers against other hosts go ahead.
+ */
+final class ProvisioningScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProvisioningScheduler.class);
+    private static final long UNKNOWN_SIZE = -1;
+    private static final int MAX_PROBE_THREADS = 8;
+
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final Map<String, Integer> maxPerScheme;
+    private final ExecutorService executorService;
+    private final ExecutorService probeService;
+    // transfers waiting for a free slot, in the order they should be started
+    private final List<Job<?>> pending = new LinkedList<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final Map<String, Integer> runningPerScheme = new HashMap<>();
+    private int running;
+
+    /**
+     * @param maxConcurrent how many transfers may run at the same time
+     * @param maxPerHost    how many transfers may run against the same host at the same time, 0 or less for no limit
+     * @param maxPerScheme  how many transfers may run for a scheme at the same time by lower case scheme, local files use file
+     */
+    ProvisioningScheduler(int maxConcurrent, int maxPerHost, Map<String, Integer> maxPerScheme) {
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.maxPerHost = maxPerHost;
+        this.maxPerScheme = maxPerScheme;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(this.maxConcurrent, runnable -> {
+            Thread thread = new Thread(runnable, "dockstore-provision-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger probeThreadCount = new AtomicInteger();
+        this.probeService = Executors.newFixedThreadPool(Math.min(this.maxConcurrent, MAX_PROBE_THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "dockstore-probe-" + probeThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param limits a comma-separated list of scheme=limit, e.g. s3=4,ftp=2
+     * @return the limits by lower case scheme
+     */
+    static Map<String, Integer> parseLimits(String limits) {
+        Map<String, Integer> parsed = new HashMap<>();
+        for (String limit : limits.split(",")) {
+            if (limit.isBlank()) {
+                continue;
+            }
+            final String[] schemeAndLimit = limit.split("=");
+            if (schemeAndLimit.length != 2) {
+                throw new IllegalArgumentException("Expected scheme=limit, got " + limit);
+            }
+            parsed.put(schemeAndLimit[0].trim().toLowerCase(Locale.ROOT), Integer.parseInt(schemeAndLimit[1].trim()));
+        }
+        return parsed;
+    }
+
+    /**
+     * Runs an action for each item and waits for all of them. If one fails, the ones that have not started yet are cancelled.
+     *
+     * @param items  what to transfer
+     * @param source where an item is transferred from or to, a URL or an absolute local path, used to probe its size and find its host
+     * @param action transfers an item
+     * @throws ExecutionException   if an action failed, with the failure as its cause
+     * @throws InterruptedException if interrupted while waiting, the transfers that have not started yet are cancelled
+     */
+    <T> void run(List<T> items, Function<T, String> source, Consumer<T> action) throws ExecutionException, InterruptedException {
+        run(items, source, item -> probeSize(source.apply(item), new HashMap<>()), action);
+    }
+
+    /**
+     * Like {@link #run(List, Function, Consumer)} for transfers whose size is not that of what is at their location, such as uploads
+     *
+     * @param location where an item is transferred from or to, used to find its host
+     * @param size     the size in bytes of an item, -1 if unknown, called in parallel and only if the order matters
+     */
+    <T> void run(List<T> items, Function<T, String> location, ToLongFunction<T> size, Consumer<T> action)
+        throws ExecutionException, InterruptedException {
+        final List<Job<T>> jobs = new ArrayList<>();
+        final List<Future<Long>> sizes = new ArrayList<>();
+        // set once a transfer fails so that the rest of the run is not started
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final boolean ordered = maxConcurrent > 1 && items.size() > 1;
+        for (T item : items) {
+            if (ordered) {
+                sizes.add(probeService.submit(() -> size.applyAsLong(item)));
+            }
+            jobs.add(new Job<>(item, location.apply(item), action, failed));
+        }
+        final List<Job<T>> order = new ArrayList<>(jobs);
+        if (ordered) {
+            for (int i = 0; i < jobs.size(); i++) {
+                jobs.get(i).size = sizes.get(i).get();
+            }
+            // unknown sizes sort as the largest, the sort is stable so equal sizes keep their order
+            order.sort(Comparator.comparingLong((Job<T> job) -> job.size == UNKNOWN_SIZE ? Long.MAX_VALUE : job.size).reversed());
+        }
+        synchronized (this) {
+            pending.addAll(order);
+        }
+        dispatch();
+        try {
+            for (Job<T> job : jobs) {
+                job.done.get();
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            failed.set(true);
+            cancel(jobs);
+            throw e;
+        }
+    }
+
+    /**
+     * @param heads where to keep the response to the HEAD request sent for an http(s) location, by location
+     * @return the size in bytes of what is at a location, -1 if it cannot be probed
+     */
+    static long probeSize(String location, Map<String, HttpValidators> heads) {
+        try {
+            if (HttpValidators.isHttp(location)) {
+                final HttpValidators head = HttpValidators.head(location);
+                heads.put(location, head);
+                return head.getContentLength();
+            }
+            final URI uri = FileProvisioning.createURIFromUnencodedPath(location);
+            final Path path = uri.getScheme() == null ? Paths.get(location) : "file".equalsIgnoreCase(uri.getScheme()) ? Paths.get(uri) : null;
+            if (path != null && Files.isRegularFile(path)) {
+                return Files.size(path);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Could not probe the size of " + location, e);
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    /**
+     * Starts as many pending transfers as the caps allow, in order, skipping those whose host or scheme is at its cap
+     */
+    private synchronized void dispatch() {
+        final Iterator<Job<?>> iterator = pending.iterator();
+        while (running < maxConcurrent && iterator.hasNext()) {
+            final Job<?> job = iterator.next();
+            if (job.failed.get()) {
+                iterator.remove();
+                job.done.completeExceptionally(new CancellationException("Cancelled after an earlier transfer failed"));
+                continue;
+            }
+            if (isAtCap(runningPerHost, job.host, maxPerHost) || isAtCap(runningPerScheme, job.scheme, maxPerScheme.getOrDefault(job.scheme, 0))) {
+                continue;
+            }
+            iterator.remove();
+            running++;
+            increment(runningPerHost, job.host, 1);
+            increment(runningPerScheme, job.scheme, 1);
+            LOG.info("Starting transfer of " + job.location + (job.size == UNKNOWN_SIZE ? "" : ", " + job.size + " bytes"));
+            executorService.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    release(job);
+                    dispatch();
+                }
+            });
+        }
+    }
+
+    private synchronized void release(Job<?> job) {
+        running--;
+        increment(runningPerHost, job.host, -1);
+        increment(runningPerScheme, job.scheme, -1);
+    }
+
+    private synchronized void cancel(List<? extends Job<?>> jobs) {
+        for (Job<?> job : jobs) {
+            if (pending.remove(job)) {
+                job.done.completeExceptionally(new CancellationException("Cancelled after an earlier transfer failed"));
+            }
+        }
+    }
+
+    private static boolean isAtCap(Map<String, Integer> runningByKey, String key, int cap) {
+        return key != null && cap > 0 && runningByKey.getOrDefault(key, 0) >= cap;
+    }
+
+    private static void increment(Map<String, Integer> runningByKey, String key, int delta) {
+        if (key != null) {
+            runningByKey.merge(key, delta, Integer::sum);
+        }
+    }
+
+    /**
+     * One transfer and where it stands
+     */
+    private static final class Job<T> {
+        private final T item;
+        private final String location;
+        private final String host;
+        private final String scheme;
+        private final Consumer<T> action;
+        private final AtomicBoolean failed;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private long size = UNKNOWN_SIZE;
+
+        Job(T item, String location, Consumer<T> action, AtomicBoolean failed) {
+            this.item = item;
+            this.location = location;
+            this.action = action;
+            this.failed = failed;
+            URI uri = null;
+            try {
+                uri = FileProvisioning.createURIFromUnencodedPath(location);
+            } catch (IllegalArgumentException e) {
+                LOG.debug(location + " is not a URI", e);
+            }
+            this.scheme = uri == null || uri.getScheme() == null ? "file" : uri.getScheme().toLowerCase(Locale.ROOT);
+            this.host = uri == null || uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ROOT);
+        }
+
+        void run() {
+            try {
+                action.accept(item);
+                done.complete(null);
+            } catch (RuntimeException | Error e) {
+                failed.set(true);
+                done.completeExceptionally(e);
+            }
+        }
+    }
+}
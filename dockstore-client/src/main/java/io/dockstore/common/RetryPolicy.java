@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.net.URI;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How failed transfers are retried, shared by all the transfers of a run.
+ *
+ * Waits between attempts use decorrelated jitter, a random delay between the base delay and three times the previous
+ * delay, so that parallel transfers against a failing server do not retry in lockstep. Retries can come out of a
+ * budget for the whole run, so that a run against a server that is down fails once the budget is spent instead of every
+ * file using up its own retries.
+ *
+ * Each host can have a circuit breaker that opens after a number of consecutive failures against it. While a breaker is
+ * open, transfers against that host fail fast without contacting it. Once the cool-down is over, the breaker lets one
+ * transfer through to probe the host and closes again if it succeeds.
+ *
+ * Both are off by default, as they fail transfers that would otherwise have been retried, so that each transfer only
+ * stops after its own retries.
+ */
+final class RetryPolicy {
+
+    static final int DEFAULT_RETRY_BUDGET = 0;
+    static final int DEFAULT_BREAKER_THRESHOLD = 0;
+    static final long DEFAULT_BREAKER_COOLDOWN_MILLIS = 30000;
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+    private static final long BASE_DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 60000;
+
+    private final boolean budgeted;
+    private final int breakerThreshold;
+    private final long breakerCooldownMillis;
+    private final LongSupplier clock;
+    private final AtomicInteger remainingBudget;
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger failFasts = new AtomicInteger();
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * @param retryBudget           how many retries all the transfers of a run may make together, 0 or less for no limit
+     * @param breakerThreshold      how many consecutive failures against a host open its breaker, 0 or less to never open it
+     * @param breakerCooldownMillis how long a breaker stays open before a transfer is let through to probe the host
+     */
+    RetryPolicy(int retryBudget, int breakerThreshold, long breakerCooldownMillis) {
+        this(retryBudget, breakerThreshold, breakerCooldownMillis, System::currentTimeMillis);
+    }
+
+    RetryPolicy(int retryBudget, int breakerThreshold, long breakerCooldownMillis, LongSupplier clock) {
+        this.budgeted = retryBudget > 0;
+        this.remainingBudget = new AtomicInteger(Math.max(retryBudget, 0));
+        this.breakerThreshold = breakerThreshold;
+        this.breakerCooldownMillis = breakerCooldownMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * @param location a URL or local path
+     * @return what a transfer is keyed on for its circuit breaker, the host or the scheme for URLs without a host
+     */
+    static String getHost(String location) {
+        try {
+            final URI uri = FileProvisioning.createURIFromUnencodedPath(location);
+            if (uri.getHost() != null) {
+                return uri.getHost().toLowerCase(Locale.ROOT);
+            }
+            return uri.getScheme() == null ? "file" : uri.getScheme().toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return location;
+        }
+    }
+
+    /**
+     * @param previousDelayMillis the delay before the previous attempt, 0 before the first retry
+     * @return how long to wait before the next attempt
+     */
+    long nextDelay(long previousDelayMillis) {
+        final long upper = Math.max(previousDelayMillis * 3, BASE_DELAY_MILLIS + 1);
+        return Math.min(MAX_DELAY_MILLIS, ThreadLocalRandom.current().nextLong(BASE_DELAY_MILLIS, upper));
+    }
+
+    /**
+     * @return true if the budget allows another retry, which is then taken out of it
+     */
+    boolean tryAcquireRetry() {
+        if (!budgeted || remainingBudget.getAndUpdate(remaining -> remaining > 0 ? remaining - 1 : remaining) > 0) {
+            retries.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the breaker for the host is open, in which case the transfer should fail without contacting the host
+     */
+    boolean allowRequest(String host) {
+        if (breakerThreshold <= 0) {
+            return true;
+        }
+        final boolean allowed = breakers.computeIfAbsent(host, key -> new CircuitBreaker()).allowRequest();
+        if (!allowed) {
+            failFasts.incrementAndGet();
+        }
+        return allowed;
+    }
+
+    void recordSuccess(String host) {
+        if (breakerThreshold > 0) {
+            breakers.computeIfAbsent(host, key -> new CircuitBreaker()).recordSuccess();
+        }
+    }
+
+    void recordFailure(String host) {
+        if (breakerThreshold > 0) {
+            breakers.computeIfAbsent(host, key -> new CircuitBreaker()).recordFailure(host);
+        }
+    }
+
+    /**
+     * @return the state of the breaker of each host transferred to or from so far
+     */
+    Map<String, BreakerState> getBreakerStates() {
+        Map<String, BreakerState> states = new TreeMap<>();
+        breakers.forEach((host, breaker) -> states.put(host, breaker.getState()));
+        return states;
+    }
+
+    int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return how many retries are left in the budget, -1 if there is no limit
+     */
+    int getRemainingBudget() {
+        return budgeted ? remainingBudget.get() : -1;
+    }
+
+    /**
+     * @return how many transfers failed fast because the breaker for their host was open
+     */
+    int getFailFasts() {
+        return failFasts.get();
+    }
+
+    /**
+     * @return the provisioning metrics of the run so far, for display
+     */
+    String getMetrics() {
+        return "retries: " + getRetries() + ", retry budget left: " + (budgeted ? String.valueOf(getRemainingBudget()) : "unlimited")
+            + ", failed fast: " + getFailFasts()
+            + ", circuit breakers: " + getBreakerStates();
+    }
+
+    enum BreakerState {
+        /**
+         * transfers go through
+         */
+        CLOSED,
+        /**
+         * transfers fail fast
+         */
+        OPEN,
+        /**
+         * one transfer is probing the host, the others fail fast
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Tracks consecutive failures against one host
+     */
+    private final class CircuitBreaker {
+        private BreakerState state = BreakerState.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+
+        synchronized boolean allowRequest() {
+            if (state == BreakerState.OPEN && clock.getAsLong() - openedAt >= breakerCooldownMillis) {
+                state = BreakerState.HALF_OPEN;
+                return true;
+            }
+            return state == BreakerState.CLOSED;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            state = BreakerState.CLOSED;
+        }
+
+        synchronized void recordFailure(String host) {
+            consecutiveFailures++;
+            if (state == BreakerState.HALF_OPEN || (state == BreakerState.CLOSED && consecutiveFailures >= breakerThreshold)) {
+                LOG.warn("Opening circuit breaker for " + host + " after " + consecutiveFailures + " consecutive failures");
+                state = BreakerState.OPEN;
+                openedAt = clock.getAsLong();
+            }
+        }
+
+        synchronized BreakerState getState() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+import io.dockstore.provision.ProgressPrinter;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads large http and https files over several connections at once, each fetching one byte range
+ * of the file and writing it at its offset in a preallocated destination file.
+ *
+ * Only used when the server advertises Accept-Ranges: bytes, reports a Content-Length and the file is above the threshold,
+ * otherwise the caller should fall back to streaming the file over a single connection. The caller should also fall back
+ * if a server answers a range request with the whole file, which happens when it does not actually support ranges or
+ * the file changed since it was probed.
+ *
+ * Progress is recorded in a {@link DownloadResumeState} while downloading a file with a strong ETag, so that a retry
+ * after a transient failure only fetches what is missing. Each range is requested with If-Range so a file that changed
+ * since is never stitched together from two versions. Without a strong ETag a failed download is deleted.
+ */
+final class SegmentedHttpDownloader {
+
+    static final long DEFAULT_THRESHOLD = 256L * 1024 * 1024;
+    static final int DEFAULT_SEGMENTS = 8;
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedHttpDownloader.class);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int TIMEOUT_MILLIS = 60000;
+    // how often to record the progress of a resumable download
+    private static final long SAVE_INTERVAL = 64L * 1024 * 1024;
+
+    private final int segments;
+    private final long threshold;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param segments  how many ranges to split a file into
+     * @param threshold files smaller than this many bytes are not split
+     * @param threads   how many files may be downloaded at the same time
+     */
+    SegmentedHttpDownloader(int segments, long threshold, int threads) {
+        this.segments = segments;
+        this.threshold = threshold;
+        // every segment of every file being downloaded may be fetching from the same host
+        HttpConnectionPool.ensureCapacity(segments * threads);
+        this.httpClient = HttpConnectionPool.newClientBuilder().setDefaultRequestConfig(HttpConnectionPool.defaultRequestConfig(TIMEOUT_MILLIS))
+            .build();
+    }
+
+    /**
+     * @param url         an http or https URL
+     * @param destination where to download the file to
+     * @param threads     number of threads, used for display purposes
+     * @return false if the server does not support ranges or the file is not worth splitting; nothing was downloaded
+     * @throws IOException if the download failed, what was downloaded so far is kept for a retry if the file has a strong ETag
+     */
+    boolean download(String url, Path destination, int threads) throws IOException {
+        return download(url, destination, threads, null);
+    }
+
+    /**
+     * Like {@link #download(String, Path, int)} for a URL that was already sent a HEAD request
+     *
+     * @param head what the HEAD request reported, null to send one here
+     */
+    boolean download(String url, Path destination, int threads, HttpValidators head) throws IOException {
+        if (head == null) {
+            try {
+                head = HttpValidators.head(url);
+            } catch (IOException e) {
+                LOG.debug("Could not send HEAD for " + url, e);
+                return false;
+            }
+        }
+        if (!head.acceptsRanges()) {
+            return false;
+        }
+        final long size = head.getContentLength();
+        final String etag = head.getEtag();
+        // weak ETags cannot be used with If-Range, without a strong one there is no telling whether the file changed between attempts
+        final boolean resumable = etag != null && !etag.startsWith("W/");
+        if (size <= 0 || size < threshold || size < segments || segments <= 1) {
+            return false;
+        }
+        final int segmentCount = segments;
+
+        final long segmentSize = size / segmentCount;
+        DownloadResumeState state = resumable ? DownloadResumeState.load(destination, url, size, etag, segmentCount).orElse(null) : null;
+        final boolean resuming = state != null && Files.size(destination) == size;
+        if (!resuming) {
+            final long[] starts = new long[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                starts[i] = i * segmentSize;
+            }
+            state = new DownloadResumeState(destination, url, size, etag, starts);
+        }
+        long alreadyTransferred = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            alreadyTransferred += state.getPosition(i) - i * segmentSize;
+        }
+        if (resuming) {
+            System.out.println("Resuming download of " + url + " with " + alreadyTransferred + " of " + size + " bytes already downloaded");
+        } else {
+            System.out.println("Downloading " + url + " in " + segmentCount + " segments");
+        }
+
+        final DownloadResumeState resumeState = state;
+        boolean rangesHonoured = true;
+        try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+            file.setLength(size);
+            final FileChannel channel = file.getChannel();
+            if (resumable && !resuming) {
+                resumeState.save();
+            }
+            final ProgressPrinter printer = new ProgressPrinter(threads, threads > 1 ? url : "");
+            final AtomicLong transferred = new AtomicLong(alreadyTransferred);
+            final AtomicLong sinceSave = new AtomicLong();
+            final AtomicBoolean aborted = new AtomicBoolean(false);
+            final ExecutorService executorService = Executors.newFixedThreadPool(segmentCount);
+            try {
+                final List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < segmentCount; i++) {
+                    final int segment = i;
+                    final long end = i == segmentCount - 1 ? size - 1 : (i + 1) * segmentSize - 1;
+                    if (resumeState.getPosition(segment) > end) {
+                        continue;
+                    }
+                    futures.add(executorService.submit(() -> {
+                        downloadRange(url, etag, resumeState.getPosition(segment), end, channel, aborted, position -> {
+                            final long bytes = position - resumeState.getPosition(segment);
+                            resumeState.setPosition(segment, position);
+                            if (resumable && sinceSave.addAndGet(bytes) >= SAVE_INTERVAL) {
+                                sinceSave.set(0);
+                                saveProgress(channel, resumeState);
+                            }
+                            final long total = transferred.addAndGet(bytes);
+                            synchronized (System.out) {
+                                printer.handleProgress(total, size);
+                            }
+                        });
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                stop(executorService, aborted);
+                if (e.getCause() instanceof RangeNotHonouredException) {
+                    rangesHonoured = false;
+                } else {
+                    if (resumable) {
+                        saveProgress(channel, resumeState);
+                    }
+                    throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                stop(executorService, aborted);
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + url, e);
+            } finally {
+                executorService.shutdownNow();
+                // finalize output from the printer
+                System.out.println();
+            }
+        } catch (IOException e) {
+            if (!resumable) {
+                // a preallocated file with holes in it is of no use to a retry
+                Files.deleteIfExists(destination);
+            }
+            throw e;
+        }
+        resumeState.delete();
+        if (!rangesHonoured) {
+            LOG.info("Server sent the whole of " + url + " when asked for a range, downloading it over a single connection");
+            Files.deleteIfExists(destination);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes the remaining ranges give up and waits for them, so that the recorded progress is final
+     */
+    private static void stop(ExecutorService executorService, AtomicBoolean aborted) {
+        aborted.set(true);
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void saveProgress(FileChannel channel, DownloadResumeState state) {
+        try {
+            // the positions must not get ahead of what is on disk
+            channel.force(false);
+            state.save();
+        } catch (IOException e) {
+            LOG.warn("Could not flush download progress", e);
+        }
+    }
+
+    /**
+     * Fetches bytes start to end inclusive and writes them at the same offset in the destination,
+     * reporting the offset of the next byte to fetch as it goes
+     */
+    private void downloadRange(String url, String etag, long start, long end, FileChannel channel, AtomicBoolean aborted,
+        LongConsumer listener) throws IOException {
+        final HttpGet get = new HttpGet(url);
+        get.setHeader(HttpHeaders.RANGE, "bytes=" + start + "-" + end);
+        if (etag != null) {
+            // if the file changed since it was probed, the server sends all of it and we bail out rather than mix two versions
+            get.setHeader(HttpHeaders.IF_RANGE, etag);
+        }
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                throw new RangeNotHonouredException(url);
+            }
+            final String contentRange = getHeader(response, HttpHeaders.CONTENT_RANGE);
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT || contentRange == null
+                || !contentRange.startsWith("bytes " + start + "-")) {
+                throw new IOException("Server did not honour range " + start + "-" + end + " of " + url + ", got " + response.getStatusLine());
+            }
+            long position = start;
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream inputStream = response.getEntity().getContent()) {
+                int read;
+                while (position <= end && !aborted.get() && (read = inputStream.read(buffer, 0, (int)Math.min(buffer.length, end - position + 1))) != -1) {
+                    final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                    listener.accept(position);
+                }
+            }
+            if (position != end + 1) {
+                throw new IOException("Range " + start + "-" + end + " of " + url + " ended early at " + position);
+            }
+        }
+        LOG.debug("Downloaded range " + start + "-" + end + " of " + url);
+    }
+
+    private static String getHeader(CloseableHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * The server answered a range request with the whole file
+     */
+    private static final class RangeNotHonouredException extends IOException {
+        RangeNotHonouredException(String url) {
+            super("Server sent the whole of " + url + " instead of a range");
+        }
+    }
+}
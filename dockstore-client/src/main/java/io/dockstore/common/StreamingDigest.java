@@ -0,0 +1,159 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Computes one or more checksums of a file as its bytes go by, so that a file being provisioned is only read once.
+ * Checksums are reported as lower case hex strings keyed by algorithm name: md5, sha1, sha256 or crc32c.
+ */
+final class StreamingDigest {
+
+    static final String MD5 = "md5";
+    static final String SHA1 = "sha1";
+    static final String SHA256 = "sha256";
+    static final String CRC32C = "crc32c";
+    private static final Map<String, String> MESSAGE_DIGESTS = Map.of(MD5, "MD5", SHA1, "SHA-1", SHA256, "SHA-256");
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private final CRC32C crc32c;
+
+    /**
+     * @param algorithms the checksums to compute, see {@link #isSupported(String)}
+     */
+    StreamingDigest(Collection<String> algorithms) {
+        for (String algorithm : algorithms) {
+            if (MESSAGE_DIGESTS.containsKey(algorithm)) {
+                try {
+                    digests.put(algorithm, MessageDigest.getInstance(MESSAGE_DIGESTS.get(algorithm)));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("Every JVM supports " + algorithm, e);
+                }
+            } else if (!CRC32C.equals(algorithm)) {
+                throw new IllegalArgumentException("Unsupported checksum algorithm " + algorithm);
+            }
+        }
+        this.crc32c = algorithms.contains(CRC32C) ? new CRC32C() : null;
+    }
+
+    static boolean isSupported(String algorithm) {
+        return MESSAGE_DIGESTS.containsKey(algorithm) || CRC32C.equals(algorithm);
+    }
+
+    /**
+     * Computes checksums of a file that was written without going through a StreamingDigest, such as by a plugin
+     */
+    static Map<String, String> of(Path file, Set<String> algorithms) throws IOException {
+        StreamingDigest digest = new StreamingDigest(algorithms);
+        digest.update(file, Files.size(file));
+        return digest.getValues();
+    }
+
+    /**
+     * Starts over, for when a download is retried from the beginning
+     */
+    void reset() {
+        digests.values().forEach(MessageDigest::reset);
+        if (crc32c != null) {
+            crc32c.reset();
+        }
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        for (MessageDigest digest : digests.values()) {
+            digest.update(bytes, offset, length);
+        }
+        if (crc32c != null) {
+            crc32c.update(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Reads the start of a file, for when a download resumes after bytes that went through an earlier StreamingDigest
+     *
+     * @param length how many bytes to read from the start of the file
+     */
+    void update(Path file, long length) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int read;
+            while (remaining > 0 && (read = inputStream.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
+                update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        if (remaining > 0) {
+            throw new IOException(file + " is shorter than " + length + " bytes");
+        }
+    }
+
+    /**
+     * @return a stream that feeds everything written to it into this digest before passing it on, closing it closes the wrapped stream
+     */
+    OutputStream wrap(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                update(new byte[] {(byte)b}, 0, 1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * @return the checksums of everything seen so far, by algorithm
+     */
+    Map<String, String> getValues() {
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            // digest a clone so that more bytes can still be added
+            try {
+                values.put(entry.getKey(), Hex.encodeHexString(((MessageDigest)entry.getValue().clone()).digest()));
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("Cannot clone " + entry.getKey() + " digest", e);
+            }
+        }
+        if (crc32c != null) {
+            values.put(CRC32C, String.format("%08x", crc32c.getValue()));
+        }
+        return values;
+    }
+}
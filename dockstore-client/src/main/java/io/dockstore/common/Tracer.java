@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records where the time of a run goes as spans: the stages of a launch, calls to web services, the files provisioned
+ * and the processes run. The spans are written as Chrome trace event JSON, which chrome://tracing and Perfetto open.
+ *
+ * Tracing is off unless a trace file is given. While it is off, starting a span returns a shared span that does nothing,
+ * so that callers can trace unconditionally.
+ */
+public final class Tracer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Tracer.class);
+    private static final Span NOOP = new Span(null, null, null, null);
+    // the innermost span open on each thread, so that code deeper down can annotate it
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static volatile Tracer instance;
+
+    private final Path file;
+    private final long startNanos = System.nanoTime();
+    private final long pid = ProcessHandle.current().pid();
+    private final Queue<Span> finished = new ConcurrentLinkedQueue<>();
+    private final Set<Span> open = ConcurrentHashMap.newKeySet();
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+
+    Tracer(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Turns tracing on for the rest of the run, the trace is written when the JVM exits
+     *
+     * @param file where to write the trace
+     */
+    public static synchronized void enable(Path file) {
+        if (instance == null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracer::write, "dockstore-trace-writer"));
+        }
+        instance = new Tracer(file);
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * Starts a span on the current thread, to be closed on the same thread
+     *
+     * @param category what kind of work the span is, e.g. launch, api, provision or subprocess
+     * @param name     what the span is doing
+     * @return the span, which does nothing if tracing is off
+     */
+    public static Span start(String category, String name) {
+        final Tracer tracer = instance;
+        return tracer == null ? NOOP : tracer.startSpan(category, name);
+    }
+
+    /**
+     * @return the innermost span open on the current thread, which does nothing if there is none or tracing is off
+     */
+    public static Span current() {
+        if (instance == null) {
+            return NOOP;
+        }
+        final Span span = CURRENT.get();
+        return span == null ? NOOP : span;
+    }
+
+    /**
+     * Writes the spans recorded so far to the trace file, spans still open are written as ending now
+     */
+    public static void write() {
+        final Tracer tracer = instance;
+        if (tracer != null) {
+            try {
+                tracer.writeTrace();
+            } catch (IOException e) {
+                LOG.error("Could not write trace to " + tracer.file, e);
+            }
+        }
+    }
+
+    Span startSpan(String category, String name) {
+        final Thread thread = Thread.currentThread();
+        threadNames.putIfAbsent(thread.getId(), thread.getName());
+        final Span span = new Span(this, category, name, CURRENT.get());
+        CURRENT.set(span);
+        open.add(span);
+        return span;
+    }
+
+    synchronized void writeTrace() throws IOException {
+        final long now = System.nanoTime();
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8); JsonWriter writer = new JsonWriter(out)) {
+            writer.beginObject();
+            writer.name("traceEvents").beginArray();
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                writer.beginObject();
+                writer.name("name").value("thread_name");
+                writer.name("ph").value("M");
+                writer.name("pid").value(pid);
+                writer.name("tid").value(thread.getKey());
+                writer.name("args").beginObject().name("name").value(thread.getValue()).endObject();
+                writer.endObject();
+            }
+            for (Span span : finished) {
+                writeSpan(writer, span, span.endNanos, false);
+            }
+            for (Span span : open) {
+                writeSpan(writer, span, now, true);
+            }
+            writer.endArray();
+            writer.name("displayTimeUnit").value("ms");
+            writer.endObject();
+        }
+    }
+
+    private void writeSpan(JsonWriter writer, Span span, long endNanos, boolean unfinished) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(span.name);
+        writer.name("cat").value(span.category);
+        writer.name("ph").value("X");
+        writer.name("ts").value(TimeUnit.NANOSECONDS.toMicros(span.startNanos - startNanos));
+        writer.name("dur").value(TimeUnit.NANOSECONDS.toMicros(endNanos - span.startNanos));
+        writer.name("pid").value(pid);
+        writer.name("tid").value(span.threadId);
+        writer.name("args").beginObject();
+        for (Map.Entry<String, Object> arg : span.getArgs().entrySet()) {
+            writer.name(arg.getKey());
+            if (arg.getValue() instanceof Number) {
+                writer.value((Number)arg.getValue());
+            } else if (arg.getValue() instanceof Boolean) {
+                writer.value((Boolean)arg.getValue());
+            } else {
+                writer.value(String.valueOf(arg.getValue()));
+            }
+        }
+        if (unfinished) {
+            writer.name("unfinished").value(true);
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * A piece of work on one thread, from when it is started until it is closed
+     */
+    public static final class Span implements AutoCloseable {
+        private final Tracer tracer;
+        private final String category;
+        private final String name;
+        private final Span parent;
+        private final long threadId = Thread.currentThread().getId();
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Object> args = new LinkedHashMap<>();
+        private long endNanos;
+
+        private Span(Tracer tracer, String category, String name, Span parent) {
+            this.tracer = tracer;
+            this.category = category;
+            this.name = name;
+            this.parent = parent;
+        }
+
+        /**
+         * Annotates the span, e.g. with the number of bytes transferred
+         *
+         * @return this, to add more annotations
+         */
+        public Span arg(String key, Object value) {
+            if (tracer != null) {
+                synchronized (args) {
+                    args.put(key, value);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (tracer == null || !tracer.open.remove(this)) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            if (CURRENT.get() == this) {
+                CURRENT.set(parent);
+            }
+            tracer.finished.add(this);
+        }
+
+        private Map<String, Object> getArgs() {
+            synchronized (args) {
+                return new LinkedHashMap<>(args);
+            }
+        }
+    }
+}
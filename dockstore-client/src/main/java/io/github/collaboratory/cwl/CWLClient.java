@@ -181,8 +181,11 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
 
         // Load CWL from JSON to object
         CWL cwlUtil = new CWL(false, config);
+        CWLParseCache parseCache = CWLParseCache.fromConfig(cwlUtil, config);
+        // a workflow and the tools of its steps are pre-processed together rather than with a cwltool each
+        parseCache.prefetch(CWLParseCache.withRuns(localPrimaryDescriptorFile.getAbsolutePath()));
         // This won't work since I am using zip files, it is expecting files to be unzipped
-        final String imageDescriptorContent = cwlUtil.parseCWL(localPrimaryDescriptorFile.getAbsolutePath()).getLeft();
+        final String imageDescriptorContent = parseCache.parseCWL(localPrimaryDescriptorFile.getAbsolutePath()).getLeft();
         Object cwlObject = null;
         try {
             cwlObject = gson.fromJson(imageDescriptorContent, cwlClassTarget);
@@ -214,7 +217,7 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
                 Workflow workflow = (Workflow)cwlObject;
                 // this complex code is to handle the case where secondary files from tools define
                 // additional files that need to be provisioned also see https://github.com/dockstore/dockstore/issues/563
-                SecondaryFilesUtility secondaryFilesUtility = new SecondaryFilesUtility(cwlUtil, this.gson);
+                SecondaryFilesUtility secondaryFilesUtility = new SecondaryFilesUtility(parseCache, this.gson);
                 secondaryFilesUtility.modifyWorkflowToIncludeToolSecondaryFiles(workflow);
 
                 // Pull input files
@@ -407,7 +410,8 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
         final File primaryFile = abstractEntryClient.downloadTargetEntry(entry, ToolDescriptor.TypeEnum.CWL, true, tempDir);
 
         // need to suppress output
-        final ImmutablePair<String, String> output = abstractEntryClient.getCwlUtil().parseCWL(primaryFile.getAbsolutePath());
+        final ImmutablePair<String, String> output = CWLParseCache.fromConfig(abstractEntryClient.getCwlUtil(), Utilities.parseConfig(abstractEntryClient.getConfigFile()))
+            .parseCWL(primaryFile.getAbsolutePath());
         final Map<String, Object> stringObjectMap = abstractEntryClient.getCwlUtil().extractRunJson(output.getLeft());
         if (json) {
             try {
@@ -515,6 +519,8 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
             final List<?> files = (List<?>)getInputs.invoke(cwlObject);
 
             List<Pair<String, Path>> pairs = new ArrayList<>();
+            // checksums given for the inputs in the parameter file, by where the input is provisioned from
+            Map<String, String> checksums = new HashMap<>();
 
             // for each file input from the CWL, compare the IDs from CWL to the input JSON
             for (Object file : files) {
@@ -529,9 +535,9 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
                 cwlInputFileID = cleanFileId(cwlInputFileID);
                 // to be clear, these are secondary files as defined by CWL, not secondary descriptors
                 List<String> secondaryFiles = getSecondaryFileStrings(file);
-                pairs.addAll(pullFilesHelper(inputsOutputs, fileMap, cwlInputFileID, secondaryFiles));
+                pairs.addAll(pullFilesHelper(inputsOutputs, fileMap, cwlInputFileID, secondaryFiles, checksums));
             }
-            fileProvisioning.provisionInputFiles(this.originalTestParameterFilePath, pairs);
+            fileProvisioning.provisionInputFiles(this.originalTestParameterFilePath, pairs, checksums);
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
             LOG.error("Reflection issue, this is likely a coding problem.");
             throw new RuntimeException();
@@ -575,10 +581,11 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
      * @param fileMap        a record of the files that we have provisioned
      * @param cwlInputFileID the file id from the CWL file
      * @param secondaryFiles a record of secondary files that were identified
+     * @param checksums      a record of the checksums given for input files
      * @return a list of pairs of remote URLs to input files paired with where we want to download it to
      */
     private List<Pair<String, Path>> pullFilesHelper(Map<String, Object> inputsOutputs, Map<String, FileProvisioning.FileInfo> fileMap,
-            String cwlInputFileID, List<String> secondaryFiles) {
+            String cwlInputFileID, List<String> secondaryFiles, Map<String, String> checksums) {
 
         List<Pair<String, Path>> inputSet = new ArrayList<>();
 
@@ -595,10 +602,11 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
                         String path = getPathOrLocation(lhm);
                         // notice I'm putting key:path together so they are unique in the hash
                         if (path != null && stringObjectEntry.getKey().equals(cwlInputFileID)) {
+                            recordChecksum(lhm, path, checksums);
                             inputSet.addAll(doProcessFile(stringObjectEntry.getKey() + ":" + path, path, cwlInputFileID, fileMap, secondaryFiles));
                         }
                     } else if (entry instanceof ArrayList) {
-                        inputSet.addAll(processArrayofArrayOfFiles(entry, stringObjectEntry, cwlInputFileID, fileMap, secondaryFiles));
+                        inputSet.addAll(processArrayofArrayOfFiles(entry, stringObjectEntry, cwlInputFileID, fileMap, secondaryFiles, checksums));
                     }
                 }
                 // in this case the input is a single instance and not an array
@@ -606,6 +614,7 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
                 Map param = (HashMap)stringObjectEntry.getValue();
                 String path = getPathOrLocation(param);
                 if (path != null && stringObjectEntry.getKey().equals(cwlInputFileID)) {
+                    recordChecksum(param, path, checksums);
                     inputSet.addAll(doProcessFile(stringObjectEntry.getKey(), path, cwlInputFileID, fileMap, secondaryFiles));
                 }
             }
@@ -614,7 +623,7 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
     }
 
     private List<Pair<String, Path>> processArrayofArrayOfFiles(Object entry, Map.Entry<String, Object> stringObjectEntry,
-            String cwlInputFileID, Map<String, FileProvisioning.FileInfo> fileMap, List<String> secondaryFiles) {
+            String cwlInputFileID, Map<String, FileProvisioning.FileInfo> fileMap, List<String> secondaryFiles, Map<String, String> checksums) {
         List<Pair<String, Path>> inputSet = new ArrayList<>();
         try {
             ArrayList<Map> filesArray = (ArrayList)entry;
@@ -622,6 +631,7 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
                 String path = getPathOrLocation(file);
                 // notice I'm putting key:path together so they are unique in the hash
                 if (path != null && stringObjectEntry.getKey().equals(cwlInputFileID)) {
+                    recordChecksum(file, path, checksums);
                     inputSet.addAll(doProcessFile(stringObjectEntry.getKey() + ":" + path, path, cwlInputFileID, fileMap, secondaryFiles));
                 }
             }
@@ -640,6 +650,16 @@ public class CWLClient extends BaseLanguageClient implements LanguageClientInter
         return ObjectUtils.firstNonNull(getString(param, "path"), getString(param, "location"));
     }
 
+    /**
+     * CWL File objects may carry a checksum such as sha1$..., which is verified once the file is provisioned
+     */
+    private void recordChecksum(Map param, String path, Map<String, String> checksums) {
+        String checksum = getString(param, "checksum");
+        if (checksum != null) {
+            checksums.put(path, checksum);
+        }
+    }
+
     /**
      * Looks like this is intended to copy one file from source to a local destination
      *
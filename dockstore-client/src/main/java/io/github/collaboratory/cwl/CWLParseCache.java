@@ -0,0 +1,557 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.collaboratory.cwl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.cwl.avro.CWL;
+import io.dockstore.common.FileProvisionUtil;
+import io.dockstore.common.FileProvisioning;
+import io.dockstore.common.Tracer;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.configuration2.INIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the output of cwltool --print-pre for descriptors on disk, so that launching the same workflow again, from any
+ * process, does not start cwltool for the workflow and each of its steps again.
+ *
+ * Outputs are keyed by the cwltool version and the contents of the descriptor and of every file it references through
+ * run, $import, $include, $mixin or location, along with their paths relative to the descriptor. Descriptors that
+ * reference a remote file, directly or through another descriptor, are parsed on every launch instead, since the remote
+ * file could change without the key changing. The directory of the
+ * descriptor appears in the output, so it is replaced with a placeholder when stored and with the directory of the
+ * descriptor being parsed when read, since each launch downloads the descriptors to a directory of its own.
+ *
+ * The cwltool version is recorded with the size and modification time of the cwltool on the PATH, which installing
+ * another version replaces, so it is only asked for again once cwltool changed.
+ */
+final class CWLParseCache {
+
+    static final String CWL_PARSE_CACHE = "cwl-parse-cache";
+    private static final Logger LOG = LoggerFactory.getLogger(CWLParseCache.class);
+    private static final String CWLTOOL = "cwltool";
+    private static final String CWLTOOL_VERSION = "cwltool.properties";
+    private static final String EXECUTABLE = "executable";
+    private static final String VERSION = "version";
+    private static final String STDOUT = "stdout";
+    private static final String STDERR = "stderr";
+    private static final String DIRECTORY_URI_PLACEHOLDER = "${dockstore.cwl.directory.uri}/";
+    private static final String DIRECTORY_PLACEHOLDER = "${dockstore.cwl.directory}/";
+    // what cwltool --non-strict --print-pre does for one descriptor, for each of the descriptors it is given
+    private static final String PRE_PROCESS_SCRIPT = String.join("\n",
+        "import json, sys",
+        "from cwltool.context import LoadingContext",
+        "from cwltool.load_tool import fetch_document, resolve_and_validate_document",
+        "outputs = {}",
+        "for path in sys.argv[2:]:",
+        "    try:",
+        "        context, document, uri = fetch_document(path, LoadingContext({'strict': False}))",
+        "        context, uri = resolve_and_validate_document(context, document, uri, preprocess_only=True)",
+        "        processed, metadata = context.loader.resolve_ref(uri)",
+        "        outputs[path] = json.dumps(processed, indent=4, sort_keys=True, separators=(',', ': '), default=str)",
+        "    except Exception as e:",
+        "        sys.stderr.write('Could not pre-process %s: %s\\n' % (path, e))",
+        "with open(sys.argv[1], 'w') as output:",
+        "    json.dump(outputs, output)");
+    private static final Pattern RUN = Pattern.compile("[\"']?run[\"']?\\s*:\\s*[\"']?([^\"'\\s#{}\\[\\],]+)");
+    private static final Pattern REFERENCE = Pattern.compile("[\"']?(?:run|\\$import|\\$include|\\$mixin|location)[\"']?\\s*:\\s*[\"']?([^\"'\\s#{}\\[\\],]+)");
+
+    private final Function<String, ImmutablePair<String, String>> parser;
+    private final Function<List<String>, Map<String, String>> batchParser;
+    private final Path directory;
+    private final String cwltoolVersion;
+    // what was pre-processed by a batch in this process, also when there is no cache directory
+    private final Map<Path, ImmutablePair<String, String>> prefetched = new ConcurrentHashMap<>();
+
+    /**
+     * @param parser         how to parse a descriptor when it is not cached, usually {@link CWL#parseCWL(String)}
+     * @param directory      where the cache lives, null to always parse
+     * @param cwltoolVersion the version of cwltool the parser uses
+     */
+    CWLParseCache(Function<String, ImmutablePair<String, String>> parser, Path directory, String cwltoolVersion) {
+        this(parser, null, directory, cwltoolVersion);
+    }
+
+    /**
+     * @param batchParser how to pre-process several descriptors at once, returning the output for each of them that it
+     *                    could pre-process, null to parse them one at a time
+     */
+    CWLParseCache(Function<String, ImmutablePair<String, String>> parser, Function<List<String>, Map<String, String>> batchParser, Path directory,
+        String cwltoolVersion) {
+        this.parser = parser;
+        this.batchParser = batchParser;
+        this.directory = directory;
+        this.cwltoolVersion = cwltoolVersion;
+    }
+
+    /**
+     * @return the cache in the cwl-parse-cache folder of the cache directory, so that --clean-cache removes it too, unless it
+     *     is turned off or there is no cwltool on the PATH, by default it is on when the input file cache is
+     */
+    static CWLParseCache fromConfig(CWL cwlUtil, INIConfiguration config) {
+        if (!config.getBoolean(CWL_PARSE_CACHE, FileProvisioning.isCacheOn(config))) {
+            return new CWLParseCache(cwlUtil::parseCWL, CWLParseCache::preProcessInOneProcess, null, null);
+        }
+        final Path directory = Paths.get(FileProvisioning.getCacheDirectory(config), CWL_PARSE_CACHE);
+        final String version = cwltoolVersion(directory);
+        return new CWLParseCache(cwlUtil::parseCWL, CWLParseCache::preProcessInOneProcess, version == null ? null : directory, version);
+    }
+
+    /**
+     * @return the same as {@link CWL#parseCWL(String)}, the output of cwltool --print-pre and what it logged
+     */
+    ImmutablePair<String, String> parseCWL(String descriptorPath) {
+        final Path descriptor = toPath(descriptorPath);
+        final ImmutablePair<String, String> prefetchedOutput = descriptor == null ? null : prefetched.get(descriptor);
+        if (prefetchedOutput != null) {
+            return prefetchedOutput;
+        }
+        if (directory == null || descriptor == null) {
+            return preProcess(descriptorPath);
+        }
+        final Path file;
+        try {
+            file = getFile(descriptor);
+        } catch (IOException e) {
+            LOG.warn("Could not hash " + descriptorPath + " and what it references", e);
+            return preProcess(descriptorPath);
+        }
+        if (file == null) {
+            LOG.debug(descriptorPath + " references a remote file, it is not cached");
+            return preProcess(descriptorPath);
+        }
+        final Path root = descriptor.getParent();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            final JsonObject cached = JsonParser.parseReader(reader).getAsJsonObject();
+            LOG.info("Using the cached pre-processed " + descriptorPath);
+            return new ImmutablePair<>(restore(getString(cached, STDOUT), root), restore(getString(cached, STDERR), root));
+        } catch (NoSuchFileException e) {
+            LOG.debug("Pre-processed " + descriptorPath + " is not cached");
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            LOG.warn("Could not read the cached pre-processed " + descriptorPath, e);
+        }
+
+        final ImmutablePair<String, String> parsed = preProcess(descriptorPath);
+        store(file, parsed, root);
+        return parsed;
+    }
+
+    private ImmutablePair<String, String> preProcess(String descriptorPath) {
+        try (Tracer.Span ignored = Tracer.start("subprocess", "cwltool --print-pre").arg("descriptor", descriptorPath)) {
+            return parser.apply(descriptorPath);
+        }
+    }
+
+    /**
+     * Pre-processes the descriptors that are not cached yet in a single process, rather than a cwltool per descriptor,
+     * so that parsing them afterwards does not start cwltool. Descriptors the batch could not pre-process are left to
+     * {@link #parseCWL(String)}, which reports why.
+     *
+     * @param descriptorPaths paths or file URIs of descriptors, e.g. the runs of the steps of a workflow
+     */
+    void prefetch(Collection<String> descriptorPaths) {
+        if (batchParser == null) {
+            return;
+        }
+        final Map<String, Path> missing = new LinkedHashMap<>();
+        for (String descriptorPath : descriptorPaths) {
+            final Path descriptor = toPath(descriptorPath);
+            if (descriptor == null || prefetched.containsKey(descriptor) || !Files.isRegularFile(descriptor)) {
+                continue;
+            }
+            try {
+                final Path file = directory == null ? null : getFile(descriptor);
+                if (file == null || !Files.isRegularFile(file)) {
+                    missing.put(descriptor.toString(), descriptor);
+                }
+            } catch (IOException e) {
+                LOG.debug("Could not hash " + descriptorPath + " and what it references", e);
+            }
+        }
+        // a single descriptor costs a process either way
+        if (missing.size() < 2) {
+            return;
+        }
+        LOG.info("Pre-processing " + missing.size() + " descriptors in one process");
+        final Map<String, String> parsed;
+        try (Tracer.Span span = Tracer.start("subprocess", "cwltool --print-pre batch").arg("descriptors", missing.size())) {
+            parsed = batchParser.apply(new ArrayList<>(missing.keySet()));
+            span.arg("pre-processed", parsed.size());
+        }
+        for (Map.Entry<String, Path> descriptor : missing.entrySet()) {
+            final String output = parsed.get(descriptor.getKey());
+            if (output != null) {
+                final ImmutablePair<String, String> pair = new ImmutablePair<>(output, "");
+                prefetched.put(descriptor.getValue(), pair);
+                if (directory != null) {
+                    try {
+                        final Path file = getFile(descriptor.getValue());
+                        if (file != null) {
+                            store(file, pair, descriptor.getValue().getParent());
+                        }
+                    } catch (IOException e) {
+                        LOG.debug("Could not hash " + descriptor.getKey() + " and what it references", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the descriptor followed by the descriptors the steps of its workflow run, and the steps of theirs, that exist
+     */
+    static List<String> withRuns(String descriptorPath) {
+        final List<String> descriptors = new ArrayList<>();
+        final Path descriptor = toPath(descriptorPath);
+        if (descriptor == null) {
+            return descriptors;
+        }
+        final Set<Path> seen = new HashSet<>();
+        final Deque<Path> pending = new ArrayDeque<>();
+        seen.add(descriptor);
+        pending.add(descriptor);
+        while (!pending.isEmpty()) {
+            final Path path = pending.poll();
+            try {
+                final Matcher matcher = RUN.matcher(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+                descriptors.add(path.toString());
+                while (matcher.find()) {
+                    final Path run = resolve(path, matcher.group(1));
+                    if (run != null && Files.isRegularFile(run) && seen.add(run)) {
+                        pending.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                LOG.debug("Could not read " + path, e);
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * Hashes the descriptor and everything it references, transitively, a reference that does not exist is hashed as such
+     *
+     * @return the key, null if the descriptor references a remote file, whose contents the key cannot account for
+     */
+    String key(Path descriptor) throws IOException {
+        final Path root = descriptor.getParent();
+        final StringBuilder contents = new StringBuilder(cwltoolVersion).append('\n');
+        final Set<Path> seen = new HashSet<>();
+        final Deque<Path> pending = new ArrayDeque<>();
+        seen.add(descriptor);
+        pending.add(descriptor);
+        while (!pending.isEmpty()) {
+            final Path path = pending.poll();
+            contents.append(path.startsWith(root) ? root.relativize(path) : path).append('\n');
+            if (!Files.isRegularFile(path)) {
+                contents.append("missing\n");
+                continue;
+            }
+            final byte[] bytes = Files.readAllBytes(path);
+            contents.append(DigestUtils.sha256Hex(bytes)).append('\n');
+            final Matcher matcher = REFERENCE.matcher(new String(bytes, StandardCharsets.UTF_8));
+            while (matcher.find()) {
+                final Path referenced = resolve(path, matcher.group(1));
+                if (referenced == null) {
+                    if (matcher.group(1).contains("://")) {
+                        return null;
+                    }
+                    contents.append(matcher.group(1)).append('\n');
+                } else if (seen.add(referenced)) {
+                    pending.add(referenced);
+                }
+            }
+        }
+        return DigestUtils.sha256Hex(contents.toString());
+    }
+
+    /**
+     * @return where the output for a descriptor is cached, null if it cannot be cached
+     */
+    private Path getFile(Path descriptor) throws IOException {
+        final String key = key(descriptor);
+        return key == null ? null : directory.resolve(key + ".json");
+    }
+
+    private void store(Path file, ImmutablePair<String, String> parsed, Path root) {
+        final JsonObject cached = new JsonObject();
+        cached.addProperty(STDOUT, relativize(parsed.getLeft(), root));
+        cached.addProperty(STDERR, relativize(parsed.getRight(), root));
+        try {
+            FileProvisionUtil.writeAtomically(file, writer -> writer.write(cached.toString()));
+        } catch (IOException e) {
+            LOG.warn("Could not cache the pre-processed " + file, e);
+        }
+    }
+
+    /**
+     * @return the descriptor at a path or file URI, such as the run of a step in pre-processed output, null if it is neither
+     */
+    private static Path toPath(String descriptorPath) {
+        try {
+            return (descriptorPath.startsWith("file:") ? Paths.get(URI.create(descriptorPath)) : Paths.get(descriptorPath)).toAbsolutePath().normalize();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a reference from a descriptor resolved against it, null if it is not a local file
+     */
+    private static Path resolve(Path from, String reference) {
+        if (reference.startsWith("file:")) {
+            return toPath(reference);
+        } else if (reference.contains("://")) {
+            return null;
+        }
+        try {
+            return from.getParent().resolve(reference).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static String getString(JsonObject object, String name) {
+        return object.has(name) && !object.get(name).isJsonNull() ? object.get(name).getAsString() : null;
+    }
+
+    private static String relativize(String output, Path root) {
+        return output == null ? null : output.replace(directoryUri(root), DIRECTORY_URI_PLACEHOLDER).replace(root + File.separator, DIRECTORY_PLACEHOLDER);
+    }
+
+    private static String restore(String output, Path root) {
+        return output == null ? null : output.replace(DIRECTORY_URI_PLACEHOLDER, directoryUri(root)).replace(DIRECTORY_PLACEHOLDER, root + File.separator);
+    }
+
+    private static String directoryUri(Path root) {
+        final String uri = root.toUri().toString();
+        return uri.endsWith("/") ? uri : uri + "/";
+    }
+
+    /**
+     * @return the version of the cwltool on the PATH, null if there is none or it cannot tell its version
+     */
+    static String cwltoolVersion(Path directory) {
+        final Path executable = findCwltool();
+        if (executable == null) {
+            return null;
+        }
+        final String identity;
+        try {
+            final Path realPath = executable.toRealPath();
+            identity = realPath + " " + Files.size(realPath) + " " + Files.getLastModifiedTime(realPath).toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+        final Path file = directory.resolve(CWLTOOL_VERSION);
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            if (identity.equals(properties.getProperty(EXECUTABLE)) && properties.getProperty(VERSION) != null) {
+                return properties.getProperty(VERSION);
+            }
+        } catch (IOException e) {
+            LOG.debug("The version of " + executable + " is not cached");
+        }
+
+        final String version;
+        try (Tracer.Span ignored = Tracer.start("subprocess", "cwltool --version").arg("executable", executable)) {
+            final Process process = new ProcessBuilder(executable.toString(), "--version").redirectErrorStream(true).start();
+            try (InputStream inputStream = process.getInputStream()) {
+                version = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).trim();
+            }
+            if (!process.waitFor(1, TimeUnit.MINUTES) || process.exitValue() != 0 || version.isEmpty()) {
+                process.destroy();
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not get the version of " + executable, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        properties.setProperty(EXECUTABLE, identity);
+        properties.setProperty(VERSION, version);
+        try {
+            FileProvisionUtil.writeAtomically(file, writer -> properties.store(writer, null));
+        } catch (IOException e) {
+            LOG.warn("Could not cache the version of " + executable, e);
+        }
+        return version;
+    }
+
+    /**
+     * Runs the steps of cwltool --non-strict --print-pre for each descriptor with the python of the cwltool on the PATH
+     *
+     * @return the output for each descriptor that could be pre-processed, empty if the process could not run
+     */
+    static Map<String, String> preProcessInOneProcess(List<String> descriptorPaths) {
+        final List<String> command = cwltoolInterpreter();
+        if (command.isEmpty()) {
+            return Map.of();
+        }
+        Path output = null;
+        try {
+            output = Files.createTempFile("dockstore-cwl-pre", ".json");
+            command.add("-c");
+            command.add(PRE_PROCESS_SCRIPT);
+            command.add(output.toString());
+            command.addAll(descriptorPaths);
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final String logged;
+            try (InputStream inputStream = process.getInputStream()) {
+                logged = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (process.waitFor() != 0) {
+                LOG.warn("Could not pre-process descriptors in one process, they are pre-processed one at a time: " + logged);
+                return Map.of();
+            }
+            LOG.debug(logged);
+            final Map<String, String> parsed = new HashMap<>();
+            try (Reader reader = Files.newBufferedReader(output, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, JsonElement> entry : JsonParser.parseReader(reader).getAsJsonObject().entrySet()) {
+                    if (entry.getValue().isJsonPrimitive()) {
+                        parsed.put(entry.getKey(), entry.getValue().getAsString());
+                    }
+                }
+            }
+            return parsed;
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            LOG.warn("Could not pre-process descriptors in one process, they are pre-processed one at a time", e);
+            return Map.of();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of();
+        } finally {
+            if (output != null) {
+                FileUtils.deleteQuietly(output.toFile());
+            }
+        }
+    }
+
+    /**
+     * @return the interpreter line of the cwltool on the PATH, which runs python with cwltool installed, empty if there is none
+     */
+    private static List<String> cwltoolInterpreter() {
+        final Path executable = findCwltool();
+        return executable == null ? new ArrayList<>() : pythonInterpreter(executable);
+    }
+
+    /**
+     * @param executable a script such as the cwltool entry point
+     * @return the interpreter line of the script if it runs a python that can import cwltool, empty otherwise
+     */
+    static List<String> pythonInterpreter(Path executable) {
+        final List<String> command;
+        try (BufferedReader reader = Files.newBufferedReader(executable, StandardCharsets.UTF_8)) {
+            final String line = reader.readLine();
+            if (line == null || !line.startsWith("#!")) {
+                return new ArrayList<>();
+            }
+            command = new ArrayList<>(Arrays.asList(line.substring(2).trim().split("\\s+")));
+        } catch (IOException e) {
+            LOG.debug("Could not read " + executable, e);
+            return new ArrayList<>();
+        }
+        // e.g. #!/usr/bin/env python3, where the interpreter is the first argument of env that is not an option
+        int interpreter = 0;
+        if ("env".equals(fileName(command.get(0)))) {
+            interpreter = 1;
+            while (interpreter < command.size() && command.get(interpreter).startsWith("-")) {
+                interpreter++;
+            }
+        }
+        if (interpreter >= command.size() || !fileName(command.get(interpreter)).startsWith("python")) {
+            LOG.debug(executable + " is not run by python, descriptors are pre-processed one at a time");
+            return new ArrayList<>();
+        }
+        // env picks the first python on the PATH, which is not necessarily the one cwltool was installed for
+        final List<String> importCwltool = new ArrayList<>(command);
+        importCwltool.add("-c");
+        importCwltool.add("import cwltool");
+        try (Tracer.Span ignored = Tracer.start("subprocess", "python -c import cwltool").arg("command", String.join(" ", command))) {
+            final Process process = new ProcessBuilder(importCwltool).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (!process.waitFor(1, TimeUnit.MINUTES)) {
+                process.destroy();
+                return new ArrayList<>();
+            }
+            if (process.exitValue() != 0) {
+                LOG.debug(String.join(" ", command) + " cannot import cwltool, descriptors are pre-processed one at a time");
+                return new ArrayList<>();
+            }
+        } catch (IOException e) {
+            LOG.debug("Could not run " + String.join(" ", command), e);
+            return new ArrayList<>();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
+        }
+        return command;
+    }
+
+    private static String fileName(String path) {
+        final Path fileName = Paths.get(path).getFileName();
+        return fileName == null ? "" : fileName.toString();
+    }
+
+    private static Path findCwltool() {
+        for (String path : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            final Path candidate = Paths.get(path, CWLTOOL);
+            if (!path.isEmpty() && Files.isExecutable(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
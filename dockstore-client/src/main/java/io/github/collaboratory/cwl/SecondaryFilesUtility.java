@@ -16,6 +16,7 @@
 package io.github.collaboratory.cwl;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -24,7 +25,6 @@ import java.util.Set;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonParseException;
-import com.google.gson.internal.LinkedTreeMap;
 import io.cwl.avro.CWL;
 import io.cwl.avro.CommandInputParameter;
 import io.cwl.avro.CommandLineTool;
@@ -39,143 +39,123 @@ import org.slf4j.LoggerFactory;
  */
 class SecondaryFilesUtility {
     private static final Logger LOG = LoggerFactory.getLogger(SecondaryFilesUtility.class);
-    private CWL cwlUtil;
+    private CWLParseCache parseCache;
     private Gson gson;
 
-    // This contains a map of the CommandLineTool paths and objects that were already parsed.
-    private Map<String, CommandLineTool> descriptorMap = new HashMap<>();
+    // This contains a map of the CommandLineTool paths that were already parsed and the secondary files of their inputs by input ID.
+    private Map<String, Map<String, List<List<String>>>> descriptorMap = new HashMap<>();
 
     SecondaryFilesUtility(CWL cwlUtil, Gson gson) {
-        this.cwlUtil = cwlUtil;
+        this(new CWLParseCache(cwlUtil::parseCWL, null, null), gson);
+    }
+
+    /**
+     * @param parseCache parses the tool descriptors of the steps, which are usually unchanged from one launch to the next
+     */
+    SecondaryFilesUtility(CWLParseCache parseCache, Gson gson) {
+        this.parseCache = parseCache;
         this.gson = gson;
     }
 
     /**
-     * This retrieves a workflow's input file ids
+     * This retrieves the descriptors that the workflow's steps run
      *
      * @param workflow The workflow to retrieve
-     * @return The list of input file ids
+     * @return The list of descriptor paths, steps with an inline run are left out
      */
-    private List<String> getInputFileIds(Workflow workflow) {
-        List<String> inputFileIds = new ArrayList<>();
-        List<InputParameter> inputs = workflow.getInputs();
-        inputs.parallelStream().map(input -> input.getId().toString()).forEachOrdered(inputFileIds::add);
-        return inputFileIds;
+    private List<String> getStepRuns(Workflow workflow) {
+        List<String> runs = new ArrayList<>();
+        if (workflow.getSteps() instanceof List) {
+            for (Object step : (List<?>)workflow.getSteps()) {
+                if (step instanceof Map && ((Map<?, ?>)step).get("run") instanceof String) {
+                    runs.add((String)((Map<?, ?>)step).get("run"));
+                }
+            }
+        }
+        return runs;
     }
 
     /**
-     * This parses the CWL tool descriptor to find the which file IDs has secondary files referencing a file ID in the root workflow
-     * It then adds the file ID and the secondary files to the idAndSecondaryFiles map
+     * This parses the CWL tool descriptor, once, to find the secondary files of each of its inputs
      *
-     * @param toolFileIdPath      The ID that is mentioned in workflow descriptor's step
-     * @param workflowFileId      The ID that is mentioned in the workflow descriptor and test parameter file
-     * @param descriptorPath      The descriptor path of the current descriptor (source)
-     * @param idAndSecondaryFiles A map containing a list of file IDs and secondary files that need to be added to it
+     * @param descriptorPath The descriptor path of the tool that a step runs
+     * @return A map of the tool's input IDs (without the path) and the secondary files of the inputs with that ID
      */
-    private void loopThroughSource(String toolFileIdPath, String workflowFileId, String descriptorPath,
-            List<Map<String, List<String>>> idAndSecondaryFiles) {
-        String toolIDFromWorkflow = extractID(toolFileIdPath);
-        CommandLineTool toolDescriptorObject;
+    private Map<String, List<List<String>>> getToolSecondaryFiles(String descriptorPath) {
+        Map<String, List<List<String>>> toolSecondaryFiles = descriptorMap.get(descriptorPath);
+        if (toolSecondaryFiles != null) {
+            return toolSecondaryFiles;
+        }
+        toolSecondaryFiles = new HashMap<>();
         try {
-            // Check if the descriptor was already parsed
-            if (descriptorMap.containsKey(descriptorPath)) {
-                toolDescriptorObject = descriptorMap.get(descriptorPath);
-            } else {
-                System.out.println("Parsed " + descriptorPath);
-                final String toolDescriptor = this.cwlUtil.parseCWL(descriptorPath).getLeft();
-                toolDescriptorObject = this.gson.fromJson(toolDescriptor, CommandLineTool.class);
-                descriptorMap.put(descriptorPath, toolDescriptorObject);
-            }
+            System.out.println("Parsed " + descriptorPath);
+            final String toolDescriptor = this.parseCache.parseCWL(descriptorPath).getLeft();
+            CommandLineTool toolDescriptorObject = this.gson.fromJson(toolDescriptor, CommandLineTool.class);
             if (toolDescriptorObject != null) {
-                List<CommandInputParameter> inputs = toolDescriptorObject.getInputs();
-                inputs.parallelStream().forEach(input -> {
+                for (CommandInputParameter input : toolDescriptorObject.getInputs()) {
                     try {
                         @SuppressWarnings("unchecked")
                         List<String> secondaryFiles = (List<String>)input.get("secondaryFiles");
                         if (secondaryFiles != null) {
-                            String toolId = input.getId().toString();
-                            String toolFileId = extractID(toolId);
-                            // Check if the tool descriptor has secondary files and if the id matches the workflow id
-                            if (toolFileId.equals(toolIDFromWorkflow)) {
-                                Map<String, List<String>> hashMap = new HashMap<>();
-                                hashMap.put(workflowFileId, secondaryFiles);
-                                idAndSecondaryFiles.add(hashMap);
-                            }
+                            toolSecondaryFiles.computeIfAbsent(extractID(input.getId().toString()), id -> new ArrayList<>()).add(secondaryFiles);
                         }
                     } catch (ClassCastException e) {
                         throw new RuntimeException("Unexpected secondary files format in " + descriptorPath, e);
                     }
-                });
-
+                }
             }
         } catch (JsonParseException ex) {
             throw new RuntimeException("The JSON file provided is invalid.", ex);
         }
+        descriptorMap.put(descriptorPath, toolSecondaryFiles);
+        return toolSecondaryFiles;
     }
 
     /**
-     * The modifies idAndSecondaryFiles to include secondaryFiles present in the tool descriptor (even though it may exist in the workflow descriptor)
+     * This indexes the inputs of every step inside the workflow descriptor by their sources, in the order of the steps and their inputs,
+     * so that finding the steps that use a workflow input does not walk every step again
      *
-     * @param workflow            The workflow descriptor
-     * @param fileId              The current file ID we're looking at in the workflow descriptor
-     * @param idAndSecondaryFiles A file ids and secondary files that needed to be added to those file ids
+     * @param workflow The workflow descriptor
+     * @return A map of sources and the step inputs that use them
      */
-    private void getDescriptorsWithFileInput(Workflow workflow, String fileId, List<Map<String, List<String>>> idAndSecondaryFiles) {
+    private Map<String, List<StepInput>> getStepInputsBySource(Workflow workflow) {
+        Map<String, List<StepInput>> stepInputsBySource = new HashMap<>();
         Object steps = workflow.getSteps();
-        if (steps instanceof List) {
-            @SuppressWarnings("unchecked")
-            ArrayList<Object> stepsList = (ArrayList<Object>)steps;
-
-            // Loop through every step inside the workflow descriptor
-            stepsList.forEach((Object step) -> {
-                if (step instanceof Map) {
-                    LinkedTreeMap mapStep = (LinkedTreeMap)step;
-                    String descriptorPath = mapStep.get("run").toString();
-                    if (mapStep.get("in") instanceof List) {
-                        @SuppressWarnings("unchecked")
-                        ArrayList<Map> in = (ArrayList)mapStep.get("in");
-
-                        // Loop through every file input inside the step
-                        for (Map inn : in) {
-                            Object idObject = inn.get("id");
-                            if (idObject instanceof String) {
-                                String idString = (String)idObject;
-                                Object sourceObject = inn.get("source");
-                                if (sourceObject != null) {
-                                    if (sourceObject instanceof String) {
-                                        String id = (String)inn.get("source");
-                                        if (id.equals(fileId)) {
-                                            loopThroughSource(idString, fileId, descriptorPath, idAndSecondaryFiles);
-                                        }
-                                    } else if (sourceObject instanceof List) {
-                                        @SuppressWarnings("unchecked")
-                                        ArrayList<Object> sourceArrayList = (ArrayList)sourceObject;
-                                        sourceArrayList.forEach(source -> {
-                                            if (source instanceof String) {
-                                                String sourceString = (String)source;
-                                                if (sourceString.equals(fileId)) {
-                                                    loopThroughSource(idString, fileId, descriptorPath, idAndSecondaryFiles);
-                                                }
-                                            } else {
-                                                throwUnhandledTypeException(source);
-                                            }
-                                        });
-                                    } else {
-                                        throwUnhandledTypeException(sourceObject);
-                                    }
-                                }
-                            } else {
-                                throwUnhandledTypeException(idObject);
+        if (!(steps instanceof List)) {
+            throwUnhandledTypeException(steps);
+        }
+        // Loop through every step inside the workflow descriptor
+        for (Object step : (List<?>)steps) {
+            if (!(step instanceof Map)) {
+                throwUnhandledTypeException(step);
+            }
+            Map<?, ?> mapStep = (Map<?, ?>)step;
+            String descriptorPath = mapStep.get("run").toString();
+            if (mapStep.get("in") instanceof List) {
+                // Loop through every file input inside the step
+                for (Object inn : (List<?>)mapStep.get("in")) {
+                    Object idObject = ((Map<?, ?>)inn).get("id");
+                    if (!(idObject instanceof String)) {
+                        throwUnhandledTypeException(idObject);
+                    }
+                    StepInput stepInput = new StepInput((String)idObject, descriptorPath);
+                    Object sourceObject = ((Map<?, ?>)inn).get("source");
+                    if (sourceObject instanceof String) {
+                        stepInputsBySource.computeIfAbsent((String)sourceObject, source -> new ArrayList<>()).add(stepInput);
+                    } else if (sourceObject instanceof List) {
+                        for (Object source : (List<?>)sourceObject) {
+                            if (!(source instanceof String)) {
+                                throwUnhandledTypeException(source);
                             }
+                            stepInputsBySource.computeIfAbsent((String)source, key -> new ArrayList<>()).add(stepInput);
                         }
+                    } else if (sourceObject != null) {
+                        throwUnhandledTypeException(sourceObject);
                     }
-                } else {
-                    throwUnhandledTypeException(step);
                 }
-            });
-        } else {
-            throwUnhandledTypeException(steps);
+            }
         }
+        return stepInputsBySource;
     }
 
     /**
@@ -236,19 +216,35 @@ class SecondaryFilesUtility {
      * @param workflow The workflow object
      */
     void modifyWorkflowToIncludeToolSecondaryFiles(Workflow workflow) {
-        // Contains a list of descriptor files that uses the files in the root workflow
-        List<Map<String, List<String>>> descriptorsWithFiles = new ArrayList<>();
-        List<String> inputFileIds = this.getInputFileIds(workflow);
-        inputFileIds.forEach(inputFileId -> getDescriptorsWithFileInput(workflow, inputFileId, descriptorsWithFiles));
         List<InputParameter> inputs = workflow.getInputs();
+        if (inputs.isEmpty()) {
+            return;
+        }
+        // Pre-process the tool descriptors of every step together before looking at them one at a time
+        this.parseCache.prefetch(getStepRuns(workflow));
+        Map<String, List<StepInput>> stepInputsBySource = getStepInputsBySource(workflow);
         inputs.forEach(input -> {
             String workflowId = input.getId().toString();
-            descriptorsWithFiles.forEach(file -> {
-                if (file.containsKey(workflowId)) {
-                    ArrayList<String> arrayListToolSecondaryFiles = (ArrayList<String>)file.get(workflowId);
-                    setInputFile(input, arrayListToolSecondaryFiles, workflowId);
+            // Copy the secondary files of the tool inputs that each step input using this workflow input is passed to
+            for (StepInput stepInput : stepInputsBySource.getOrDefault(workflowId, Collections.emptyList())) {
+                List<List<String>> toolSecondaryFiles = getToolSecondaryFiles(stepInput.descriptorPath).get(extractID(stepInput.id));
+                if (toolSecondaryFiles != null) {
+                    toolSecondaryFiles.forEach(secondaryFiles -> setInputFile(input, secondaryFiles, workflowId));
                 }
-            });
+            }
         });
     }
+
+    /**
+     * An input of a step, the ID that is mentioned in workflow descriptor's step and the descriptor path of the tool it is passed to
+     */
+    private static final class StepInput {
+        private final String id;
+        private final String descriptorPath;
+
+        private StepInput(String id, String descriptorPath) {
+            this.id = id;
+            this.descriptorPath = descriptorPath;
+        }
+    }
 }
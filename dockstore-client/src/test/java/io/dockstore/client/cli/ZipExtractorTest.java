@@ -0,0 +1,216 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import io.dockstore.common.BenchmarkTest;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipExtractorTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ZipExtractorTest.class);
+
+    // pass -Ddockstore.unzip.benchmark.files=20000 to benchmark larger bundles
+    private static final int BENCHMARK_FILES = Integer.getInteger("dockstore.unzip.benchmark.files", 2000);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testExtract() throws IOException {
+        final File zipFile = temporaryFolder.newFile("bundle.zip");
+        final int files = 100;
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipFile.toPath()))) {
+            zip.putNextEntry(new ZipEntry("empty/"));
+            zip.closeEntry();
+            for (int i = 0; i < files; i++) {
+                zip.putNextEntry(new ZipEntry("test-data/" + i % 7 + "/file" + i + ".txt"));
+                zip.write(("contents of " + i).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        for (int threads : new int[] {1, 4}) {
+            final File directory = temporaryFolder.newFolder("threads" + threads);
+            ZipExtractor.extract(zipFile, directory, threads);
+            assertTrue(new File(directory, "empty").isDirectory());
+            for (int i = 0; i < files; i++) {
+                final File file = new File(directory, "test-data/" + i % 7 + "/file" + i + ".txt");
+                assertEquals("contents of " + i, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+        }
+
+        SwaggerUtility.unzipFile(zipFile, temporaryFolder.newFolder("deleted"), true);
+        assertFalse(zipFile.exists());
+    }
+
+    @Test
+    public void testZipSlip() throws IOException {
+        for (String name : new String[] {"../evil.sh", "tools/../../evil.sh", "/tmp/evil.sh"}) {
+            final File zipFile = new File(temporaryFolder.getRoot(), "slip.zip");
+            try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipFile.toPath()))) {
+                zip.putNextEntry(new ZipEntry("Dockstore.cwl"));
+                zip.write("class: Workflow".getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write("rm -rf ~".getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            final File directory = temporaryFolder.newFolder();
+            try {
+                ZipExtractor.extract(zipFile, directory, ZipExtractor.DEFAULT_THREADS);
+                fail(name + " should have been rejected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains(name));
+            }
+            // nothing is extracted from a zip with an entry outside of the directory
+            assertEquals(0, directory.list().length);
+            assertFalse(new File(temporaryFolder.getRoot(), "evil.sh").exists());
+        }
+    }
+
+    @Test
+    public void testDuplicateEntries() throws IOException {
+        for (String name : new String[] {"./Dockstore.cwl", "tools/../Dockstore.cwl", "Dockstore.cwl/nested.cwl"}) {
+            final File zipFile = zip("duplicate.zip", "Dockstore.cwl", "class: Workflow", name, "class: CommandLineTool");
+            final File directory = temporaryFolder.newFolder();
+            try {
+                ZipExtractor.extract(zipFile, directory, ZipExtractor.DEFAULT_THREADS);
+                fail(name + " should have been rejected");
+            } catch (IOException e) {
+                assertEquals(0, directory.list().length);
+            }
+        }
+    }
+
+    @Test
+    public void testLinksAreNotFollowed() throws IOException {
+        final File outside = temporaryFolder.newFolder("outside");
+        final File zipFile = zip("links.zip", "tools/sort.cwl", "class: CommandLineTool", "Dockstore.cwl", "class: Workflow");
+        // a folder linked elsewhere
+        final File linkedFolder = temporaryFolder.newFolder("linked-folder");
+        Files.createSymbolicLink(new File(linkedFolder, "tools").toPath(), outside.toPath());
+        try {
+            ZipExtractor.extract(zipFile, linkedFolder, 1);
+            fail("tools/sort.cwl should not have been written through a link");
+        } catch (IOException e) {
+            assertEquals(0, outside.list().length);
+        }
+        // a file linked elsewhere
+        final File linkedFile = temporaryFolder.newFolder("linked-file");
+        final File target = new File(outside, "target.txt");
+        Files.write(target.toPath(), "unchanged".getBytes(StandardCharsets.UTF_8));
+        Files.createSymbolicLink(new File(linkedFile, "Dockstore.cwl").toPath(), target.toPath());
+        try {
+            ZipExtractor.extract(zipFile, linkedFile, 1);
+            fail("Dockstore.cwl should not have been written through a link");
+        } catch (IOException e) {
+            assertEquals("unchanged", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    private File zip(String zipName, String... pathsAndContents) throws IOException {
+        final File zipFile = new File(temporaryFolder.getRoot(), zipName);
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipFile.toPath()))) {
+            for (int i = 0; i < pathsAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(pathsAndContents[i]));
+                zip.write(pathsAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return zipFile;
+    }
+
+    /**
+     * Benchmark of the extraction against extracting one entry at a time the way it used to be, for a bundle of many
+     * small files such as test data
+     */
+    @Test
+    @Category(BenchmarkTest.class)
+    public void testExtractionThroughput() throws IOException {
+        final File zipFile = temporaryFolder.newFile("large.zip");
+        final Random random = new Random(0);
+        final byte[] contents = new byte[4096];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(zipFile.toPath()))) {
+            for (int i = 0; i < BENCHMARK_FILES; i++) {
+                zip.putNextEntry(new ZipEntry("test-data/" + i % 50 + "/" + i % 11 + "/file" + i + ".txt"));
+                // half random, half compressible
+                random.nextBytes(contents);
+                zip.write(contents, 0, contents.length / 2);
+                zip.write(new byte[contents.length / 2]);
+                zip.closeEntry();
+            }
+        }
+
+        final File oneAtATime = temporaryFolder.newFolder("one-at-a-time");
+        long start = System.nanoTime();
+        unzipOneAtATime(zipFile, oneAtATime);
+        LOG.info("one entry at a time: " + BENCHMARK_FILES + " files in " + elapsedMillis(start) + " ms");
+
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            final File directory = temporaryFolder.newFolder("extractor" + threads);
+            start = System.nanoTime();
+            ZipExtractor.extract(zipFile, directory, threads);
+            LOG.info("extractor with " + threads + " threads: " + BENCHMARK_FILES + " files in " + elapsedMillis(start) + " ms");
+            final File last = new File("test-data/" + (BENCHMARK_FILES - 1) % 50 + "/" + (BENCHMARK_FILES - 1) % 11 + "/file" + (BENCHMARK_FILES - 1) + ".txt");
+            assertArrayEquals(Files.readAllBytes(new File(oneAtATime, last.getPath()).toPath()), Files.readAllBytes(new File(directory, last.getPath()).toPath()));
+        }
+    }
+
+    private static long elapsedMillis(long start) {
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+    }
+
+    /**
+     * How {@link SwaggerUtility#unzipFile(File, File)} used to extract
+     */
+    private static void unzipOneAtATime(File zipFile, File unzipDirectory) throws IOException {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            zip.stream().forEach((ZipEntry zipEntry) -> {
+                if (!zipEntry.isDirectory()) {
+                    File newFile = new File(unzipDirectory, zipEntry.getName());
+                    try {
+                        newFile.getParentFile().mkdirs();
+                        FileUtils.copyInputStreamToFile(zip.getInputStream(zipEntry), newFile);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+    }
+}
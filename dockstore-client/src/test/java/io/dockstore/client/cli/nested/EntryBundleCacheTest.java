@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli.nested;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EntryBundleCacheTest {
+
+    private static final String SERVER_URL = "https://dockstore.org/api";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStoreAndMaterialize() throws IOException {
+        final EntryBundleCache cache = new EntryBundleCache(temporaryFolder.newFolder("bundles").toPath(), SERVER_URL);
+        final String key = cache.key("workflows", 1L, 2L, "0123456789abcdef0123456789abcdef01234567", null);
+        assertFalse(cache.lookup(key).isPresent());
+
+        final byte[] zip = zip("Dockstore.cwl", "class: Workflow", "tools/sort.cwl", "class: CommandLineTool");
+        final Properties recorded = new Properties();
+        recorded.setProperty(EntryBundleCache.PRIMARY_DESCRIPTOR, "/Dockstore.cwl");
+        recorded.setProperty(EntryBundleCache.ZIP_FILENAME, "github.com_org_repo.zip");
+        final File downloaded = temporaryFolder.newFile("downloaded.zip");
+        Files.write(downloaded.toPath(), zip);
+        cache.store(downloaded.toPath(), recorded, key);
+
+        final Optional<EntryBundleCache.Bundle> bundle = cache.lookup(key);
+        assertTrue(bundle.isPresent());
+        assertEquals("/Dockstore.cwl", bundle.get().getProperty(EntryBundleCache.PRIMARY_DESCRIPTOR));
+
+        // each launch gets its own working directory with the files of the bundle
+        for (String launch : new String[] {"launch1", "launch2"}) {
+            final File directory = temporaryFolder.newFolder(launch);
+            final File zipFile = new File(directory, bundle.get().getProperty(EntryBundleCache.ZIP_FILENAME));
+            bundle.get().materialize(zipFile, directory);
+            assertArrayEquals(zip, Files.readAllBytes(zipFile.toPath()));
+            assertEquals("class: CommandLineTool", new String(Files.readAllBytes(new File(directory, "tools/sort.cwl").toPath()), StandardCharsets.UTF_8));
+        }
+        assertTrue(Files.isSameFile(new File(temporaryFolder.getRoot(), "launch1/Dockstore.cwl").toPath(),
+            new File(temporaryFolder.getRoot(), "launch2/Dockstore.cwl").toPath()));
+
+        // a version whose commit moved is a different key
+        assertFalse(cache.lookup(cache.key("workflows", 1L, 2L, "fedcba9876543210fedcba9876543210fedcba98", null)).isPresent());
+        // and so is the same version on another server
+        final EntryBundleCache otherServer = new EntryBundleCache(temporaryFolder.getRoot().toPath().resolve("bundles"), "https://qa.dockstore.org/api");
+        assertFalse(otherServer.lookup(otherServer.key("workflows", 1L, 2L, "0123456789abcdef0123456789abcdef01234567", null)).isPresent());
+    }
+
+    @Test
+    public void testKeys() {
+        final EntryBundleCache cache = new EntryBundleCache(temporaryFolder.getRoot().toPath(), SERVER_URL);
+        assertNotEquals(cache.key("workflows", "a", "bc"), cache.key("workflows", "ab", "c"));
+    }
+
+    private static byte[] zip(String... pathsAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < pathsAndContents.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(pathsAndContents[i]));
+                zip.write(pathsAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
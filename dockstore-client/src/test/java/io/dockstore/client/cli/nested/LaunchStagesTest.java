@@ -0,0 +1,102 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package io.dockstore.client.cli.nested;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.dockstore.client.cli.ArgumentUtility;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LaunchStagesTest {
+
+    @Test
+    public void testIndependentStagesOverlap() throws Exception {
+        // each of the two stages waits for the other to start, which only works if they run at the same time
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        LaunchStages stages = new LaunchStages();
+        stages.add("docker", () -> {
+            bothStarted.countDown();
+            assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+            order.add("docker");
+        });
+        stages.add("download", () -> {
+            bothStarted.countDown();
+            assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+            order.add("download");
+        });
+        stages.add("provision", () -> order.add("provision"), "download");
+        stages.await();
+        assertEquals(3, order.size());
+        assertTrue(order.indexOf("download") < order.indexOf("provision"));
+    }
+
+    @Test
+    public void testFailFast() {
+        CountDownLatch never = new CountDownLatch(1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        LaunchStages stages = new LaunchStages();
+        stages.add("slow", () -> never.await(10, TimeUnit.SECONDS));
+        stages.add("download", () -> {
+            throw new IOException("descriptor not found");
+        });
+        stages.add("provision", () -> ran.add("provision"), "download");
+        long start = System.nanoTime();
+        try {
+            stages.await();
+            fail("the failure should be reported");
+        } catch (Exception e) {
+            assertEquals("descriptor not found", e.getMessage());
+        }
+        // the failure is reported without waiting for the slow stage
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+        assertFalse(ran.contains("provision"));
+        never.countDown();
+    }
+
+    @Test
+    public void testExitIsDeferredToTheLaunchingThread() {
+        LaunchStages stages = new LaunchStages();
+        stages.add("initialize", () -> ArgumentUtility.errorMessage("cwltool is missing", 3));
+        stages.add("provision", () -> ArgumentUtility.exceptionMessage(new IOException("no input"), "", 5), "initialize");
+        try {
+            stages.await();
+            fail("the failure should be reported");
+        } catch (ArgumentUtility.ExitException e) {
+            assertEquals("cwltool is missing", e.getMessage());
+            assertEquals(3, e.getExitCode());
+        } catch (Exception e) {
+            fail("the exit code should be kept, got " + e);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDependency() {
+        new LaunchStages().add("provision", () -> { }, "download");
+    }
+}
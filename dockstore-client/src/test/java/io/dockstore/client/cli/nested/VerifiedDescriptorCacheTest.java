@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.client.cli.nested;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerifiedDescriptorCacheTest {
+
+    private static final String TRS_ID = "#workflow/github.com/org/repo";
+    private static final String SERVER_URL = "https://dockstore.org/api";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedDescriptorsAreVerified() throws IOException {
+        final VerifiedDescriptorCache cache = new VerifiedDescriptorCache(temporaryFolder.newFolder("verified").toPath(), SERVER_URL);
+        final File launch = temporaryFolder.newFolder("launch");
+        final File primary = write(launch, "Dockstore.cwl", "class: Workflow");
+        final File secondary = write(launch, "tools/sort.cwl", "class: CommandLineTool");
+        write(launch, "test.json", "{}");
+        assertEquals(64, VerifiedDescriptorCache.sha256(primary).length());
+
+        assertFalse(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+        final Map<String, String> checksums = new LinkedHashMap<>();
+        checksums.put("/Dockstore.cwl", VerifiedDescriptorCache.sha256(primary));
+        checksums.put("/tools/sort.cwl", VerifiedDescriptorCache.sha256(secondary));
+        cache.record("CWL", TRS_ID, "1.0", checksums, launch);
+
+        assertTrue(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+        // other versions, languages and servers are verified separately
+        assertFalse(cache.isVerified("CWL", TRS_ID, "2.0", launch));
+        assertFalse(cache.isVerified("WDL", TRS_ID, "1.0", launch));
+        assertFalse(new VerifiedDescriptorCache(temporaryFolder.getRoot().toPath().resolve("verified"), "https://qa.dockstore.org/api")
+            .isVerified("CWL", TRS_ID, "1.0", launch));
+
+        // a file that was not downloaded when the version was verified may be a descriptor that never was
+        final File added = write(launch, "tools/count.cwl", "class: CommandLineTool");
+        assertFalse(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+        assertTrue(added.delete());
+        assertTrue(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+
+        // a descriptor downloaded again with other contents has to be verified again
+        write(launch, "tools/sort.cwl", "class: ExpressionTool");
+        assertFalse(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+        assertTrue(secondary.delete());
+        assertFalse(cache.isVerified("CWL", TRS_ID, "1.0", launch));
+    }
+
+    private static File write(File directory, String path, String contents) throws IOException {
+        final File file = new File(directory, path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
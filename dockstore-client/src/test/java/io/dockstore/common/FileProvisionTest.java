@@ -1,22 +1,37 @@
 package io.dockstore.common;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 
 import io.dockstore.provision.ProvisionInterface;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 
 public class FileProvisionTest {
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testFindSupportedTargetPath() {
         ProvisionInterface s3Mock = Mockito.mock(ProvisionInterface.class);
@@ -52,4 +67,55 @@ public class FileProvisionTest {
         File inputFile = FileUtils.getFile("src", "test", "resources", "testDirectory With Spaces", "hello.txt");
         assertEquals(URI.create(encodedPath), FileProvisioning.createURIFromUnencodedPath(inputFile.getPath()));
     }
+
+    @Test
+    public void testEmptyDirectoryOutput() throws IOException {
+        final Path empty = temporaryFolder.newFolder("empty").toPath();
+        final Path destination = temporaryFolder.newFolder("destination").toPath();
+        FileProvisioning.FileInfo info = new FileProvisioning.FileInfo();
+        info.setUrl(destination.toString());
+        info.setDirectory(true);
+        File iniFile = FileUtils.getFile("src", "test", "resources", "config");
+        new FileProvisioning(iniFile.getAbsolutePath()).uploadFiles(List.of(new ImmutablePair<>(empty.toString(), info)));
+        assertTrue(Files.isDirectory(destination.resolve("empty")));
+    }
+
+    @Test
+    public void testSymlinkedDirectoryOutput() throws IOException {
+        final Path elsewhere = temporaryFolder.newFolder("elsewhere").toPath();
+        Files.write(elsewhere.resolve("linked.txt"), "file".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectories(elsewhere.resolve("folder"));
+        Files.write(elsewhere.resolve("folder").resolve("nested.txt"), "folder".getBytes(StandardCharsets.UTF_8));
+        final Path output = temporaryFolder.newFolder("output").toPath();
+        Files.createSymbolicLink(output.resolve("linked.txt"), elsewhere.resolve("linked.txt"));
+        Files.createSymbolicLink(output.resolve("folder"), elsewhere.resolve("folder"));
+        // a link back up the tree is skipped rather than walked forever
+        Files.createSymbolicLink(elsewhere.resolve("folder").resolve("loop"), output);
+        final Path destination = temporaryFolder.newFolder("destination").toPath();
+        FileProvisioning.FileInfo info = new FileProvisioning.FileInfo();
+        info.setUrl(destination.toString());
+        info.setDirectory(true);
+        File iniFile = FileUtils.getFile("src", "test", "resources", "config");
+        new FileProvisioning(iniFile.getAbsolutePath()).uploadFiles(List.of(new ImmutablePair<>(output.toString(), info)));
+        assertEquals("file", Files.readString(destination.resolve("output").resolve("linked.txt")));
+        assertEquals("folder", Files.readString(destination.resolve("output").resolve("folder").resolve("nested.txt")));
+    }
+
+    @Test
+    public void testFailedDownloadLeavesNoResumeState() throws IOException {
+        final Path destination = temporaryFolder.getRoot().toPath().resolve("input.bam");
+        final Path resumeState = destination.resolveSibling("input.bam.resume");
+        ProvisionInterface failing = Mockito.mock(ProvisionInterface.class);
+        // each attempt records how far it got before failing
+        when(failing.downloadFrom(anyString(), any(Path.class))).thenAnswer(invocation -> {
+            Files.write(resumeState, "position.0=1".getBytes(StandardCharsets.UTF_8));
+            return false;
+        });
+        try {
+            FileProvisioning.retryWrapper(failing, "s3://bucket/input.bam", destination, 1, true, 1);
+            fail("the download should fail");
+        } catch (RuntimeException e) {
+            assertFalse(Files.exists(resumeState));
+        }
+    }
 }
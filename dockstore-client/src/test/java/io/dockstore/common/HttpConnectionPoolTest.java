@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package io.dockstore.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HttpConnectionPoolTest {
+
+    @After
+    public void restoreDefaults() {
+        HttpConnectionPool.configure(HttpConnectionPool.DEFAULT_MAX_PER_ROUTE, HttpConnectionPool.DEFAULT_MAX_TOTAL);
+    }
+
+    @Test
+    public void testSharedPool() {
+        assertSame(HttpConnectionPool.getConnectionManager(), HttpConnectionPool.getConnectionManager());
+    }
+
+    @Test
+    public void testCapacity() {
+        HttpConnectionPool.configure(4, 8);
+        assertEquals(4, HttpConnectionPool.getMaxPerRoute());
+        assertEquals(8, HttpConnectionPool.getMaxTotal());
+
+        // a segmented download needing more connections per host grows the pool
+        HttpConnectionPool.ensureCapacity(16);
+        assertEquals(16, HttpConnectionPool.getMaxPerRoute());
+        assertEquals(16, HttpConnectionPool.getMaxTotal());
+
+        // but never shrinks it
+        HttpConnectionPool.ensureCapacity(2);
+        assertEquals(16, HttpConnectionPool.getMaxPerRoute());
+
+        // the total is never below what one host may use
+        HttpConnectionPool.configure(8, 4);
+        assertEquals(8, HttpConnectionPool.getMaxTotal());
+    }
+}
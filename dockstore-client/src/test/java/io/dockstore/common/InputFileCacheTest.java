@@ -0,0 +1,301 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InputFileCacheTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InputFileCacheTest.class);
+
+    private static final int ENTRIES = 64;
+    private static final int HITS_PER_THREAD = 200;
+    private static final LocalFileStager STAGER = LocalFileStager.parse(LocalFileStager.DEFAULT_STRATEGIES);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStoreAndRetrieve() throws IOException {
+        InputFileCache cache = new InputFileCache(temporaryFolder.newFolder("cache").getAbsolutePath(), 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        String targetPath = "https://example.org/reference.fa";
+        String key = InputFileCache.getKey(targetPath);
+        Path cachedFile = cache.getEntryPath(key);
+        assertEquals(key.substring(0, 2), cachedFile.getParent().getFileName().toString());
+
+        Path localPath = temporaryFolder.getRoot().toPath().resolve("run1").resolve("reference.fa");
+        assertFalse(cache.retrieve(targetPath, cachedFile, localPath));
+        Files.createDirectories(localPath.getParent());
+        Files.write(localPath, "ACGT".getBytes(StandardCharsets.UTF_8));
+        // checksums computed while provisioning are recorded with the entry
+        cache.store(targetPath, cachedFile, localPath, Optional.empty(), StreamingDigest.of(localPath, Set.of(StreamingDigest.MD5)));
+
+        Path secondRun = temporaryFolder.getRoot().toPath().resolve("run2").resolve("reference.fa");
+        assertTrue(cache.retrieve(targetPath, cachedFile, secondRun));
+        assertEquals("ACGT", new String(Files.readAllBytes(secondRun), StandardCharsets.UTF_8));
+        Map<String, String> checksums = cache.getChecksums(cachedFile);
+        assertEquals("f1f8f4bf413b16ad135722aa4591043e", checksums.get(StreamingDigest.MD5));
+        assertEquals(StreamingDigest.of(secondRun, Set.of(StreamingDigest.SHA256)).get(StreamingDigest.SHA256), checksums.get(StreamingDigest.SHA256));
+    }
+
+    @Test
+    public void testCorruptEntriesAreDiscarded() throws IOException {
+        InputFileCache cache = new InputFileCache(temporaryFolder.newFolder("corrupt").getAbsolutePath(), 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        String targetPath = "https://example.org/corrupt.fa";
+        Path cachedFile = cache.getEntryPath(InputFileCache.getKey(targetPath));
+        Path localPath = temporaryFolder.newFolder("corruptrun").toPath().resolve("corrupt.fa");
+        Files.write(localPath, "ACGT".getBytes(StandardCharsets.UTF_8));
+        cache.store(targetPath, cachedFile, localPath, Optional.empty(), Collections.emptyMap());
+        assertTrue(Files.exists(cachedFile.resolveSibling(cachedFile.getFileName() + ".meta")));
+
+        // a tool writing to its hard-linked input changes the cache entry without changing its size
+        Files.write(localPath, "TTTT".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(localPath, FileTime.fromMillis(Files.getLastModifiedTime(localPath).toMillis() + 1000));
+        Path secondRun = temporaryFolder.getRoot().toPath().resolve("corruptrun2").resolve("corrupt.fa");
+        assertFalse(cache.retrieve(targetPath, cachedFile, secondRun));
+        assertFalse(Files.exists(cachedFile));
+
+        // a truncated entry is caught by its size
+        cache.store(targetPath, cachedFile, localPath, Optional.empty(), Collections.emptyMap());
+        Files.write(localPath, "TT".getBytes(StandardCharsets.UTF_8));
+        assertFalse(cache.retrieve(targetPath, cachedFile, secondRun));
+        assertFalse(Files.exists(secondRun));
+    }
+
+    @Test
+    public void testRevalidation() throws IOException {
+        AtomicReference<String> etag = new AtomicReference<>("\"v1\"");
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("ETag", etag.get());
+            final boolean notModified = etag.get().equals(exchange.getRequestHeaders().getFirst("If-None-Match"));
+            exchange.sendResponseHeaders(notModified ? HttpURLConnection.HTTP_NOT_MODIFIED : HttpURLConnection.HTTP_OK, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            final String baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+            InputFileCache cache = new InputFileCache(temporaryFolder.newFolder("revalidate").getAbsolutePath(), 0, InputFileCache.EvictionPolicy.LRU, 0,
+                Pattern.compile(".*/immutable/.*"), STAGER);
+            Path localPath = temporaryFolder.newFolder("revalidaterun").toPath().resolve("reference.fa");
+            Files.write(localPath, "ACGT".getBytes(StandardCharsets.UTF_8));
+            for (String targetPath : new String[] {baseUrl + "/reference.fa", baseUrl + "/immutable/reference.fa"}) {
+                Path cachedFile = cache.getEntryPath(InputFileCache.getKey(targetPath));
+                cache.store(targetPath, cachedFile, localPath, cache.getValidators(targetPath, HttpValidators.head(targetPath)), Collections.emptyMap());
+            }
+            Path mutableEntry = cache.getEntryPath(InputFileCache.getKey(baseUrl + "/reference.fa"));
+            Path immutableEntry = cache.getEntryPath(InputFileCache.getKey(baseUrl + "/immutable/reference.fa"));
+            assertTrue(cache.retrieve(baseUrl + "/reference.fa", mutableEntry, temporaryFolder.getRoot().toPath().resolve("r1").resolve("a.fa")));
+
+            etag.set("\"v2\"");
+            assertFalse(cache.retrieve(baseUrl + "/reference.fa", mutableEntry, temporaryFolder.getRoot().toPath().resolve("r2").resolve("a.fa")));
+            assertFalse(Files.exists(mutableEntry));
+            assertTrue(cache.retrieve(baseUrl + "/immutable/reference.fa", immutableEntry, temporaryFolder.getRoot().toPath().resolve("r3").resolve("a.fa")));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testEvictionSkipsLinkedEntries() throws Exception {
+        String cacheDirectory = temporaryFolder.newFolder("evict").getAbsolutePath();
+        InputFileCache seedCache = new InputFileCache(cacheDirectory, 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        final int entrySize = 1000;
+        Path stillLinked = null;
+        for (int i = 0; i < 4; i++) {
+            String target = "https://example.org/evict" + i;
+            Path local = temporaryFolder.newFolder("evictseed" + i).toPath().resolve("input");
+            Files.write(local, new byte[entrySize]);
+            seedCache.store(target, seedCache.getEntryPath(InputFileCache.getKey(target)), local, Optional.empty(), Collections.emptyMap());
+            if (i == 0) {
+                // the oldest entry is still in use by a run
+                stillLinked = local;
+            } else {
+                Files.delete(local);
+            }
+        }
+        seedCache.saveIndex();
+        assertTrue(Files.exists(Path.of(cacheDirectory, InputFileCacheIndex.INDEX_FILE_NAME)));
+
+        // a new process with a cap of two entries
+        InputFileCache cache = new InputFileCache(cacheDirectory, 2 * entrySize, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (Files.exists(cache.getEntryPath(InputFileCache.getKey("https://example.org/evict2"))) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.exists(stillLinked));
+        assertTrue(Files.exists(cache.getEntryPath(InputFileCache.getKey("https://example.org/evict0"))));
+        assertFalse(Files.exists(cache.getEntryPath(InputFileCache.getKey("https://example.org/evict1"))));
+        assertFalse(Files.exists(cache.getEntryPath(InputFileCache.getKey("https://example.org/evict2"))));
+        assertTrue(Files.exists(cache.getEntryPath(InputFileCache.getKey("https://example.org/evict3"))));
+    }
+
+    @Test
+    public void testEvictionSkipsEntriesLockedByOtherProcesses() throws Exception {
+        String cacheDirectory = temporaryFolder.newFolder("evictlocked").getAbsolutePath();
+        InputFileCache seedCache = new InputFileCache(cacheDirectory, 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        List<Path> cachedFiles = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            String target = "https://example.org/locked" + i;
+            Path local = temporaryFolder.newFolder("lockedseed" + i).toPath().resolve("input");
+            Files.write(local, new byte[1000]);
+            Path cachedFile = seedCache.getEntryPath(InputFileCache.getKey(target));
+            try (InputFileCache.EntryLock ignored = seedCache.lockEntry(InputFileCache.getKey(target), target)) {
+                seedCache.store(target, cachedFile, local, Optional.empty(), Collections.emptyMap());
+            }
+            Files.delete(local);
+            cachedFiles.add(cachedFile);
+        }
+        seedCache.saveIndex();
+
+        // another process is linking the oldest entry while a new process with a cap of one entry starts
+        Path lockFile = cachedFiles.get(0).resolveSibling(cachedFiles.get(0).getFileName() + ".lock");
+        Path evicted = cachedFiles.get(1);
+        Path evictedLockFile = evicted.resolveSibling(evicted.getFileName() + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE); FileLock ignored = channel.lock()) {
+            InputFileCache cache = new InputFileCache(cacheDirectory, 1000, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            // the lock file is deleted last
+            while (Files.exists(evictedLockFile) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(Files.exists(cachedFiles.get(0)));
+            assertTrue(Files.exists(lockFile));
+        }
+        // the evicted entry goes away with its sidecar and lock file
+        assertFalse(Files.exists(evicted));
+        assertFalse(Files.exists(evicted.resolveSibling(evicted.getFileName() + ".meta")));
+        assertFalse(Files.exists(evictedLockFile));
+    }
+
+    @Test
+    public void testRecoverFromCrashedProcess() throws IOException {
+        InputFileCache cache = new InputFileCache(temporaryFolder.newFolder("crash").getAbsolutePath(), 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        String targetPath = "https://example.org/crashed.fa";
+        String key = InputFileCache.getKey(targetPath);
+        Path cachedFile = cache.getEntryPath(key);
+        // a process that died half way through caching the input leaves its lock file and temporary link behind
+        Files.createDirectories(cachedFile.getParent());
+        Path lockFile = cachedFile.resolveSibling(cachedFile.getFileName() + ".lock");
+        Path temporaryFile = cachedFile.resolveSibling(cachedFile.getFileName() + ".99999.tmp");
+        Files.write(lockFile, "99999".getBytes(StandardCharsets.UTF_8));
+        Files.write(temporaryFile, "AC".getBytes(StandardCharsets.UTF_8));
+
+        Path localPath = temporaryFolder.getRoot().toPath().resolve("crashrun").resolve("crashed.fa");
+        try (InputFileCache.EntryLock ignored = cache.lockEntry(key, targetPath)) {
+            assertFalse(Files.exists(temporaryFile));
+            assertFalse(cache.retrieve(targetPath, cachedFile, localPath));
+            Files.createDirectories(localPath.getParent());
+            Files.write(localPath, "ACGT".getBytes(StandardCharsets.UTF_8));
+            cache.store(targetPath, cachedFile, localPath, Optional.empty(), Collections.emptyMap());
+        }
+        assertEquals(0, Files.size(lockFile));
+        assertEquals("ACGT", new String(Files.readAllBytes(cachedFile), StandardCharsets.UTF_8));
+        try (Stream<Path> files = Files.list(cachedFile.getParent())) {
+            // the entry, its sidecar and the lock file
+            assertEquals(3, files.count());
+        }
+    }
+
+    /**
+     * Stress benchmark of the cache-hit path, reports throughput at 1, 8 and 32 threads.
+     * Threads hitting different entries should not serialize on each other.
+     */
+    @Test
+    @Category(BenchmarkTest.class)
+    public void testCacheHitThroughput() throws Exception {
+        InputFileCache cache = new InputFileCache(temporaryFolder.newFolder("hitcache").getAbsolutePath(), 0, InputFileCache.EvictionPolicy.LRU, Long.MAX_VALUE, null, STAGER);
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            String target = "https://example.org/input" + i + ".bam";
+            Path local = temporaryFolder.newFolder("seed" + i).toPath().resolve("input.bam");
+            Files.write(local, target.getBytes(StandardCharsets.UTF_8));
+            String key = InputFileCache.getKey(target);
+            cache.store(target, cache.getEntryPath(key), local, Optional.empty(), Collections.emptyMap());
+            targets.add(target);
+        }
+
+        for (int threads : new int[] {1, 8, 32}) {
+            File runDirectory = temporaryFolder.newFolder("threads" + threads);
+            AtomicInteger hits = new AtomicInteger();
+            ExecutorService executorService = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                futures.add(executorService.submit(() -> {
+                    for (int i = 0; i < HITS_PER_THREAD; i++) {
+                        String target = targets.get((thread + i) % ENTRIES);
+                        String key = InputFileCache.getKey(target);
+                        Path localPath = runDirectory.toPath().resolve(thread + "-" + i).resolve("input.bam");
+                        // the same path as a launch, which also takes the lock file of the entry
+                        try (InputFileCache.EntryLock ignored = cache.lockEntry(key, target)) {
+                            if (cache.retrieve(target, cache.getEntryPath(key), localPath)) {
+                                hits.incrementAndGet();
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            executorService.shutdownNow();
+            assertEquals(threads * HITS_PER_THREAD, hits.get());
+            LOG.info(threads + " thread(s): " + hits.get() * TimeUnit.SECONDS.toNanos(1) / Math.max(elapsed, 1) + " cache hits/s");
+        }
+    }
+}
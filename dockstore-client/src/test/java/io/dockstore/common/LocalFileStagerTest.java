@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LocalFileStagerTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalFileStagerTest.class);
+
+    // pass -Ddockstore.staging.benchmark.bytes=4294967296 to benchmark multi-GB files
+    private static final long BENCHMARK_BYTES = Long.getLong("dockstore.staging.benchmark.bytes", 64L * 1024 * 1024);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testChain() throws IOException {
+        Path source = temporaryFolder.newFile("input.txt").toPath();
+        Files.write(source, "ACGT".getBytes(StandardCharsets.UTF_8));
+
+        LocalFileStager stager = LocalFileStager.parse(LocalFileStager.DEFAULT_STRATEGIES);
+        Path linked = temporaryFolder.getRoot().toPath().resolve("linked.txt");
+        assertEquals(LocalFileStager.Strategy.HARD_LINK, stager.stage(source, linked));
+        assertTrue(Files.isSameFile(source, linked));
+
+        Path copied = temporaryFolder.getRoot().toPath().resolve("copied.txt");
+        LocalFileStager copier = new LocalFileStager(List.of(LocalFileStager.Strategy.HARD_LINK, LocalFileStager.Strategy.TRANSFER));
+        assertEquals(LocalFileStager.Strategy.HARD_LINK, copier.stage(source, copied));
+        Path transferred = temporaryFolder.getRoot().toPath().resolve("transferred.txt");
+        assertEquals(LocalFileStager.Strategy.TRANSFER, LocalFileStager.parse("transfer").stage(source, transferred));
+        assertFalse(Files.isSameFile(source, transferred));
+        assertEquals("ACGT", new String(Files.readAllBytes(transferred), StandardCharsets.UTF_8));
+
+        // a directory can neither be linked nor transferred, every strategy in the chain is tried
+        Path directory = temporaryFolder.newFolder("directory").toPath();
+        Path notStaged = temporaryFolder.getRoot().toPath().resolve("notstaged");
+        try {
+            copier.stage(directory, notStaged);
+            fail("a directory cannot be staged");
+        } catch (IOException e) {
+            assertEquals(2, e.getSuppressed().length);
+            assertFalse(Files.exists(notStaged));
+        }
+
+        Path symlinked = temporaryFolder.getRoot().toPath().resolve("symlinked.txt");
+        assertEquals(LocalFileStager.Strategy.SYMLINK, LocalFileStager.parse("symlink").stage(source, symlinked));
+        assertTrue(Files.isSymbolicLink(symlinked));
+        assertEquals(LocalFileStager.Strategy.TRANSFER, LocalFileStager.parse("symlink, transfer").withoutSymlinks()
+            .stage(source, temporaryFolder.getRoot().toPath().resolve("notsymlinked.txt")));
+    }
+
+    @Test
+    public void testUnsupportedReflinkIsRemembered() throws IOException {
+        Path source = temporaryFolder.newFile("clone.txt").toPath();
+        Files.write(source, "ACGT".getBytes(StandardCharsets.UTF_8));
+        LocalFileStager stager = LocalFileStager.parse("reflink,transfer");
+        Path first = temporaryFolder.getRoot().toPath().resolve("first.txt");
+        Path second = temporaryFolder.getRoot().toPath().resolve("second.txt");
+        if (stager.stage(source, first) == LocalFileStager.Strategy.REFLINK) {
+            // this file system supports reflinks, there is nothing to remember
+            assertFalse(stager.isUnsupported(LocalFileStager.Strategy.REFLINK, source, second));
+            return;
+        }
+        // files between the same file systems go straight to the transfer
+        assertTrue(stager.isUnsupported(LocalFileStager.Strategy.REFLINK, source, second));
+        assertFalse(stager.isUnsupported(LocalFileStager.Strategy.TRANSFER, source, second));
+        assertEquals(LocalFileStager.Strategy.TRANSFER, stager.stage(source, second));
+        assertEquals("ACGT", new String(Files.readAllBytes(second), StandardCharsets.UTF_8));
+        // only the stager that tried it knows
+        assertFalse(LocalFileStager.parse("reflink,transfer").isUnsupported(LocalFileStager.Strategy.REFLINK, source, second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownStrategy() {
+        LocalFileStager.parse("hardlink,teleport");
+    }
+
+    /**
+     * Benchmark of each strategy on its own, staging within the temporary folder's file system.
+     * Strategies that are not supported there are reported as such.
+     */
+    @Test
+    @Category(BenchmarkTest.class)
+    public void testStagingThroughput() throws IOException {
+        Path source = temporaryFolder.newFile("large.bam").toPath();
+        byte[] block = new byte[1024 * 1024];
+        new Random(0).nextBytes(block);
+        try (OutputStream outputStream = Files.newOutputStream(source)) {
+            for (long written = 0; written < BENCHMARK_BYTES; written += block.length) {
+                outputStream.write(block);
+            }
+        }
+        final long size = Files.size(source);
+        for (LocalFileStager.Strategy strategy : LocalFileStager.Strategy.values()) {
+            Path target = temporaryFolder.getRoot().toPath().resolve("staged-" + strategy.name());
+            long start = System.nanoTime();
+            try {
+                new LocalFileStager(List.of(strategy)).stage(source, target);
+            } catch (IOException e) {
+                LOG.info(strategy.getDescription() + ": not supported here");
+                continue;
+            }
+            long elapsedMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+            assertEquals(size, Files.size(target));
+            LOG.info(strategy.getDescription() + ": " + size / (1024 * 1024) + " MB in " + elapsedMillis + " ms");
+        }
+    }
+}
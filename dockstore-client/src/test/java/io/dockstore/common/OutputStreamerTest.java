@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiPredicate;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutputStreamerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStableFilesAreUploaded() throws IOException, InterruptedException {
+        final Path outputs = temporaryFolder.getRoot().toPath().resolve("outputs");
+        final List<String> uploads = Collections.synchronizedList(new ArrayList<>());
+        final OutputStreamer streamer = new OutputStreamer(outputs, file -> {
+            if (file.getFileName().toString().endsWith(".tmp")) {
+                return Optional.empty();
+            }
+            FileProvisioning.FileInfo info = new FileProvisioning.FileInfo();
+            info.setUrl("s3://bucket/results/" + outputs.relativize(file));
+            return Optional.of(info);
+        }, pairs -> pairs.forEach(pair -> uploads.add(pair.getRight().getUrl())), 200);
+
+        final Path shard = Files.createDirectories(outputs.resolve("shards")).resolve("shard1.bam");
+        Files.write(shard, "shard1".getBytes(StandardCharsets.UTF_8));
+        Files.write(outputs.resolve("scratch.tmp"), "scratch".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 100 && uploads.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        final BiPredicate<Path, String> uploaded = streamer.finish();
+
+        assertEquals(List.of("s3://bucket/results/shards/shard1.bam"), uploads);
+        assertTrue(uploaded.test(shard, "s3://bucket/results/shards/shard1.bam"));
+        assertFalse(uploaded.test(shard, "s3://bucket/elsewhere/shard1.bam"));
+        assertFalse(uploaded.test(outputs.resolve("scratch.tmp"), "s3://bucket/results/scratch.tmp"));
+
+        // a file written to after it was uploaded is uploaded again at the end
+        Files.write(shard, "shard1, rewritten".getBytes(StandardCharsets.UTF_8));
+        assertFalse(uploaded.test(shard, "s3://bucket/results/shards/shard1.bam"));
+    }
+
+    @Test
+    public void testFailedUploadIsLeftForTheEnd() throws IOException, InterruptedException {
+        final Path outputs = temporaryFolder.newFolder("failing").toPath();
+        final List<ImmutablePair<String, FileProvisioning.FileInfo>> attempts = Collections.synchronizedList(new ArrayList<>());
+        final OutputStreamer streamer = new OutputStreamer(outputs, file -> {
+            FileProvisioning.FileInfo info = new FileProvisioning.FileInfo();
+            info.setUrl("s3://bucket/" + file.getFileName());
+            return Optional.of(info);
+        }, pairs -> {
+            attempts.addAll(pairs);
+            throw new RuntimeException("bucket is unreachable");
+        }, 200);
+        final Path output = outputs.resolve("output.txt");
+        Files.write(output, "output".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 100 && attempts.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(streamer.finish().test(output, "s3://bucket/output.txt"));
+        assertEquals(1, attempts.size());
+    }
+}
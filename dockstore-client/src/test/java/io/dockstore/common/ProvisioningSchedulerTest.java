@@ -0,0 +1,145 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProvisioningSchedulerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testLargestFirst() throws IOException, ExecutionException, InterruptedException {
+        List<String> files = new ArrayList<>();
+        for (int size : new int[] {10, 1000, 100}) {
+            Path file = temporaryFolder.newFile("input" + size).toPath();
+            Files.write(file, new byte[size]);
+            files.add(file.toString());
+        }
+        files.add("s3://bucket/unknown.bam");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // one local file at a time, the unknown size starts alongside the largest file
+        new ProvisioningScheduler(2, 0, ProvisioningScheduler.parseLimits("file=1")).run(files, file -> file, order::add);
+        assertEquals(List.of(files.get(1), files.get(2), files.get(0)), order.stream().filter(file -> !file.startsWith("s3:")).collect(Collectors.toList()));
+        assertTrue(order.indexOf(files.get(3)) < 2);
+    }
+
+    @Test
+    public void testNoProbesWithOneThread() throws ExecutionException, InterruptedException {
+        // the order makes no difference with one thread or one transfer, so no time is spent probing sizes
+        AtomicInteger probes = new AtomicInteger();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        new ProvisioningScheduler(1, 0, Map.of()).run(List.of("a", "b", "c"), item -> item, item -> {
+            probes.incrementAndGet();
+            return item.charAt(0);
+        }, order::add);
+        assertEquals(List.of("a", "b", "c"), order);
+        new ProvisioningScheduler(8, 0, Map.of()).run(List.of("d"), item -> item, item -> {
+            probes.incrementAndGet();
+            return 1;
+        }, order::add);
+        assertEquals(0, probes.get());
+    }
+
+    @Test
+    public void testUploadSizes() throws ExecutionException, InterruptedException {
+        // uploads are sized by their local source, not by what is at their destination
+        Map<String, Long> sizes = Map.of("s3://bucket/small.bam", 10L, "s3://bucket/large.bam", 1000L, "file:///nfs/medium.bam", 100L);
+        List<String> destinations = List.of("s3://bucket/small.bam", "file:///nfs/medium.bam", "s3://bucket/large.bam");
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        // one transfer per host, the small upload waits for the large one to the same bucket
+        new ProvisioningScheduler(2, 1, Map.of()).run(destinations, dest -> dest, sizes::get, order::add);
+        assertEquals("s3://bucket/small.bam", order.get(2));
+    }
+
+    @Test
+    public void testPerHostCap() throws IOException, ExecutionException, InterruptedException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().set("Content-Length", exchange.getRequestURI().getPath().substring(1));
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            // the same server under two host names counts as two hosts
+            List<String> urls = new ArrayList<>();
+            for (int i = 1; i <= 8; i++) {
+                urls.add("http://" + (i % 2 == 0 ? "localhost" : "127.0.0.1") + ":" + server.getAddress().getPort() + "/" + i);
+            }
+            Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+            Map<String, Integer> peak = new ConcurrentHashMap<>();
+            List<String> order = Collections.synchronizedList(new ArrayList<>());
+            new ProvisioningScheduler(8, 2, Map.of()).run(urls, url -> url, url -> {
+                final String host = url.contains("localhost") ? "localhost" : "127.0.0.1";
+                final int now = running.computeIfAbsent(host, key -> new AtomicInteger()).incrementAndGet();
+                peak.merge(host, now, Math::max);
+                order.add(url);
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.get(host).decrementAndGet();
+            });
+            assertEquals(2, (int)peak.get("localhost"));
+            assertEquals(2, (int)peak.get("127.0.0.1"));
+            // the sizes come from the HEAD requests
+            assertTrue(order.indexOf(urls.get(7)) < order.indexOf(urls.get(1)));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailureCancelsPending() throws InterruptedException {
+        AtomicInteger started = new AtomicInteger();
+        try {
+            new ProvisioningScheduler(1, 0, ProvisioningScheduler.parseLimits("file=1")).run(List.of("a", "b", "c"), item -> item, item -> {
+                started.incrementAndGet();
+                throw new RuntimeException("Could not provision " + item);
+            });
+            fail("the failure should be reported");
+        } catch (ExecutionException e) {
+            assertEquals("Could not provision a", e.getCause().getMessage());
+        }
+        assertEquals(1, started.get());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testDecorrelatedJitter() {
+        RetryPolicy policy = new RetryPolicy(1, 0, 0);
+        long delay = 0;
+        for (int i = 0; i < 100; i++) {
+            long next = policy.nextDelay(delay);
+            assertTrue(next >= 100);
+            assertTrue(next <= Math.max(delay * 3, 101));
+            assertTrue(next <= 60000);
+            delay = next;
+        }
+    }
+
+    @Test
+    public void testRetryBudget() {
+        RetryPolicy policy = new RetryPolicy(2, 0, 0);
+        assertTrue(policy.tryAcquireRetry());
+        assertTrue(policy.tryAcquireRetry());
+        assertFalse(policy.tryAcquireRetry());
+        assertEquals(2, policy.getRetries());
+        assertEquals(0, policy.getRemainingBudget());
+    }
+
+    @Test
+    public void testDefaultsNeverFailFast() {
+        RetryPolicy policy = new RetryPolicy(RetryPolicy.DEFAULT_RETRY_BUDGET, RetryPolicy.DEFAULT_BREAKER_THRESHOLD,
+            RetryPolicy.DEFAULT_BREAKER_COOLDOWN_MILLIS);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.tryAcquireRetry());
+            assertTrue(policy.allowRequest("example.org"));
+            policy.recordFailure("example.org");
+        }
+        assertEquals(1000, policy.getRetries());
+        assertEquals(-1, policy.getRemainingBudget());
+        assertEquals(0, policy.getFailFasts());
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        AtomicLong now = new AtomicLong(0);
+        RetryPolicy policy = new RetryPolicy(10, 2, 1000, now::get);
+        assertEquals("example.org", RetryPolicy.getHost("https://Example.org/input.bam"));
+        assertEquals("file", RetryPolicy.getHost("/data/input.bam"));
+
+        assertTrue(policy.allowRequest("example.org"));
+        policy.recordFailure("example.org");
+        policy.recordFailure("example.org");
+        assertEquals(RetryPolicy.BreakerState.OPEN, policy.getBreakerStates().get("example.org"));
+        assertFalse(policy.allowRequest("example.org"));
+        // other hosts are not affected
+        assertTrue(policy.allowRequest("other.org"));
+
+        // after the cool-down one transfer probes the host, the others still fail fast
+        now.set(1000);
+        assertTrue(policy.allowRequest("example.org"));
+        assertEquals(RetryPolicy.BreakerState.HALF_OPEN, policy.getBreakerStates().get("example.org"));
+        assertFalse(policy.allowRequest("example.org"));
+        policy.recordFailure("example.org");
+        assertEquals(RetryPolicy.BreakerState.OPEN, policy.getBreakerStates().get("example.org"));
+
+        now.set(2000);
+        assertTrue(policy.allowRequest("example.org"));
+        policy.recordSuccess("example.org");
+        assertEquals(RetryPolicy.BreakerState.CLOSED, policy.getBreakerStates().get("example.org"));
+        assertTrue(policy.allowRequest("example.org"));
+        assertEquals(2, policy.getFailFasts());
+        assertTrue(policy.getMetrics().contains("example.org=CLOSED"));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedHttpDownloaderTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final int FILE_SIZE = 1024 * 1024 + 17;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] content = new byte[FILE_SIZE];
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final List<Integer> rangeStarts = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicBoolean failNextRange = new AtomicBoolean(false);
+    private final AtomicLong requestedBytes = new AtomicLong();
+    private final AtomicInteger headRequests = new AtomicInteger();
+    private HttpServer server;
+    private String baseUrl;
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(0).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            final boolean ranges = exchange.getRequestURI().getPath().startsWith("/ranges");
+            // advertises ranges but ignores them
+            if (ranges || exchange.getRequestURI().getPath().startsWith("/ignored")) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            exchange.getResponseHeaders().set("ETag", exchange.getRequestURI().getPath().contains("weak") ? "W/\"v1\"" : "\"v1\"");
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                headRequests.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            } else if (ranges && range != null) {
+                rangeRequests.incrementAndGet();
+                Matcher matcher = RANGE.matcher(range);
+                assertTrue(matcher.matches());
+                final int start = Integer.parseInt(matcher.group(1));
+                final int end = Integer.parseInt(matcher.group(2));
+                rangeStarts.add(start);
+                requestedBytes.addAndGet(end - start + 1);
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, end - start + 1);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    if (failNextRange.getAndSet(false)) {
+                        // drop the connection half way through
+                        outputStream.write(content, start, (end - start + 1) / 2);
+                        outputStream.flush();
+                        exchange.close();
+                        return;
+                    }
+                    outputStream.write(content, start, end - start + 1);
+                }
+            } else {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, content.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(content);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSegmentedDownload() throws IOException {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(4, 1024, 1);
+        Path destination = temporaryFolder.getRoot().toPath().resolve("ranged.bam");
+        assertTrue(downloader.download(baseUrl + "/ranges/input.bam", destination, 1));
+        assertEquals(4, rangeRequests.get());
+        assertArrayEquals(content, Files.readAllBytes(destination));
+    }
+
+    @Test
+    public void testProbedDownload() throws IOException {
+        // the HEAD request sent to size the input is not sent again
+        HttpValidators head = HttpValidators.head(baseUrl + "/ranges/input.bam");
+        assertEquals(1, headRequests.get());
+        Path destination = temporaryFolder.getRoot().toPath().resolve("probed.bam");
+        assertTrue(new SegmentedHttpDownloader(4, 1024, 1).download(baseUrl + "/ranges/input.bam", destination, 1, head));
+        assertEquals(1, headRequests.get());
+        assertArrayEquals(content, Files.readAllBytes(destination));
+    }
+
+    @Test
+    public void testResumeAfterFailure() throws IOException {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(4, 1024, 1);
+        Path destination = temporaryFolder.getRoot().toPath().resolve("resumed.bam");
+        failNextRange.set(true);
+        try {
+            downloader.download(baseUrl + "/ranges/input.bam", destination, 1);
+            fail("the first attempt should fail");
+        } catch (IOException e) {
+            assertTrue(Files.exists(destination.resolveSibling("resumed.bam.resume")));
+        }
+        assertEquals(FILE_SIZE, requestedBytes.get());
+        assertTrue(downloader.download(baseUrl + "/ranges/input.bam", destination, 1));
+        // only what is missing is fetched again
+        assertTrue(requestedBytes.get() - FILE_SIZE < FILE_SIZE);
+        assertArrayEquals(content, Files.readAllBytes(destination));
+        assertFalse(Files.exists(destination.resolveSibling("resumed.bam.resume")));
+    }
+
+    @Test
+    public void testFailureWithoutStrongETag() {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(4, 1024, 1);
+        Path destination = temporaryFolder.getRoot().toPath().resolve("weak.bam");
+        failNextRange.set(true);
+        try {
+            downloader.download(baseUrl + "/ranges/weak/input.bam", destination, 1);
+            fail("the download should fail");
+        } catch (IOException e) {
+            // cannot be resumed, so the preallocated file is not left behind
+            assertFalse(Files.exists(destination));
+            assertFalse(Files.exists(destination.resolveSibling("weak.bam.resume")));
+        }
+    }
+
+    @Test
+    public void testFallbackWhenRangesAreIgnored() throws IOException {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(4, 1024, 1);
+        Path destination = temporaryFolder.getRoot().toPath().resolve("ignored.bam");
+        assertFalse(downloader.download(baseUrl + "/ignored/input.bam", destination, 1));
+        assertFalse(Files.exists(destination));
+        assertFalse(Files.exists(destination.resolveSibling("ignored.bam.resume")));
+    }
+
+    @Test
+    public void testFallbackWithoutRanges() throws IOException {
+        SegmentedHttpDownloader downloader = new SegmentedHttpDownloader(4, 1024, 1);
+        Path destination = temporaryFolder.getRoot().toPath().resolve("whole.bam");
+        assertFalse(downloader.download(baseUrl + "/whole/input.bam", destination, 1));
+        assertFalse(Files.exists(destination));
+        // small files are not worth splitting, even with a strong ETag
+        assertFalse(new SegmentedHttpDownloader(4, FILE_SIZE + 1, 1).download(baseUrl + "/ranges/input.bam", destination, 1));
+        assertEquals(0, rangeRequests.get());
+    }
+}
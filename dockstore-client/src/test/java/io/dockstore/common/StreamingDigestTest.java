@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.dockstore.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingDigestTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testStreamingChecksums() throws IOException {
+        StreamingDigest digest = new StreamingDigest(List.of(StreamingDigest.MD5, StreamingDigest.SHA1, StreamingDigest.SHA256, StreamingDigest.CRC32C));
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (OutputStream outputStream = digest.wrap(copy)) {
+            outputStream.write(CHECK, 0, 4);
+            outputStream.write(CHECK[4]);
+            outputStream.write(CHECK, 5, CHECK.length - 5);
+        }
+        assertArrayEquals(CHECK, copy.toByteArray());
+        Map<String, String> checksums = digest.getValues();
+        assertEquals("25f9e794323b453885f5181f1b624d0b", checksums.get(StreamingDigest.MD5));
+        assertEquals("f7c3bc1d808e04732adf679965ccc34ca7ae3441", checksums.get(StreamingDigest.SHA1));
+        assertEquals("15e2b0d3c33891ebb0f1ef609ec419420c20e320ce94c65fbc8c3312448eb225", checksums.get(StreamingDigest.SHA256));
+        assertEquals("e3069283", checksums.get(StreamingDigest.CRC32C));
+
+        // a resumed download reads back what an earlier attempt wrote and carries on from there
+        Path partial = temporaryFolder.newFile("partial").toPath();
+        Files.write(partial, CHECK);
+        digest.reset();
+        digest.update(partial, 4);
+        digest.update(CHECK, 4, CHECK.length - 4);
+        assertEquals(checksums, digest.getValues());
+    }
+
+    @Test
+    public void testExpectedChecksum() {
+        Map<String, String> checksums = Map.of(StreamingDigest.SHA1, "f7c3bc1d808e04732adf679965ccc34ca7ae3441");
+        assertTrue(ExpectedChecksum.parse("sha1$F7C3BC1D808E04732ADF679965CCC34CA7AE3441").get().matches(checksums));
+        assertEquals(StreamingDigest.SHA256, ExpectedChecksum.parse("sha-256:15e2b0d3").get().getAlgorithm());
+        assertFalse(ExpectedChecksum.parse("sha1$0000").get().matches(checksums));
+        assertFalse(ExpectedChecksum.parse("whirlpool$0000").isPresent());
+        assertFalse(ExpectedChecksum.parse("f7c3bc1d808e04732adf679965ccc34ca7ae3441").isPresent());
+        assertFalse(ExpectedChecksum.parse(null).isPresent());
+    }
+}
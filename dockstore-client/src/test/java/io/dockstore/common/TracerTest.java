@@ -0,0 +1,98 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package io.dockstore.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TracerTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testDisabledSpansDoNothing() {
+        assertFalse(Tracer.isEnabled());
+        final Tracer.Span span = Tracer.start("provision", "s3://bucket/input.bam");
+        assertSame(span, Tracer.current());
+        assertSame(span, span.arg("bytes", 42));
+        span.close();
+    }
+
+    @Test
+    public void testChromeTraceEvents() throws IOException {
+        final Path file = temporaryFolder.getRoot().toPath().resolve("trace.json");
+        final Tracer tracer = new Tracer(file);
+        try (Tracer.Span stage = tracer.startSpan("launch", "provision input files")) {
+            try (Tracer.Span provision = tracer.startSpan("provision", "https://example.com/input.bam")) {
+                provision.arg("bytes", 1024L).arg("cache", "miss").arg("verified", true);
+            }
+            stage.arg("inputs", 1);
+        }
+        tracer.startSpan("subprocess", "cwltool");
+        tracer.writeTrace();
+
+        final JsonObject trace = JsonParser.parseString(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).getAsJsonObject();
+        final JsonArray events = trace.getAsJsonArray("traceEvents");
+        final Map<String, JsonObject> spans = new HashMap<>();
+        boolean threadNamed = false;
+        for (JsonElement element : events) {
+            final JsonObject event = element.getAsJsonObject();
+            if ("M".equals(event.get("ph").getAsString())) {
+                threadNamed |= Thread.currentThread().getName().equals(event.getAsJsonObject("args").get("name").getAsString());
+            } else {
+                assertEquals("X", event.get("ph").getAsString());
+                spans.put(event.get("name").getAsString(), event);
+            }
+        }
+        assertTrue(threadNamed);
+        assertEquals(3, spans.size());
+
+        final JsonObject stage = spans.get("provision input files");
+        final JsonObject provision = spans.get("https://example.com/input.bam");
+        assertEquals("provision", provision.get("cat").getAsString());
+        assertEquals(1024L, provision.getAsJsonObject("args").get("bytes").getAsLong());
+        assertEquals("miss", provision.getAsJsonObject("args").get("cache").getAsString());
+        assertTrue(provision.getAsJsonObject("args").get("verified").getAsBoolean());
+        assertEquals(1, stage.getAsJsonObject("args").get("inputs").getAsInt());
+        // the provisioning happened within the stage
+        assertTrue(provision.get("ts").getAsLong() >= stage.get("ts").getAsLong());
+        assertTrue(provision.get("ts").getAsLong() + provision.get("dur").getAsLong()
+            <= stage.get("ts").getAsLong() + stage.get("dur").getAsLong());
+        // spans still open when the trace is written are included
+        assertNotNull(spans.get("cwltool").getAsJsonObject("args").get("unfinished"));
+    }
+}
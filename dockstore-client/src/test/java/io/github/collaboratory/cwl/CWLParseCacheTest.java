@@ -0,0 +1,153 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.collaboratory.cwl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CWLParseCacheTest {
+
+    private static final String WORKFLOW = "class: Workflow\nsteps:\n  sort:\n    run: tools/sort.cwl\n";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final AtomicInteger parses = new AtomicInteger();
+    // stands in for cwltool --print-pre, which resolves the run of each step to a file URI
+    private final Function<String, ImmutablePair<String, String>> parser = descriptorPath -> {
+        parses.incrementAndGet();
+        final Path descriptor = new File(descriptorPath).toPath();
+        return new ImmutablePair<>("{\"run\": \"" + descriptor.resolveSibling("tools/sort.cwl").toUri() + "\"}", "Resolved " + descriptor);
+    };
+
+    @Test
+    public void testParsedOncePerContents() throws IOException {
+        final Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        final CWLParseCache cache = new CWLParseCache(parser, cacheDirectory, "3.1.20220628170238");
+        final Path launch1 = write(temporaryFolder.newFolder("launch1").toPath(), "class: CommandLineTool");
+        final Path launch2 = write(temporaryFolder.newFolder("launch2").toPath(), "class: CommandLineTool");
+
+        assertEquals(parser.apply(launch1.toString()), cache.parseCWL(launch1.toString()));
+        assertEquals(2, parses.get());
+        // the same descriptors downloaded by another launch are not parsed again, the output points at its directory
+        assertEquals(parser.apply(launch2.toString()), cache.parseCWL(launch2.toString()));
+        assertEquals(3, parses.get());
+        // as are the steps, which are parsed by their URI
+        final String step = launch2.resolveSibling("tools/sort.cwl").toUri().toString();
+        cache.parseCWL(step);
+        cache.parseCWL(step);
+        assertEquals(4, parses.get());
+
+        // changing a step or cwltool means parsing again
+        write(launch2.getParent(), "class: ExpressionTool");
+        cache.parseCWL(launch2.toString());
+        assertEquals(5, parses.get());
+        new CWLParseCache(parser, cacheDirectory, "3.1.20230201224320").parseCWL(launch1.toString());
+        assertEquals(6, parses.get());
+        cache.parseCWL(launch1.toString());
+        assertEquals(6, parses.get());
+    }
+
+    @Test
+    public void testPrefetchInOneBatch() throws IOException {
+        final Path directory = temporaryFolder.newFolder("launch").toPath();
+        final Path workflow = write(directory, "class: CommandLineTool");
+        Files.write(directory.resolve("tools/sort.cwl"), "class: Workflow\nsteps:\n  - run: count.cwl\n  - run: {class: ExpressionTool}\n"
+            .getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("tools/count.cwl"), "class: CommandLineTool".getBytes(StandardCharsets.UTF_8));
+        final List<String> descriptors = CWLParseCache.withRuns(workflow.toString());
+        assertEquals(List.of(workflow.toString(), directory.resolve("tools/sort.cwl").toString(), directory.resolve("tools/count.cwl").toString()),
+            descriptors);
+
+        final List<List<String>> batches = new ArrayList<>();
+        // the batch cannot pre-process count.cwl, which is then parsed on its own
+        final Function<List<String>, Map<String, String>> batchParser = paths -> {
+            batches.add(paths);
+            return paths.stream().filter(path -> !path.endsWith("count.cwl")).collect(Collectors.toMap(path -> path, path -> parser.apply(path).getLeft()));
+        };
+        final Path cacheDirectory = temporaryFolder.newFolder("cache").toPath();
+        final CWLParseCache cache = new CWLParseCache(parser, batchParser, cacheDirectory, "3.1.20220628170238");
+        cache.prefetch(descriptors);
+        assertEquals(1, batches.size());
+        assertEquals(descriptors, batches.get(0));
+        parses.set(0);
+        assertEquals(parser.apply(workflow.toString()).getLeft(), cache.parseCWL(workflow.toString()).getLeft());
+        cache.parseCWL(directory.resolve("tools/sort.cwl").toUri().toString());
+        cache.parseCWL(directory.resolve("tools/count.cwl").toString());
+        assertEquals(2, parses.get());
+
+        // another launch finds everything cached
+        final CWLParseCache later = new CWLParseCache(parser, batchParser, cacheDirectory, "3.1.20220628170238");
+        later.prefetch(descriptors);
+        assertEquals(1, batches.size());
+        descriptors.forEach(later::parseCWL);
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    public void testRemoteReferencesAreNotCached() throws IOException {
+        final CWLParseCache cache = new CWLParseCache(parser, temporaryFolder.newFolder("cache").toPath(), "3.1.20220628170238");
+        final Path workflow = write(temporaryFolder.newFolder("launch").toPath(), "class: CommandLineTool\n$import: https://example.com/types.yml\n");
+        // the workflow runs a step that imports a remote file, which could change without the descriptors changing
+        cache.parseCWL(workflow.toString());
+        cache.parseCWL(workflow.toString());
+        assertEquals(2, parses.get());
+    }
+
+    @Test
+    public void testOnlyPythonWithCwltoolRunsTheBatch() throws IOException {
+        for (String shebang : new String[] {"#!/bin/sh", "#!/usr/bin/env node", "#!/usr/bin/env -S python-without-cwltool -s", "cwltool"}) {
+            final Path script = temporaryFolder.newFile().toPath();
+            Files.write(script, (shebang + "\nimport cwltool\n").getBytes(StandardCharsets.UTF_8));
+            assertTrue(shebang, CWLParseCache.pythonInterpreter(script).isEmpty());
+        }
+    }
+
+    @Test
+    public void testUncached() throws IOException {
+        final CWLParseCache cache = new CWLParseCache(parser, null, null);
+        final Path workflow = write(temporaryFolder.getRoot().toPath(), "class: CommandLineTool");
+        cache.parseCWL(workflow.toString());
+        cache.parseCWL(workflow.toString());
+        assertEquals(2, parses.get());
+    }
+
+    private static Path write(Path directory, String tool) throws IOException {
+        Files.createDirectories(directory.resolve("tools"));
+        Files.write(directory.resolve("tools/sort.cwl"), tool.getBytes(StandardCharsets.UTF_8));
+        final Path workflow = directory.resolve("Dockstore.cwl");
+        Files.write(workflow, WORKFLOW.getBytes(StandardCharsets.UTF_8));
+        return workflow;
+    }
+}
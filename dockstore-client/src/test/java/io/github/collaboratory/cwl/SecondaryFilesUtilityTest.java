@@ -0,0 +1,163 @@
+/*
+ *    Copyright 2022 OICR and UCSC
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package io.github.collaboratory.cwl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import io.cwl.avro.CWL;
+import io.cwl.avro.InputParameter;
+import io.cwl.avro.Workflow;
+import io.dockstore.common.BenchmarkTest;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SecondaryFilesUtilityTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SecondaryFilesUtilityTest.class);
+
+    // pass -Ddockstore.secondary.benchmark.steps=5000 -Ddockstore.secondary.benchmark.inputs=20000 to benchmark larger workflows
+    private static final int BENCHMARK_STEPS = Integer.getInteger("dockstore.secondary.benchmark.steps", 500);
+    private static final int BENCHMARK_INPUTS = Integer.getInteger("dockstore.secondary.benchmark.inputs", 2000);
+    private static final int INS_PER_STEP = 4;
+    private static final int TOOLS = 10;
+    private static final String WORKFLOW_ID = "file:///workflows/main.cwl";
+    private static final Gson GSON = CWL.getTypeSafeCWLToolDocument();
+
+    private final AtomicInteger parses = new AtomicInteger();
+    // each tool has an in_0 input with an index as secondary file, and inputs without any
+    private final CWLParseCache parseCache = new CWLParseCache(descriptorPath -> {
+        parses.incrementAndGet();
+        final List<Object> inputs = new ArrayList<>();
+        for (int i = 0; i < INS_PER_STEP; i++) {
+            final Map<String, Object> input = new LinkedHashMap<>();
+            input.put("id", descriptorPath + "#in_" + i);
+            input.put("type", "File");
+            if (i == 0) {
+                input.put("secondaryFiles", List.of(".bai"));
+            }
+            inputs.add(input);
+        }
+        final Map<String, Object> tool = new LinkedHashMap<>();
+        tool.put("class", "CommandLineTool");
+        tool.put("id", descriptorPath);
+        tool.put("inputs", inputs);
+        tool.put("outputs", List.of());
+        return new ImmutablePair<>(GSON.toJson(tool), "");
+    }, null, null);
+
+    @Test
+    public void testToolSecondaryFiles() {
+        final Map<String, Object> bam = input("bam");
+        bam.put("secondaryFiles", new ArrayList<>(List.of(".crai")));
+        final List<Object> steps = new ArrayList<>();
+        // the bam is passed to the in_0 of one tool and, with the reference, to the in_1 of another
+        steps.add(step(0, "file:///tools/index.cwl", List.of(in(0, 0, "#bam"))));
+        steps.add(step(1, "file:///tools/align.cwl", List.of(in(1, 1, List.of("#bam", "#reference")), in(1, 0, "#reference"))));
+        final Workflow workflow = workflow(List.of(bam, input("reference"), input("unused")), steps);
+
+        new SecondaryFilesUtility(parseCache, GSON).modifyWorkflowToIncludeToolSecondaryFiles(workflow);
+        final List<InputParameter> inputs = workflow.getInputs();
+        assertEquals(Set.of(".crai", ".bai"), new HashSet<>((List<?>)inputs.get(0).getSecondaryFiles()));
+        assertEquals(List.of(".bai"), inputs.get(1).getSecondaryFiles());
+        assertNull(inputs.get(2).getSecondaryFiles());
+        assertEquals(2, parses.get());
+    }
+
+    /**
+     * Benchmark of a synthetic workflow where every workflow input is used by one step input
+     */
+    @Test
+    @Category(BenchmarkTest.class)
+    public void testLargeWorkflowThroughput() {
+        final List<Object> inputs = new ArrayList<>();
+        for (int i = 0; i < BENCHMARK_INPUTS; i++) {
+            inputs.add(input("input_" + i));
+        }
+        final List<Object> steps = new ArrayList<>();
+        for (int step = 0; step < BENCHMARK_STEPS; step++) {
+            final List<Object> ins = new ArrayList<>();
+            for (int in = 0; in < INS_PER_STEP; in++) {
+                ins.add(in(step, in, "#input_" + (step * INS_PER_STEP + in) % BENCHMARK_INPUTS));
+            }
+            steps.add(step(step, "file:///tools/tool_" + step % TOOLS + ".cwl", ins));
+        }
+        final Workflow workflow = workflow(inputs, steps);
+
+        final long start = System.nanoTime();
+        new SecondaryFilesUtility(parseCache, GSON).modifyWorkflowToIncludeToolSecondaryFiles(workflow);
+        final long elapsedMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 1);
+        LOG.info(BENCHMARK_STEPS + " steps and " + BENCHMARK_INPUTS + " inputs in " + elapsedMillis + " ms");
+
+        int withSecondaryFiles = 0;
+        for (InputParameter input : workflow.getInputs()) {
+            if (input.getSecondaryFiles() != null) {
+                assertEquals(List.of(".bai"), input.getSecondaryFiles());
+                withSecondaryFiles++;
+            }
+        }
+        // only the in_0 of each step has secondary files
+        assertEquals(Math.min(BENCHMARK_STEPS, BENCHMARK_INPUTS / INS_PER_STEP), withSecondaryFiles);
+        assertEquals(Math.min(BENCHMARK_STEPS, TOOLS), parses.get());
+    }
+
+    private static Map<String, Object> input(String id) {
+        final Map<String, Object> input = new LinkedHashMap<>();
+        input.put("id", "#" + id);
+        input.put("type", "File");
+        return input;
+    }
+
+    private static Map<String, Object> in(int step, int in, Object source) {
+        final Map<String, Object> stepInput = new LinkedHashMap<>();
+        stepInput.put("id", WORKFLOW_ID + "#step_" + step + "/in_" + in);
+        stepInput.put("source", source);
+        return stepInput;
+    }
+
+    private static Map<String, Object> step(int step, String run, List<Object> ins) {
+        final Map<String, Object> workflowStep = new LinkedHashMap<>();
+        workflowStep.put("id", WORKFLOW_ID + "#step_" + step);
+        workflowStep.put("run", run);
+        workflowStep.put("in", ins);
+        workflowStep.put("out", List.of());
+        return workflowStep;
+    }
+
+    private static Workflow workflow(List<Object> inputs, List<Object> steps) {
+        final Map<String, Object> workflow = new LinkedHashMap<>();
+        workflow.put("class", "Workflow");
+        workflow.put("id", WORKFLOW_ID);
+        workflow.put("inputs", inputs);
+        workflow.put("outputs", List.of());
+        workflow.put("steps", steps);
+        return GSON.fromJson(GSON.toJson(workflow), Workflow.class);
+    }
+}